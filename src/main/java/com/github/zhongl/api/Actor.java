@@ -16,25 +16,39 @@
 
 package com.github.zhongl.api;
 
-import javax.annotation.concurrent.GuardedBy;
+import com.github.zhongl.util.RingBuffer;
+
 import javax.annotation.concurrent.ThreadSafe;
-import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * {@link com.github.zhongl.api.Actor} is thread-bound {@link Runnable} executor.
+ * <p/>
+ * Tasks are queued in a {@link RingBuffer} and drained in batch by the bound thread, submitting blocks if the buffer is
+ * full, except the ones submitted by the bound thread itself, which are appended to the running batch. The capacity,
+ * batch size and wait strategy could be configured by ipage.actor.ring.capacity, ipage.actor.drain.batch and
+ * ipage.actor.wait.strategy (SPIN, YIELD or PARK).
  *
  * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
  */
 @ThreadSafe
 public abstract class Actor {
     public static final long TIMEOUT = Long.getLong("ipage.actor.poll.timeout", 500L);
+    public static final int CAPACITY = Integer.getInteger("ipage.actor.ring.capacity", 1 << 14);
+    public static final int BATCH = Integer.getInteger("ipage.actor.drain.batch", 256);
+    public static final RingBuffer.WaitStrategy WAIT_STRATEGY =
+            RingBuffer.WaitStrategy.valueOf(System.getProperty("ipage.actor.wait.strategy", "PARK"));
 
     private final Core core;
     private final long timeout;
-    private final BlockingQueue<Runnable> tasks; // TODO monitor
+    private final RingBuffer<Runnable> tasks;
 
     private final Runnable SHUTDOWN = new Runnable() {
         public void run() { core.running = false; }
@@ -45,7 +59,7 @@ public abstract class Actor {
     protected Actor(String name, long timeout) {
         checkArgument(timeout >= 0);
         this.timeout = timeout;
-        this.tasks = new LinkedBlockingQueue<Runnable>();
+        this.tasks = new RingBuffer<Runnable>(CAPACITY, WAIT_STRATEGY);
         core = new Core(name);
     }
 
@@ -63,19 +77,36 @@ public abstract class Actor {
     }
 
     protected final <T> Future<T> submit(Callable<T> task) {
-        final FutureTask futureTask = new FutureTask(task);
-        tasks.offer(futureTask);
+        final FutureTask<T> futureTask = new FutureTask<T>(task);
+        execute(futureTask);
         return futureTask;
     }
 
+    /** Unlike {@link #submit(Callable)}, a failure of the task would be passed to {@link #onInterruptedBy(Throwable)}. */
+    protected final void execute(Runnable task) {
+        if (Thread.currentThread() == core) {
+            if (!tasks.offer(task)) core.batch.add(task); // can't wait for itself to drain, run in the current batch
+            return;
+        }
+        try {
+            tasks.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return number of tasks waiting to be run. */
+    protected int backlog() { return tasks.size(); }
+
     /** Overwrite this method for some time-sensitive stuff. */
     protected void heartbeat() throws Throwable {}
 
     protected boolean onInterruptedBy(Throwable t) { return true; }
 
     private class Core extends Thread {
-        @GuardedBy("this")
-        private Boolean running = true;
+        private final List<Runnable> batch = new ArrayList<Runnable>(BATCH);
+        private volatile boolean running = true;
 
         public Core(String name) { super(name); }
 
@@ -83,13 +114,20 @@ public abstract class Actor {
         public void run() {
             while (running) {
                 try {
-                    Runnable task = tasks.poll(timeout, MILLISECONDS);
+                    tasks.drainTo(batch, BATCH, timeout, MILLISECONDS);
                     heartbeat();
-                    if (task == null) continue;
-                    task.run();
                 } catch (Throwable t) {
                     running = onInterruptedBy(t);
                 }
+
+                for (int i = 0; i < batch.size() && running; i++) {
+                    try {
+                        batch.get(i).run();
+                    } catch (Throwable t) {
+                        running = onInterruptedBy(t);
+                    }
+                }
+                batch.clear();
             }
         }
 
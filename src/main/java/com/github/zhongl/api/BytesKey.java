@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Key;
+import com.github.zhongl.util.Md5;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * {@link BytesKey} is a variable length key compared as unsigned bytes lexicographically, so that a composite key like
+ * topic plus big-endian sequence keeps its order in indices.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class BytesKey implements Key {
+
+    private final byte[] bytes;
+    private final int hashCode;
+
+    public BytesKey(byte[] bytes) {
+        this.bytes = checkNotNull(bytes);
+        this.hashCode = Arrays.hashCode(bytes);
+    }
+
+    public byte[] toBytes() { return bytes; }
+
+    @Override
+    public String toString() { return Md5.toHex(bytes); }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return Arrays.equals(bytes, ((BytesKey) o).bytes);
+    }
+
+    @Override
+    public int hashCode() { return hashCode; }
+
+    @Override
+    public int compareTo(Key that) {
+        checkArgument(that.getClass() == getClass(), "Expect %s but %s", getClass(), that.getClass());
+        if (this == that) return 0;
+        byte[] other = ((BytesKey) that).bytes;
+        int length = Math.min(bytes.length, other.length);
+        for (int i = 0; i < length; i++) {
+            int result = (bytes[i] & 0xff) - (other[i] & 0xff);
+            if (result != 0) return result;
+        }
+        return bytes.length - other.length;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Framing;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.index.KeyCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link BytesKeyCodec} encodes {@link BytesKey} self-delimited and order-preserving: every 0x00 is escaped to 0x00 0xFF
+ * and the end is 0x00 0x01, so encoded keys compare as their bytes do, and adjacent ones share prefixes in indices.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public class BytesKeyCodec implements KeyCodec, Framing {
+    private static final byte ESCAPE = 0x00;
+    private static final byte ESCAPED = (byte) 0xFF;
+    private static final byte END = 0x01;
+
+    @Override
+    public BytesKey decode(ByteBuffer byteBuffer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        while (true) {
+            byte b = byteBuffer.get(); // BufferUnderflowException tells reader to load more
+            if (b != ESCAPE) {
+                bytes.write(b);
+                continue;
+            }
+            byte next = byteBuffer.get();
+            if (next == END) return new BytesKey(bytes.toByteArray());
+            if (next != ESCAPED) throw new IllegalStateException("Invalid escaped byte " + next);
+            bytes.write(ESCAPE);
+        }
+    }
+
+    @Override
+    public ByteBuffer encode(Key value) {
+        byte[] bytes = ((BytesKey) value).toBytes();
+        int escapes = 0;
+        for (byte b : bytes) if (b == ESCAPE) escapes++;
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + escapes + 2);
+        for (byte b : bytes) {
+            buffer.put(b);
+            if (b == ESCAPE) buffer.put(ESCAPED);
+        }
+        return (ByteBuffer) buffer.put(ESCAPE).put(END).flip();
+    }
+
+    @Override
+    public int lengthOf(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit() - 1; i++) {
+            if (buffer.get(i) != ESCAPE) continue;
+            if (buffer.get(i + 1) == END) return i + 2 - buffer.position();
+            i++; // skip the escaped
+        }
+        return UNKNOWN;
+    }
+
+    @Override
+    public int length() { return VARIABLE; }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.Histogram;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.softee.management.annotation.Description;
+import org.softee.management.annotation.MBean;
+import org.softee.management.annotation.ManagedAttribute;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * {@link CallbackDispatcher} completes user callbacks off the flush thread, so that a slow callback can't delay the
+ * next flush.
+ * <p/>
+ * By default callbacks run on striped single threads chosen by the hash of key, which keeps them in order per key.
+ * Callbacks could be handed to the caller's executor instead, then the order is up to the executor. No stripe means
+ * running inline as before.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+@MBean
+public class CallbackDispatcher {
+    static final int STRIPES = Integer.getInteger("ipage.callback.stripes", Runtime.getRuntime().availableProcessors());
+    static final long STOP_TIMEOUT_MILLIS = 3000L;
+
+    private final Logger logger;
+    private final Executor[] stripes;
+    private final boolean owned;
+    private final AtomicInteger depth;
+    private final Histogram depthHistogram;
+    private final Histogram latencyHistogram;
+
+    /** @param stripes 0 means running callbacks inline. */
+    public CallbackDispatcher(int stripes) {
+        this(striped(stripes), true);
+    }
+
+    public CallbackDispatcher(Executor executor) {
+        this(new Executor[]{checkNotNull(executor)}, false);
+    }
+
+    private CallbackDispatcher(Executor[] stripes, boolean owned) {
+        this.logger = Logger.getLogger(getClass().getName());
+        this.stripes = stripes;
+        this.owned = owned;
+        this.depth = new AtomicInteger();
+        this.depthHistogram = new Histogram();
+        this.latencyHistogram = new Histogram();
+    }
+
+    public <T> void onSuccess(Object key, final FutureCallback<T> callback, final T result) {
+        dispatch(key, new Runnable() {
+            @Override
+            public void run() { callback.onSuccess(result); }
+        });
+    }
+
+    public <T> void onFailure(Object key, final FutureCallback<T> callback, final Throwable t) {
+        dispatch(key, new Runnable() {
+            @Override
+            public void run() { callback.onFailure(t); }
+        });
+    }
+
+    /** Run a task, e.g. an asynchronous read, on the stripe of the key, after callbacks dispatched to it before. */
+    public void execute(Object key, Runnable task) { dispatch(key, task); }
+
+    /** Stop owned stripes after queued callbacks completed. */
+    public void stop() {
+        if (!owned) return;
+        for (Executor stripe : stripes) ((ExecutorService) stripe).shutdown();
+        try {
+            for (Executor stripe : stripes)
+                ((ExecutorService) stripe).awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @ManagedAttribute
+    public int getStripes() { return stripes.length; }
+
+    @ManagedAttribute
+    @Description("callbacks dispatched but not completed.")
+    public int getQueueDepth() { return depth.get(); }
+
+    @ManagedAttribute
+    @Description("queue depth sampled on dispatching.")
+    public String[] getQueueDepthHistogram() { return depthHistogram.summary(); }
+
+    @ManagedAttribute
+    @Description("microseconds from dispatching to completion.")
+    public String[] getLatencyMicrosHistogram() { return latencyHistogram.summary(); }
+
+    private void dispatch(Object key, final Runnable callback) {
+        if (stripes.length == 0) {
+            callback.run();
+            return;
+        }
+
+        depthHistogram.record(depth.incrementAndGet());
+        final long begin = System.nanoTime();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callback.run();
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Callback failed", t);
+                } finally {
+                    depth.decrementAndGet();
+                    latencyHistogram.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+                }
+            }
+        };
+
+        try {
+            stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length].execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run(); // stopped
+        }
+    }
+
+    private static Executor[] striped(int size) {
+        checkArgument(size >= 0);
+        Executor[] stripes = new Executor[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("callback-" + i).setDaemon(true).build()
+            );
+        }
+        return stripes;
+    }
+}
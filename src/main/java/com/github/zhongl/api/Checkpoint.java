@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.io.HardLinks;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link Checkpoint} exports a version of snapshot to another directory, which could be opened as a standalone storage,
+ * or read only without any change of files.
+ * <p/>
+ * Page and indices files are immutable once referred by a manifest, so they would be hard linked if possible, or else
+ * copied, and a new manifest of the version is written in the target, the files of the source are never changed.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@NotThreadSafe
+class Checkpoint {
+    private final Logger logger;
+    private final File pagesDir;
+    private final Map<String, Long> pages;
+    private final String indices;
+    private final Map<String, Long> liveBytes;
+    private final Map<String, Long> expiries;
+    private final Versions.Version version;
+
+    /**
+     * @param pages     page file names and their offset of the version.
+     * @param liveBytes of pages, absent ones would be recounted on opening.
+     * @param expiries  of pages, absent ones never expire.
+     * @param version   pins files until the checkpoint is exported, nullable.
+     */
+    Checkpoint(
+            File pagesDir,
+            Map<String, Long> pages,
+            String indices,
+            Map<String, Long> liveBytes,
+            Map<String, Long> expiries,
+            Versions.Version version
+    ) {
+        this.logger = Logger.getLogger(getClass().getName());
+        this.pagesDir = pagesDir;
+        this.pages = new LinkedHashMap<String, Long>(pages);
+        this.indices = indices;
+        this.liveBytes = retain(liveBytes, pages);
+        this.expiries = retain(expiries, pages);
+        this.version = version;
+    }
+
+    /**
+     * @param target should be absent or empty.
+     *
+     * @return number of files linked, others were copied.
+     */
+    public int exportTo(File target) throws IOException {
+        try {
+            File[] exists = target.listFiles();
+            checkArgument(exists == null || exists.length == 0, "Checkpoint target %s should be empty.", target);
+
+            File dir = new File(target, Snapshot.PAGES);
+            if (!dir.mkdirs()) throw new IOException("Can't create " + dir);
+
+            int linked = 0;
+            for (String name : pages.keySet()) if (linkOrCopy(name, dir)) linked++;
+            if (linkOrCopy(indices, dir)) linked++;
+
+            // HEAD is renamed at last, so that a checkpoint with HEAD should be complete.
+            File head = new File(target, Snapshot.HEAD + ".tmp");
+            new Manifest(dir, head, indices).update(pages, indices, liveBytes, expiries);
+            if (!head.renameTo(new File(target, Snapshot.HEAD))) throw new IOException("Can't rename " + head);
+
+            logger.info("Exported " + (pages.size() + 1) + " files to " + target + ", " + linked + " were linked.");
+            return linked;
+        } finally {
+            if (version != null) version.release();
+        }
+    }
+
+    private boolean linkOrCopy(String name, File dir) throws IOException {
+        return HardLinks.linkOrCopy(new File(pagesDir, name), new File(dir, name));
+    }
+
+    private static Map<String, Long> retain(Map<String, Long> map, Map<String, Long> pages) {
+        Map<String, Long> retained = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            if (pages.containsKey(entry.getKey())) retained.put(entry.getKey(), entry.getValue());
+        }
+        return retained;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Index;
+import com.github.zhongl.index.IndexCodec;
+import com.github.zhongl.index.Indices;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.io.TokenBucket;
+import com.github.zhongl.page.Binder;
+import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Page;
+import com.github.zhongl.page.Range;
+import com.github.zhongl.util.Entry;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * {@link Compaction} rewrites live elements of victim pages into a detached file against a pinned version of snapshot,
+ * so it could run on its own thread while flushes keep appending new pages.
+ * <p/>
+ * It is prepared and installed by {@link Snapshot} on the merging thread, and {@link #run()} can be called on any
+ * thread in between.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@NotThreadSafe
+class Compaction<V> {
+    final List<Page<Entry<Key, V>>> victims;
+    final File indicesFile;
+    final int indicesSize;
+    final File target;
+    final Versions.Version version;
+
+    private final Binder<Entry<Key, V>> binder;
+    private final IndexCodec indexCodec;
+    private final TokenBucket tokenBucket;
+    private final List<Element<Key>> moved;
+
+    Compaction(
+            List<Page<Entry<Key, V>>> victims,
+            File indicesFile,
+            int indicesSize,
+            File target,
+            Binder<Entry<Key, V>> binder,
+            IndexCodec indexCodec,
+            TokenBucket tokenBucket,
+            Versions.Version version
+    ) {
+        this.victims = victims;
+        this.version = version;
+        this.indicesFile = indicesFile;
+        this.indicesSize = indicesSize;
+        this.target = target;
+        this.binder = binder;
+        this.indexCodec = indexCodec;
+        this.tokenBucket = tokenBucket;
+        this.moved = new ArrayList<Element<Key>>();
+    }
+
+    public Compaction<V> run() throws IOException {
+        final Set<Page<Entry<Key, V>>> victimSet = new HashSet<Page<Entry<Key, V>>>(victims);
+
+        Iterator<Index> indices = Indices.stream(indicesFile, indexCodec);
+
+        Liveness<Entry<Key, V>> liveness = new Liveness<Entry<Key, V>>(indices, indicesSize, new Predicate<Range>() {
+            @Override
+            public boolean apply(Range range) { return victimSet.contains(binder.pageOf(range)); }
+        });
+
+        binder.rewrite(victims, target, liveness, new Function<Element<Entry<Key, V>>, Void>() {
+            @Override
+            public Void apply(Element<Entry<Key, V>> element) {
+                moved.add(new Element<Key>(element.value().key(), element.range()));
+                return null;
+            }
+        }, tokenBucket);
+        return this;
+    }
+
+    /** @return keys moved to target, with ranges relative to the beginning of target. */
+    public List<Element<Key>> moved() { return moved; }
+}
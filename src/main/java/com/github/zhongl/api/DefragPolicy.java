@@ -16,6 +16,8 @@
 
 package com.github.zhongl.api;
 
+import com.github.zhongl.io.MemoryBudget;
+import com.github.zhongl.io.TokenBucket;
 import org.softee.management.annotation.Description;
 import org.softee.management.annotation.MBean;
 import org.softee.management.annotation.ManagedAttribute;
@@ -26,6 +28,12 @@ import static java.lang.Math.min;
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 @MBean
 class DefragPolicy {
+    static final long COMPACT_BYTES_PER_SECOND = Long.getLong("ipage.compact.bytes.per.second", 64L * 1024 * 1024);
+    static final long ADJUST_INTERVAL_MILLIS = 100L;
+    static final double EWMA_WEIGHT = 0.2;
+
+    private final MemoryBudget memoryBudget;
+
     private volatile int lastAliveSize;
     private volatile long increment;
     private volatile long decrement;
@@ -33,11 +41,38 @@ class DefragPolicy {
     private volatile int availableFreeMemoryRatio;
     private volatile int gapRatioThreshold;
     private volatile int aliveIndexOccupied;
+    private volatile long encodedIndexBytes;
+
+    private volatile boolean incremental;
+    private volatile boolean concurrent;
+    private volatile long compactBudgetBytes;
+    private volatile int compactGarbagePercent;
+    private volatile int spaceAmplificationPercent;
+    private volatile long minReclaimableBytes;
 
-    DefragPolicy() {
+    private final TokenBucket tokenBucket;
+    private volatile long compactBytesPerSecond;
+    private volatile boolean autoBackoff;
+    private volatile long readLatencyThresholdMicros;
+    private volatile double averageReadMicros;
+    private volatile long lastAdjustMillis;
+
+    DefragPolicy() { this(MemoryBudget.SHARED); }
+
+    DefragPolicy(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        tokenBucket = new TokenBucket(COMPACT_BYTES_PER_SECOND);
+        setCompactBytesPerSecond(COMPACT_BYTES_PER_SECOND);
+        setReadLatencyThresholdMicros(10000L);
         setAliveIndexOccupied(40);
         setAvailableFreeMemoryRatio(7);
         setGapRatioThreshold(2);
+        setIncremental(true);
+        setConcurrent(true);
+        setCompactBudgetBytes(64L * 1024 * 1024);
+        setCompactGarbagePercent(50);
+        setSpaceAmplificationPercent(200);
+        setMinReclaimableBytes(16L * 1024 * 1024);
     }
 
     public boolean evaluate(final int aliveSize, final int probableDelta) {
@@ -47,10 +82,10 @@ class DefragPolicy {
 
         this.lastAliveSize = aliveSize;
 
-        double availableMemoryForCollectAliveIndex = Runtime.getRuntime().freeMemory() * availableFreeMemoryRatio * 0.1;
+        double availableMemoryForCollectAliveIndex = memoryBudget.getAvailableBytes() * availableFreeMemoryRatio * 0.1;
 
         boolean needDefrag = deltaRatio() <= gapRatioThreshold * 0.1
-                && availableMemoryForCollectAliveIndex >= (aliveSize + probableDelta) * aliveIndexOccupied;
+                && availableMemoryForCollectAliveIndex >= estimateDefragBytes(aliveSize, probableDelta);
 
         if (needDefrag) {
             increment = aliveSize;
@@ -60,6 +95,48 @@ class DefragPolicy {
         return needDefrag;
     }
 
+    /** @return bytes of memory to collect alive indices for defrag, which should be reserved from the budget. */
+    public long estimateDefragBytes(final int aliveSize, final int probableDelta) {
+        return max(0L, (long) (aliveSize + probableDelta) * (aliveIndexOccupied + encodedIndexBytes));
+    }
+
+    /** Estimation of defrag would be based on the actual size of indices file. */
+    public void observeIndices(long diskOccupiedBytes, int size) {
+        encodedIndexBytes = size == 0 ? 0L : diskOccupiedBytes / size;
+    }
+
+    public MemoryBudget memoryBudget() { return memoryBudget; }
+
+    /** @return true if pages occupy too much more space than their live bytes. */
+    public boolean evaluateSpace(final long liveBytes, final long totalBytes) {
+        return totalBytes - liveBytes >= minReclaimableBytes
+                && totalBytes * 100 >= liveBytes * spaceAmplificationPercent;
+    }
+
+    /** @return limits bytes of compaction I/O, the rate may be lower than configured if backing off. */
+    public TokenBucket tokenBucket() { return tokenBucket; }
+
+    /**
+     * Halve compaction rate if the average latency of reads exceeds the threshold, or else restore it step by step.
+     *
+     * @param elapseNanos of a read from pages during compaction.
+     */
+    public void readDuringCompaction(long elapseNanos) {
+        if (!autoBackoff) return;
+        averageReadMicros += (elapseNanos / 1000.0 - averageReadMicros) * EWMA_WEIGHT; // racy but acceptable
+
+        long now = System.currentTimeMillis();
+        if (now - lastAdjustMillis < ADJUST_INTERVAL_MILLIS) return;
+        lastAdjustMillis = now;
+
+        long configured = compactBytesPerSecond;
+        if (configured <= 0) return;
+
+        long rate = tokenBucket.rate();
+        if (averageReadMicros > readLatencyThresholdMicros) tokenBucket.rate(max(configured / 64, rate / 2));
+        else if (rate < configured) tokenBucket.rate(min(configured, rate + configured / 8));
+    }
+
     @ManagedAttribute
     public int getLastAliveSize() {
         return lastAliveSize;
@@ -81,7 +158,7 @@ class DefragPolicy {
     }
 
     @ManagedAttribute
-    @Description("Available free memory ratio for defrag")
+    @Description("Available memory budget ratio for defrag")
     public void setAvailableFreeMemoryRatio(@Description("Ratio in [1, 9]") int availableFreeMemoryRatio) {
         this.availableFreeMemoryRatio = max(1, min(9, availableFreeMemoryRatio));
     }
@@ -92,13 +169,19 @@ class DefragPolicy {
     }
 
     @ManagedAttribute
-    @Description("An alive index occupied for memory usage evaluation")
+    @Description("Heap bytes an alive index occupied besides its encoded bytes for memory usage evaluation")
     public void setAliveIndexOccupied(
             @Description("Occupied bytes in [32, Integer.MAX_VALUE]")
             int aliveIndexOccupied) {
         this.aliveIndexOccupied = max(32, aliveIndexOccupied);
     }
 
+    @ManagedAttribute
+    @Description("Encoded bytes per index observed from the indices file")
+    public long getEncodedIndexBytes() {
+        return encodedIndexBytes;
+    }
+
     @ManagedAttribute
     public int getGapRatioThreshold() {
         return gapRatioThreshold;
@@ -111,6 +194,129 @@ class DefragPolicy {
         this.gapRatioThreshold = max(1, min(9, gapRatioThreshold));
     }
 
+    @ManagedAttribute
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    @ManagedAttribute
+    @Description("Compact pages of most garbage incrementally instead of defrag all pages")
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    @ManagedAttribute
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    @ManagedAttribute
+    @Description("Compact on its own thread without blocking flushes")
+    public void setConcurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+    }
+
+    @ManagedAttribute
+    public long getCompactBudgetBytes() {
+        return compactBudgetBytes;
+    }
+
+    @ManagedAttribute
+    @Description("Max alive bytes could be rewritten by a compaction")
+    public void setCompactBudgetBytes(
+            @Description("Bytes in [1M, Long.MAX_VALUE]")
+            long compactBudgetBytes) {
+        this.compactBudgetBytes = max(1024L * 1024, compactBudgetBytes);
+    }
+
+    @ManagedAttribute
+    public int getCompactGarbagePercent() {
+        return compactGarbagePercent;
+    }
+
+    @ManagedAttribute
+    @Description("A page would be compacted only if its garbage percent is not less than this")
+    public void setCompactGarbagePercent(
+            @Description("Percent in [1, 99]")
+            int compactGarbagePercent) {
+        this.compactGarbagePercent = max(1, min(99, compactGarbagePercent));
+    }
+
+    @ManagedAttribute
+    public int getSpaceAmplificationPercent() {
+        return spaceAmplificationPercent;
+    }
+
+    @ManagedAttribute
+    @Description("Compact if total bytes of pages reach this percent of live bytes")
+    public void setSpaceAmplificationPercent(
+            @Description("Percent in [101, 10000]")
+            int spaceAmplificationPercent) {
+        this.spaceAmplificationPercent = max(101, min(10000, spaceAmplificationPercent));
+    }
+
+    @ManagedAttribute
+    public long getMinReclaimableBytes() {
+        return minReclaimableBytes;
+    }
+
+    @ManagedAttribute
+    @Description("Compact for space amplification only if garbage bytes reach this")
+    public void setMinReclaimableBytes(
+            @Description("Bytes in [0, Long.MAX_VALUE]")
+            long minReclaimableBytes) {
+        this.minReclaimableBytes = max(0L, minReclaimableBytes);
+    }
+
+    @ManagedAttribute
+    public long getCompactBytesPerSecond() {
+        return compactBytesPerSecond;
+    }
+
+    @ManagedAttribute
+    @Description("Bandwidth of compaction reads and writes")
+    public void setCompactBytesPerSecond(
+            @Description("Bytes per second, non-positive means unlimited")
+            long compactBytesPerSecond) {
+        this.compactBytesPerSecond = compactBytesPerSecond;
+        tokenBucket.rate(compactBytesPerSecond);
+    }
+
+    @ManagedAttribute
+    public long getEffectiveCompactBytesPerSecond() {
+        return tokenBucket.rate();
+    }
+
+    @ManagedAttribute
+    public boolean isAutoBackoff() {
+        return autoBackoff;
+    }
+
+    @ManagedAttribute
+    @Description("Lower compaction bandwidth automatically if reads become slow during compaction")
+    public void setAutoBackoff(boolean autoBackoff) {
+        this.autoBackoff = autoBackoff;
+        if (!autoBackoff) tokenBucket.rate(compactBytesPerSecond);
+    }
+
+    @ManagedAttribute
+    public long getReadLatencyThresholdMicros() {
+        return readLatencyThresholdMicros;
+    }
+
+    @ManagedAttribute
+    @Description("Average read latency above which compaction backs off")
+    public void setReadLatencyThresholdMicros(
+            @Description("Microseconds in [1, Long.MAX_VALUE]")
+            long readLatencyThresholdMicros) {
+        this.readLatencyThresholdMicros = max(1L, readLatencyThresholdMicros);
+    }
+
+    @ManagedAttribute
+    public long getAverageReadMicros() {
+        return (long) averageReadMicros;
+    }
+
     private double deltaRatio() {
         if (increment == 0) return Double.MAX_VALUE; // avoid defrag
         long gap = increment - decrement;
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.io.Arena;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link EncodedEntry} holds its value encoded in an {@link Arena.Slice} off heap, which is decoded only if the value
+ * is asked, and {@link EntryCodec} copies the encoded bytes as they are.
+ * <p/>
+ * The slice should not be freed until the entry is no longer used.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+class EncodedEntry<V> extends ExpiringEntry<V> {
+    private final Arena.Slice slice;
+    private final Codec<V> codec;
+
+    EncodedEntry(Key key, Arena.Slice slice, Codec<V> codec, long expireAt) {
+        super(key, expireAt);
+        this.slice = slice;
+        this.codec = codec;
+    }
+
+    /** @return the encoded value. */
+    public ByteBuffer encoded() { return slice.read(); }
+
+    @Override
+    public V value() { return codec.decode(slice.read()); }
+}
@@ -17,14 +17,22 @@
 package com.github.zhongl.api;
 
 import com.github.zhongl.codec.Codec;
+import com.github.zhongl.codec.Framing;
 import com.github.zhongl.index.Key;
 import com.github.zhongl.index.KeyCodec;
 import com.github.zhongl.util.Entry;
 
 import java.nio.ByteBuffer;
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
-class EntryCodec<V> implements Codec<Entry<Key, V>> {
+/**
+ * {@link EntryCodec} copies the value as it is if the entry is an {@link EncodedEntry} of {@link Ephemerons}.
+ * <p/>
+ * An entry is framed by its key and the length of value, so its length could be told without decoding if the key is
+ * fixed length or framed.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+class EntryCodec<V> implements Codec<Entry<Key, V>>, Framing {
     private final KeyCodec keyCodec;
     private final Codec<V> valueCodec;
 
@@ -42,10 +50,33 @@ class EntryCodec<V> implements Codec<Entry<Key, V>> {
         return new Entry<Key, V>(key, value);
     }
 
+    @Override
+    public int lengthOf(ByteBuffer buffer) {
+        int keyLength = keyLengthOf(buffer);
+        if (keyLength == UNKNOWN || buffer.remaining() < keyLength + 4) return UNKNOWN;
+        int valueLength = buffer.getInt(buffer.position() + keyLength);
+        if (valueLength < 0 || valueLength > Integer.MAX_VALUE - keyLength - 4) return CORRUPT;
+        return keyLength + 4 + valueLength;
+    }
+
+    private int keyLengthOf(ByteBuffer buffer) {
+        if (keyCodec.length() != KeyCodec.VARIABLE) return keyCodec.length();
+        if (keyCodec instanceof Framing) return ((Framing) keyCodec).lengthOf(buffer);
+        try { // an unframed key has to be decoded to tell its length
+            ByteBuffer duplicate = buffer.duplicate();
+            keyCodec.decode(duplicate);
+            return duplicate.position() - buffer.position();
+        } catch (RuntimeException e) {
+            return UNKNOWN;
+        }
+    }
+
     @Override
     public ByteBuffer encode(Entry<Key, V> entry) {
         ByteBuffer kBuffer = keyCodec.encode(entry.key());
-        ByteBuffer vBuffer = valueCodec.encode(entry.value());
+        ByteBuffer vBuffer = entry instanceof EncodedEntry
+                ? ((EncodedEntry<V>) entry).encoded()
+                : valueCodec.encode(entry.value());
         return (ByteBuffer) ByteBuffer.allocate(kBuffer.remaining() + 4 + vBuffer.remaining())
                                       .put(kBuffer)
                                       .putInt(vBuffer.remaining())
@@ -16,7 +16,10 @@
 
 package com.github.zhongl.api;
 
+import com.github.zhongl.codec.Codec;
 import com.github.zhongl.index.Key;
+import com.github.zhongl.io.Arena;
+import com.github.zhongl.io.MemoryBudget;
 import com.github.zhongl.util.Entry;
 import com.github.zhongl.util.FutureCallbacks;
 import com.github.zhongl.util.Nils;
@@ -30,25 +33,60 @@ import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+/**
+ * {@link Ephemerons} keeps pending writes until they are flushed to storage.
+ * <p/>
+ * With an {@link Arena}, values are encoded into direct slabs on adding, and the encoded bytes are appended to pages
+ * as they are, which keeps the heap free of pending values at the cost of decoding on getting.
+ * <p/>
+ * With a {@link MemoryBudget}, adding would wait for a flush while the budget is exhausted, as it waits for permits.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
 @ThreadSafe
 @MBean
 public abstract class Ephemerons<V> {
+    static final boolean OFF_HEAP = Boolean.getBoolean("ipage.ephemerons.off.heap");
+
     private final AtomicLong id;
     private final Map<Key, Record> map;
     private final Semaphore flowControl;
     private final AtomicBoolean flushing;
+    private final AtomicBoolean flushRequested;
     private final ExecutorService asyncRemovingService;
+    private final CallbackDispatcher dispatcher;
+    private final Arena arena;
+    private final Codec<V> codec;
+    private final MemoryBudget memoryBudget;
+
+    protected Ephemerons() { this(new CallbackDispatcher(0)); }
 
-    protected Ephemerons() {
+    protected Ephemerons(CallbackDispatcher dispatcher) { this(dispatcher, null, null); }
+
+    /**
+     * @param arena keeps values off heap if it is not null.
+     * @param codec encodes values into arena.
+     */
+    protected Ephemerons(CallbackDispatcher dispatcher, Arena arena, Codec<V> codec) {
+        this(dispatcher, arena, codec, null);
+    }
+
+    /** @param memoryBudget throttles adding if it is not null. */
+    protected Ephemerons(CallbackDispatcher dispatcher, Arena arena, Codec<V> codec, MemoryBudget memoryBudget) {
+        this.dispatcher = dispatcher;
+        this.memoryBudget = memoryBudget;
+        this.arena = arena;
+        this.codec = codec;
         id = new AtomicLong(0L);
         map = new ConcurrentHashMap<Key, Record>();
         flowControl = new Semaphore(0, true);
         flushing = new AtomicBoolean(false);
+        flushRequested = new AtomicBoolean(false);
         asyncRemovingService = Executors.newCachedThreadPool(new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -60,13 +98,34 @@ public abstract class Ephemerons<V> {
     }
 
     public void add(final Key key, final V value, final FutureCallback<Void> removedOrDurableCallback) {
+        add(key, value, ExpiringEntry.NEVER, removedOrDurableCallback);
+    }
+
+    /** @param expireAt should be the end of an expiry window, see {@link ExpiringEntry#windowEndOf(long)}. */
+    public void add(final Key key, final V value, long expireAt, final FutureCallback<Void> removedOrDurableCallback) {
         checkNotNull(key);
         checkNotNull(value);
         checkNotNull(removedOrDurableCallback);
 
         release(key, Nils.VOID);
+        awaitMemory();
         acquire();
-        map.put(key, new Record(id.getAndIncrement(), key, value, removedOrDurableCallback));
+        put(new Record(id.getAndIncrement(), key, value, expireAt, removedOrDurableCallback));
+    }
+
+    /** @return false without blocking if there is no permit, and a flush would be triggered. */
+    public boolean tryAdd(final Key key, final V value, long expireAt, final FutureCallback<Void> removedOrDurableCallback) {
+        checkNotNull(key);
+        checkNotNull(value);
+        checkNotNull(removedOrDurableCallback);
+
+        if ((memoryBudget != null && memoryBudget.isExhausted()) || !flowControl.tryAcquire()) {
+            flush();
+            return false;
+        }
+        release(key, Nils.VOID);
+        put(new Record(id.getAndIncrement(), key, value, expireAt, removedOrDurableCallback));
+        return true;
     }
 
     public void remove(final Key key, final FutureCallback<Void> appliedCallback) {
@@ -74,12 +133,12 @@ public abstract class Ephemerons<V> {
         checkNotNull(appliedCallback);
 
         if (release(key, Nils.VOID)) {
-            appliedCallback.onSuccess(Nils.VOID);
+            dispatcher.onSuccess(key, appliedCallback, Nils.VOID);
             return;
         }
 
         acquire();
-        map.put(key, new Record(id.getAndIncrement(), key, (V) Nils.OBJECT, appliedCallback));
+        put(new Record(id.getAndIncrement(), key, (V) Nils.OBJECT, ExpiringEntry.NEVER, appliedCallback));
     }
 
     public V get(final Key key) {
@@ -87,17 +146,26 @@ public abstract class Ephemerons<V> {
         Record record = map.get(key);
         if (record == null) return getMiss(key);
         if (record.value == Nils.OBJECT) return null;
-        return record.value;
+        if (record.expireAt <= System.currentTimeMillis()) return null;
+        if (record.slice == null) return record.value;
+        if (!record.retain()) return getMiss(key); // flushed and freed just now
+        try {
+            return codec.decode(record.slice.read());
+        } finally {
+            record.dispose();
+        }
     }
 
     public void flush() {
+        flushRequested.set(true); // redo after the current one, whose callbacks may be dispatched before it finishes
         if (!flushing.compareAndSet(false, true)) return; // only one can trigger the flushing.
+        flushRequested.set(false);
 
         final Collection<WriteOperation<Entry<Key, V>>> addOrUpdates = new ArrayList<WriteOperation<Entry<Key, V>>>();
         final Collection<WriteOperation<Key>> removes = new ArrayList<WriteOperation<Key>>();
 
         for (final Record record : new TreeSet<Record>(map.values())) {
-            if (record.value.equals(Nils.OBJECT)) {
+            if (record.value == Nils.OBJECT) {
                 removes.add(new WriteOperation<Key>(record.key, new FutureCallback<Void>() {
                     @Override
                     public void onSuccess(Void result) {
@@ -111,13 +179,31 @@ public abstract class Ephemerons<V> {
 
                 }));
             } else {
-                addOrUpdates.add(new WriteOperation<Entry<Key, V>>(new Entry<Key, V>(record.key, record.value), new FutureCallback<Void>() {
+                if (!record.retain()) continue; // keep the slice until it is written, or skip the freed
+                addOrUpdates.add(new WriteOperation<Entry<Key, V>>(record.entry(), new FutureCallback<Void>() {
                     @Override
                     public void onSuccess(Void result) {
+                        try {
+                            applied(result);
+                        } finally {
+                            record.dispose();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        try {
+                            failed(t);
+                        } finally {
+                            record.dispose();
+                        }
+                    }
+
+                    private void applied(Void result) {
                         Record thatRecord = map.get(record.key);
 
                         if (thatRecord == null) { // Remove the key which had been removed during flushing
-                            if (flowControl.tryAcquire()) remove(record.key, FutureCallbacks.<Void>ignore());
+                            if (flowControl.tryAcquire()) removeWithPermit(record.key);
                             else {
                                 // TODO refactor this ugly implement.
                                 asyncRemovingService.submit(new Runnable() {
@@ -131,22 +217,23 @@ public abstract class Ephemerons<V> {
                         }
 
                         if (thatRecord.compareTo(record) == 0) {
-                            map.remove(record.key);
+                            Record removed = map.remove(record.key);
+                            if (removed != null) removed.dispose();
                             flowControl.release();
-                            record.callback.onSuccess(result);
+                            dispatcher.onSuccess(record.key, record.callback, result);
                         }
 
                         // Keep the key which had been updated during flushing
                     }
 
-                    @Override
-                    public void onFailure(Throwable t) {
+                    private void failed(Throwable t) {
                         //  release if it is the same entry
                         Record thatRecord = map.get(record.key);
                         if (thatRecord != null && thatRecord.compareTo(record) == 0) {
-                            map.remove(record.key);
+                            Record removed = map.remove(record.key);
+                            if (removed != null) removed.dispose();
                             flowControl.release();
-                            record.callback.onFailure(t);
+                            dispatcher.onFailure(record.key, record.callback, t);
                         }
                         // do nothing if it is removed or updated
                     }
@@ -158,6 +245,7 @@ public abstract class Ephemerons<V> {
             @Override
             public void onSuccess(Void v) {
                 flushing.set(false);
+                if (flushRequested.get()) flush();
             }
 
             @Override
@@ -192,6 +280,42 @@ public abstract class Ephemerons<V> {
     @ManagedAttribute
     public int getSize() { return map.size(); }
 
+    @ManagedAttribute
+    public int getAvailablePermits() { return flowControl.availablePermits(); }
+
+    @ManagedAttribute
+    @Description("bytes of direct slabs holding pending values, 0 if values are on heap.")
+    public long getOffHeapBytes() { return arena == null ? 0L : arena.directBytes(); }
+
+    /** Release pooled slabs of the arena, if there is. */
+    public void clear() { if (arena != null) arena.clear(); }
+
+    /** Like {@link #remove(Key, FutureCallback)}, but the permit has been acquired, so it never blocks. */
+    private void removeWithPermit(Key key) {
+        if (release(key, Nils.VOID)) { // added again during flushing, just discard it
+            flowControl.release();
+            return;
+        }
+        put(new Record(id.getAndIncrement(), key, (V) Nils.OBJECT, ExpiringEntry.NEVER, FutureCallbacks.<Void>ignore()));
+    }
+
+    private void put(Record record) {
+        Record previous = map.put(record.key, record);
+        if (previous != null) previous.dispose(); // replaced by a concurrent adding or removing
+    }
+
+    private void awaitMemory() {
+        if (memoryBudget == null) return;
+        try {
+            while (memoryBudget.isExhausted()) {
+                flush();
+                memoryBudget.awaitAvailable(500L, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private void acquire() {
         try {
             while (!flowControl.tryAcquire(500L, TimeUnit.MILLISECONDS)) flush();
@@ -204,9 +328,10 @@ public abstract class Ephemerons<V> {
         Record record = map.remove(key);
         if (record == null) return false;
 
+        record.dispose();
         flowControl.release();
-        if (voidOrThrowable == Nils.VOID) record.callback.onSuccess(Nils.VOID);
-        else record.callback.onFailure((Throwable) voidOrThrowable);
+        if (voidOrThrowable == Nils.VOID) dispatcher.onSuccess(key, record.callback, Nils.VOID);
+        else dispatcher.onFailure(key, record.callback, (Throwable) voidOrThrowable);
         return true;
     }
 
@@ -214,13 +339,45 @@ public abstract class Ephemerons<V> {
         private Long id;
         private Key key;
         private final V value;
+        private final Arena.Slice slice;
+        private final AtomicInteger references; // one for being in map, and one for each reader or writer.
+        private final long expireAt;
         private final FutureCallback<Void> callback;
 
-        public Record(long id, Key key, V value, FutureCallback<Void> callback) {
+        public Record(long id, Key key, V value, long expireAt, FutureCallback<Void> callback) {
             this.id = id;
             this.key = key;
-            this.value = value;
+            this.expireAt = expireAt;
             this.callback = callback;
+            if (arena == null || value == Nils.OBJECT) {
+                this.value = value;
+                this.slice = null;
+                this.references = null;
+            } else {
+                this.value = null;
+                this.slice = arena.allocate(codec.encode(value));
+                this.references = new AtomicInteger(1);
+            }
+        }
+
+        /** The value of entry would be decoded only if it is asked, if it is off heap, see {@link EncodedEntry}. */
+        Entry<Key, V> entry() {
+            if (slice != null) return new EncodedEntry<V>(key, slice, codec, expireAt);
+            if (expireAt == ExpiringEntry.NEVER) return new Entry<Key, V>(key, value);
+            return new ExpiringEntry<V>(key, value, expireAt);
+        }
+
+        /** @return false if the slice has been freed. */
+        boolean retain() {
+            if (references == null) return true;
+            for (int count = references.get(); count > 0; count = references.get()) {
+                if (references.compareAndSet(count, count + 1)) return true;
+            }
+            return false;
+        }
+
+        void dispose() {
+            if (references != null && references.decrementAndGet() == 0) slice.free();
         }
 
         @Override
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Key;
+import com.github.zhongl.util.Entry;
+
+/**
+ * {@link ExpiringEntry} is an entry with a time to live, which would be appended to a page bucketed by its expiry
+ * window.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+class ExpiringEntry<V> extends Entry<Key, V> {
+    static final long NEVER = Long.MAX_VALUE;
+    static final long WINDOW_MILLIS = Long.getLong("ipage.ttl.window.millis", 60 * 1000L);
+
+    private final long expireAt;
+
+    /** @param expireAt should be the end of an expiry window, see {@link #windowEndOf(long)}. */
+    ExpiringEntry(Key key, V value, long expireAt) {
+        super(key, value);
+        this.expireAt = expireAt;
+    }
+
+    /** For an entry whose value is computed on demand, see {@link Entry#Entry(Object)}. */
+    protected ExpiringEntry(Key key, long expireAt) {
+        super(key);
+        this.expireAt = expireAt;
+    }
+
+    public long expireAt() { return expireAt; }
+
+    /** @return end of the window which the time belongs to, entries would expire together at it. */
+    static long windowEndOf(long expireAt) {
+        if (expireAt >= NEVER - WINDOW_MILLIS) return NEVER;
+        return (expireAt / WINDOW_MILLIS + 1) * WINDOW_MILLIS;
+    }
+
+    static <V> long expireAtOf(Entry<Key, V> entry) {
+        return entry instanceof ExpiringEntry ? ((ExpiringEntry<V>) entry).expireAt : NEVER;
+    }
+}
@@ -17,10 +17,18 @@ package com.github.zhongl.api;
 
 import com.github.zhongl.codec.Codec;
 import com.github.zhongl.index.Key;
+import com.github.zhongl.index.KeyCodec;
+import com.github.zhongl.io.Arena;
+import com.github.zhongl.io.DirectBufferPool;
+import com.github.zhongl.io.MemoryBudget;
 import com.github.zhongl.util.CallByCountOrElapse;
+import com.github.zhongl.util.CallbackFuture;
+import com.github.zhongl.util.CloseableIterator;
 import com.github.zhongl.util.Entry;
 import com.github.zhongl.util.Nils;
+import com.google.common.base.Function;
 import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.softee.management.helper.MBeanRegistration;
 import org.softee.management.helper.ObjectNameBuilder;
 
@@ -28,9 +36,16 @@ import javax.annotation.concurrent.ThreadSafe;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 @ThreadSafe
@@ -39,34 +54,82 @@ public abstract class IPage<K, V> extends Actor implements Iterable<V> {
     private static final String EPHEMERONS = "Ephemerons";
     private static final String STORAGE = "Storage";
     private static final String DEFRAG_POLICY = "DefragPolicy";
+    private static final String CALLBACK_DISPATCHER = "CallbackDispatcher";
+    private static final String DIRECT_BUFFER_POOL = "DirectBufferPool";
+    private static final String MEMORY_BUDGET = "MemoryBudget";
 
     private final Storage<V> storage;
     private final Ephemerons<V> ephemerons;
     private final CallByCountOrElapse callByCountOrElapse;
     private final DefragPolicy defragPolicy;
+    private final CallbackDispatcher callbackDispatcher;
+    private final Runnable tryCallByCount; // stateless, so shared by all writes
+    private final boolean readOnly;
 
     protected IPage(File dir, Codec<V> valueCodec, int throughout, long flushMillis, int flushCount) throws Exception {
+        this(dir, new Md5KeyCodec(), valueCodec, throughout, flushMillis, flushCount,
+             new CallbackDispatcher(CallbackDispatcher.STRIPES), false);
+    }
+
+    /** @param callbackExecutor runs callbacks of add and remove, instead of striped threads. */
+    protected IPage(File dir, Codec<V> valueCodec, int throughout, long flushMillis, int flushCount,
+                    Executor callbackExecutor) throws Exception {
+        this(dir, new Md5KeyCodec(), valueCodec, throughout, flushMillis, flushCount,
+             new CallbackDispatcher(callbackExecutor), false);
+    }
+
+    /**
+     * @param keyCodec of keys returned by {@link #transform(Object)}, e.g. {@link BytesKeyCodec} for ordered keys could
+     *                 be scanned by {@link #scan(Object, Object)}, or {@link LongKeyCodec} for sequence keys whose
+     *                 indices are specialized by {@link LongIndexCodec}.
+     */
+    protected IPage(File dir, KeyCodec keyCodec, Codec<V> valueCodec, int throughout, long flushMillis, int flushCount)
+            throws Exception {
+        this(dir, keyCodec, valueCodec, throughout, flushMillis, flushCount,
+             new CallbackDispatcher(CallbackDispatcher.STRIPES), false);
+    }
+
+    /**
+     * Open read only, e.g. a checkpoint, no file would be changed and writes would be rejected. It can't be opened if
+     * recovery is required.
+     */
+    protected IPage(File dir, KeyCodec keyCodec, Codec<V> valueCodec, boolean readOnly) throws Exception {
+        this(dir, keyCodec, valueCodec, 1, TIMEOUT * 2, Integer.MAX_VALUE, // heartbeat in the default timeout
+             new CallbackDispatcher(CallbackDispatcher.STRIPES), readOnly);
+    }
+
+    private IPage(File dir, KeyCodec keyCodec, Codec<V> valueCodec, int throughout, long flushMillis, int flushCount,
+                  CallbackDispatcher callbackDispatcher, boolean readOnly) throws Exception {
         super("IPage@" + dir.getName(), flushMillis / 2);
+        this.callbackDispatcher = callbackDispatcher;
+        this.readOnly = readOnly;
+
+        RangeIndexCodec rangeIndexCodec = keyCodec instanceof LongKeyCodec
+                ? new LongIndexCodec()
+                : new RangeIndexCodec(keyCodec);
+        EntryCodec<V> entryCodec = new EntryCodec<V>(keyCodec, valueCodec);
 
-        Md5KeyCodec keyCodec = new Md5KeyCodec();
-        RangeIndexCodec rangeIndexCodec = new RangeIndexCodec(keyCodec);
-        Snapshot<V> snapshot = new Snapshot<V>(dir, rangeIndexCodec, new EntryCodec<V>(keyCodec, valueCodec));
+        Recovery<V> recovery = new Recovery<V>(dir, rangeIndexCodec, rangeIndexCodec, entryCodec);
+        boolean recoveryRequired = recovery.isRequired();
+        checkState(!readOnly || !recoveryRequired, "Can't open %s read only, which requires recovery.", dir);
+        long recoveryElapseMillis = recoveryRequired ? recovery.run() : 0L;
+
+        Snapshot<V> snapshot = new Snapshot<V>(dir, rangeIndexCodec, entryCodec, readOnly);
 
         defragPolicy = new DefragPolicy();
         this.storage = new Storage<V>(snapshot, rangeIndexCodec, defragPolicy);
-        this.ephemerons = new Ephemerons<V>() {
+        this.storage.recovered(recoveryElapseMillis);
+        Arena arena = Ephemerons.OFF_HEAP ? new Arena() : null;
+        this.ephemerons = new Ephemerons<V>(callbackDispatcher, arena, valueCodec, MemoryBudget.SHARED) {
             @Override
             protected void requestFlush(
                     final Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
                     final Collection<WriteOperation<Key>> removes,
                     final FutureCallback<Void> flushedCallback
             ) {
-                submit(new Callable<Void>() {
+                execute(new Runnable() {
                     @Override
-                    public Void call() throws Exception {
-                        storage.merge(addOrUpdates, removes, flushedCallback);
-                        return Nils.VOID;
-                    }
+                    public void run() { storage.merge(addOrUpdates, removes, flushedCallback); }
                 });
             }
 
@@ -84,38 +147,206 @@ public abstract class IPage<K, V> extends Actor implements Iterable<V> {
             }
         });
 
+        this.tryCallByCount = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callByCountOrElapse.tryCallByCount();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
         new MBeanRegistration(ephemerons, objectName(EPHEMERONS)).register();
         new MBeanRegistration(storage, objectName(STORAGE)).register();
         new MBeanRegistration(defragPolicy, objectName(DEFRAG_POLICY)).register();
+        new MBeanRegistration(callbackDispatcher, objectName(CALLBACK_DISPATCHER)).register();
+        new MBeanRegistration(DirectBufferPool.SHARED, objectName(DIRECT_BUFFER_POOL)).register();
+        new MBeanRegistration(MemoryBudget.SHARED, objectName(MEMORY_BUDGET)).register();
     }
 
     public void add(final K key, final V value, FutureCallback<Void> removedOrDurableCallback) {
+        checkWritable();
         ephemerons.add(transform(key), value, removedOrDurableCallback);
         tryCallByCount();
     }
 
+    /** The entry would expire at the end of the window its time to live falls in, see ipage.ttl.window.millis. */
+    public void add(final K key, final V value, long ttl, TimeUnit unit, FutureCallback<Void> removedOrDurableCallback) {
+        checkArgument(ttl >= 0, "Negative ttl %s", ttl);
+        checkWritable();
+        long now = System.currentTimeMillis();
+        long millis = unit.toMillis(ttl);
+        long expireAt = millis >= ExpiringEntry.NEVER - now ? ExpiringEntry.NEVER : ExpiringEntry.windowEndOf(now + millis);
+        ephemerons.add(transform(key), value, expireAt, removedOrDurableCallback);
+        tryCallByCount();
+    }
+
     public void remove(K key, FutureCallback<Void> appliedCallback) {
+        checkWritable();
         ephemerons.remove(transform(key), appliedCallback);
         tryCallByCount();
     }
 
     public V get(K key) { return ephemerons.get(transform(key)); }
 
+    /**
+     * Unlike {@link #add(Object, Object, FutureCallback)}, it never blocks on flow control, the future would fail with
+     * {@link RejectedExecutionException} if there are too many pending writes, then the caller should back off.
+     *
+     * @return a future would be done once the entry is durable or removed.
+     */
+    public ListenableFuture<Void> addAsync(K key, V value) {
+        checkWritable();
+        CallbackFuture<Void> future = new CallbackFuture<Void>();
+        if (!ephemerons.tryAdd(transform(key), value, ExpiringEntry.NEVER, future)) {
+            future.onFailure(new RejectedExecutionException("Too many pending writes, retry later."));
+            return future;
+        }
+        tryCallByCount();
+        return future;
+    }
+
+    /** @return a future would be done once the removing is applied. */
+    public ListenableFuture<Void> removeAsync(K key) {
+        CallbackFuture<Void> future = new CallbackFuture<Void>();
+        remove(key, future);
+        return future;
+    }
+
+    /** @return a future completed by the callback executor, so that the caller never blocks on reading pages. */
+    public ListenableFuture<V> getAsync(K key) {
+        final CallbackFuture<V> future = new CallbackFuture<V>();
+        try {
+            final Key transformed = transform(key);
+            callbackDispatcher.execute(transformed, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.onSuccess(ephemerons.get(transformed));
+                    } catch (RuntimeException e) {
+                        future.onFailure(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            future.onFailure(e);
+        }
+        return future;
+    }
+
+    /** Values are read page by page lazily, no more than requested by the subscriber. */
+    public void subscribe(Subscriber<? super V> subscriber) {
+        subscriber.onSubscribe(new IteratorSubscription<V>(iterator(), subscriber));
+    }
+
+    /**
+     * Values not flushed yet are invisible. The iterator pins files it reads until the end, so one left early should be
+     * closed, or else the files would be kept until it is collected by GC.
+     */
     @Override
-    public Iterator<V> iterator() { return storage.iterator(); }
+    public CloseableIterator<V> iterator() { return storage.iterator(); }
+
+    /**
+     * Visit values by concurrent threads, pages are split into byte ranges and every split is scanned sequentially.
+     * Like {@link #iterator()}, values not flushed yet are invisible.
+     *
+     * @param visitor     would be applied by threads concurrently in no order, so it should be thread safe.
+     * @param parallelism number of threads to scan.
+     */
+    public void foreach(Function<? super V, Void> visitor, int parallelism) {
+        ParallelScan<V> scan;
+        try {
+            scan = submit(new Callable<ParallelScan<V>>() {
+                @Override
+                public ParallelScan<V> call() throws Exception { return storage.parallelScan(); }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        scan.run(visitor, parallelism);
+    }
+
+    /**
+     * Export flushed values at this point in time to the target, which could be opened as another {@link IPage} later,
+     * or read only by {@link #IPage(File, KeyCodec, Codec, boolean)}. Files are hard linked if possible, so it would be
+     * done in milliseconds regardless of data size, or else copied. Like {@link #iterator()}, values not flushed yet are
+     * invisible.
+     *
+     * @param target should be absent or empty.
+     */
+    public void checkpoint(File target) {
+        Checkpoint checkpoint;
+        try {
+            checkpoint = submit(new Callable<Checkpoint>() {
+                @Override
+                public Checkpoint call() throws Exception { return storage.checkpoint(); }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        try {
+            checkpoint.exportTo(target);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Like {@link #iterator()}, values not flushed yet are invisible.
+     *
+     * @param from inclusive, null means from the first.
+     * @param to   exclusive, null means to the last.
+     *
+     * @return values in order of transformed keys.
+     */
+    public CloseableIterator<V> scan(K from, K to) {
+        return storage.scan(from == null ? null : transform(from), to == null ? null : transform(to));
+    }
+
+    /**
+     * Like {@link #scan(Object, Object)} of all, but keys are streamed from indices without reading pages.
+     *
+     * @return transformed keys in order.
+     */
+    public CloseableIterator<Key> keys() { return storage.keys(); }
+
+    /**
+     * Like {@link #scan(Object, Object)} of all, but values of a chunk of keys are read in offset order, so that pages
+     * are read mostly sequentially.
+     *
+     * @return entries of transformed keys in order.
+     */
+    public CloseableIterator<Entry<Key, V>> entries() { return storage.entries(); }
 
     @Override
     public void stop() {
         super.stop();
+        storage.stop();
+        callbackDispatcher.stop();
+        ephemerons.clear();
         try {
             new MBeanRegistration(ephemerons, objectName(EPHEMERONS)).unregister();
             new MBeanRegistration(storage, objectName(STORAGE)).unregister();
             new MBeanRegistration(defragPolicy, objectName(DEFRAG_POLICY)).unregister();
+            new MBeanRegistration(callbackDispatcher, objectName(CALLBACK_DISPATCHER)).unregister();
+            new MBeanRegistration(DirectBufferPool.SHARED, objectName(DIRECT_BUFFER_POOL)).unregister();
+            new MBeanRegistration(MemoryBudget.SHARED, objectName(MEMORY_BUDGET)).unregister();
         } catch (Exception ignored) { }
     }
 
     @Override
-    protected void heartbeat() throws Throwable { callByCountOrElapse.tryCallByElapse(); }
+    protected void heartbeat() throws Throwable {
+        if (!readOnly) callByCountOrElapse.tryCallByElapse(); // even an empty flushing would change files
+    }
 
     @Override
     protected boolean onInterruptedBy(Throwable t) {
@@ -123,17 +354,11 @@ public abstract class IPage<K, V> extends Actor implements Iterable<V> {
         return super.onInterruptedBy(t);    // TODO log error
     }
 
-    protected abstract Md5Key transform(K key);
+    protected abstract Key transform(K key);
 
-    private void tryCallByCount() {
-        submit(new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                callByCountOrElapse.tryCallByCount();
-                return Nils.VOID;
-            }
-        });
-    }
+    private void tryCallByCount() { execute(tryCallByCount); }
+
+    private void checkWritable() { checkState(!readOnly, "Can't write into a read only store."); }
 
     private ObjectName objectName(String type) throws MalformedObjectNameException {
         return new ObjectNameBuilder("com.github.zhongl.ipage").withType(type).withName(toString()).build();
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.io.Reclaimer;
+import com.github.zhongl.page.*;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.io.Closeables;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * {@link IQueue} is a durable FIFO queue on top of {@link Binder}, without any index.
+ * <p/>
+ * Offered values are appended as a page on flushing, and consumed in order through page iterators from a persisted
+ * cursor of each named consumer. Acknowledging just advances the cursor, head pages would be reclaimed once every
+ * cursor has passed them.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class IQueue<V> {
+    static final String CURSORS = "cursors";
+    private static final String NO_INDICES = "none";
+
+    private final File pagesDir;
+    private final File cursorsDir;
+    private final Codec<V> codec;
+    private final int flushCount;
+    private final Manifest manifest;
+    private final Binder<V> binder;
+    private final Reclaimer reclaimer;
+
+    @GuardedBy("this")
+    private final List<V> pending;
+
+    @GuardedBy("this")
+    private final Map<String, Consumer> consumers;
+
+    /** @param flushCount pending values would be flushed once reached it. */
+    public IQueue(File dir, Codec<V> codec, int flushCount) throws IOException {
+        this.pagesDir = new File(dir, Snapshot.PAGES);
+        this.cursorsDir = new File(dir, CURSORS);
+        this.codec = new FramedCodec<V>(codec);
+        this.flushCount = flushCount;
+        this.pending = new ArrayList<V>();
+        this.consumers = new HashMap<String, Consumer>();
+        this.reclaimer = new Reclaimer();
+
+        pagesDir.mkdirs();
+        cursorsDir.mkdirs();
+
+        manifest = new Manifest(pagesDir, new File(dir, Snapshot.HEAD), NO_INDICES);
+
+        List<Page<V>> list = new ArrayList<Page<V>>();
+        for (Map.Entry<String, Long> entry : manifest.pages().entrySet())
+            list.add(new Page<V>(new File(pagesDir, entry.getKey()), new Offset(entry.getValue()), this.codec));
+        long last = Math.max(manifest.sequence(), Sequence.lastIn(pagesDir, Snapshot.PAGE_SUFFIX));
+        binder = new Binder<V>(pagesDir, list, this.codec, new Sequence(last) {
+            @Override
+            protected void reserve(long limit) {
+                try {
+                    manifest.reserve(limit);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+
+        Set<String> referred = new HashSet<String>(manifest.pages().keySet());
+        referred.add(manifest.fileName());
+        for (File file : pagesDir.listFiles()) if (!referred.contains(file.getName())) file.delete(); // left by crash
+    }
+
+    public synchronized void offer(V value) throws IOException {
+        pending.add(value);
+        if (pending.size() >= flushCount) flush();
+    }
+
+    /** Append pending values as a page, then they would be durable and visible to consumers. */
+    public synchronized void flush() throws IOException {
+        if (pending.isEmpty()) return;
+        binder.append(pending, new Function<Element<V>, Void>() {
+            @Override
+            public Void apply(Element<V> element) { return null; }
+        });
+        pending.clear();
+        updateManifest();
+    }
+
+    /** @return the consumer with the name, which starts from the head if it is new. */
+    public synchronized Consumer consumer(String name) throws IOException {
+        Consumer consumer = consumers.get(name);
+        if (consumer != null) return consumer;
+        consumer = new Consumer(new File(cursorsDir, name));
+        consumers.put(name, consumer);
+        return consumer;
+    }
+
+    public long pendingReclaimBytes() { return reclaimer.pendingBytes(); }
+
+    public long diskOccupiedBytes() {
+        long bytes = 0L;
+        for (Page<V> page : binder.pages()) bytes += page.length();
+        return bytes;
+    }
+
+    private synchronized void reclaimPassedPages() throws IOException {
+        long min = Long.MAX_VALUE;
+        for (File file : cursorsDir.listFiles()) { // includes consumers not opened by now
+            Consumer consumer = consumers.get(file.getName());
+            min = Math.min(min, consumer == null ? Cursor.read(file) : consumer.acked);
+        }
+
+        List<Page<V>> pages = binder.pages();
+        List<Page<V>> passed = new ArrayList<Page<V>>();
+        for (Page<V> page : pages.subList(0, Math.max(0, pages.size() - 1))) { // tail keeps positions growing
+            if (page.nextPageNumber().value() > min) break;
+            passed.add(page);
+        }
+        if (passed.isEmpty()) return;
+
+        binder.drop(passed);
+        updateManifest();
+    }
+
+    @GuardedBy("this")
+    private void updateManifest() throws IOException {
+        Map<String, Long> pages = new LinkedHashMap<String, Long>();
+        for (Page<V> page : binder.pages()) pages.put(page.fileName(), page.number().value());
+
+        for (String name : manifest.update(pages, NO_INDICES)) {
+            reclaimer.retire(new File(pagesDir, name), new Predicate<File>() {
+                @Override
+                public boolean apply(File file) { return false; } // no one would read a passed page
+            });
+        }
+    }
+
+    private long headPosition() {
+        List<Page<V>> pages = binder.pages();
+        return pages.isEmpty() ? 0L : pages.get(0).number().value();
+    }
+
+    /** A consumer should be used by one thread. */
+    @NotThreadSafe
+    public class Consumer {
+        private final File file;
+
+        private volatile long acked;
+        private long position;
+        private Page<V> page;
+        private Iterator<Element<V>> iterator;
+
+        private Consumer(File file) throws IOException {
+            this.file = file;
+            this.acked = file.exists() ? Cursor.read(file) : headPosition();
+            this.position = acked;
+            if (!file.exists()) Cursor.write(file, acked);
+        }
+
+        /** @return next value, or null if nothing flushed after the position. */
+        public V poll() {
+            while (true) {
+                if (iterator == null && !open()) return null;
+
+                while (iterator.hasNext()) {
+                    Element<V> element = iterator.next();
+                    if (element.range().from() < position) continue; // polled but not acknowledged before reopen
+                    position = element.range().to();
+                    return element.value();
+                }
+
+                position = page.nextPageNumber().value();
+                iterator = null;
+            }
+        }
+
+        /** Advance the cursor to the position of last polled value. */
+        public void ack() throws IOException {
+            if (acked == position) return;
+            Cursor.write(file, position);
+            acked = position;
+            reclaimPassedPages();
+        }
+
+        /** @return bytes flushed but not acknowledged. */
+        public long lag() {
+            List<Page<V>> pages = binder.pages();
+            if (pages.isEmpty()) return 0L;
+            return pages.get(pages.size() - 1).nextPageNumber().value() - acked;
+        }
+
+        private boolean open() {
+            List<Page<V>> pages = binder.pages();
+            position = Math.max(position, headPosition());
+            for (Page<V> candidate : pages) {
+                if (candidate.nextPageNumber().value() <= position) continue;
+                page = candidate;
+                iterator = page.iterator();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Values are length prefixed in pages, so that any codec could be decoded from a page iterator. */
+    private static class FramedCodec<V> implements Codec<V> {
+        private final Codec<V> codec;
+
+        FramedCodec(Codec<V> codec) { this.codec = codec; }
+
+        @Override
+        public V decode(ByteBuffer byteBuffer) {
+            int length = byteBuffer.getInt();
+            byteBuffer.limit(byteBuffer.position() + length);
+            return codec.decode(byteBuffer);
+        }
+
+        @Override
+        public ByteBuffer encode(V value) {
+            ByteBuffer buffer = codec.encode(value);
+            return (ByteBuffer) ByteBuffer.allocate(4 + buffer.remaining()).putInt(buffer.remaining()).put(buffer).flip();
+        }
+    }
+
+    private static class Cursor {
+        static long read(File file) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                return randomAccessFile.readLong();
+            } finally {
+                Closeables.closeQuietly(randomAccessFile);
+            }
+        }
+
+        static void write(File file, long position) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.writeLong(position);
+                randomAccessFile.getChannel().force(false);
+            } finally {
+                Closeables.closeQuietly(randomAccessFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.CloseableIterator;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link IteratorSubscription} pulls values from a lazy iterator only as many as demanded, so that pages are read at
+ * the pace of the subscriber.
+ * <p/>
+ * Values are emitted by the thread requesting, a reentrant or concurrent request just adds demand to the emitting one.
+ * The iterator is closed by the emitting thread once the subscription is completed, failed or cancelled, so that files
+ * pinned by it would be released.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+class IteratorSubscription<V> implements Subscription {
+    private final CloseableIterator<V> iterator;
+    private final Subscriber<? super V> subscriber;
+    private final AtomicLong demand;
+    private final AtomicInteger emitting;
+
+    private volatile boolean done;
+
+    IteratorSubscription(CloseableIterator<V> iterator, Subscriber<? super V> subscriber) {
+        this.iterator = iterator;
+        this.subscriber = subscriber;
+        this.demand = new AtomicLong();
+        this.emitting = new AtomicInteger();
+    }
+
+    @Override
+    public void request(long n) {
+        if (done) return;
+        if (n <= 0) {
+            done = true;
+            emit(); // close
+            subscriber.onError(new IllegalArgumentException("Non-positive request " + n));
+            return;
+        }
+
+        long current;
+        do {
+            current = demand.get();
+            if (current == Long.MAX_VALUE) break;
+        } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+
+        emit();
+    }
+
+    @Override
+    public void cancel() {
+        done = true;
+        emit(); // close
+    }
+
+    private void emit() {
+        if (emitting.getAndIncrement() != 0) return;
+
+        int missed = 1;
+        while (true) {
+            try {
+                while (!done && demand.get() > 0) {
+                    if (!iterator.hasNext()) {
+                        done = true;
+                        iterator.close();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    V value = iterator.next();
+                    if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                    subscriber.onNext(value);
+                }
+            } catch (Throwable t) {
+                done = true;
+                iterator.close();
+                subscriber.onError(t);
+                return;
+            }
+
+            if (done) { // cancelled or failed by a bad request, and nothing would be emitted any more
+                iterator.close();
+                return;
+            }
+
+            missed = emitting.addAndGet(-missed);
+            if (missed == 0) return;
+        }
+    }
+}
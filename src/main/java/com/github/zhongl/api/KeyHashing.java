@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.Md5;
+
+/**
+ * {@link KeyHashing} digests bytes of a user key to a 128 bits {@link Md5Key}, which is supposed to be used by
+ * {@link IPage#transform(Object)}.
+ * <p/>
+ * {@link #MURMUR3_128} is much cheaper than {@link #MD5} without any allocation but the key, and it distributes as
+ * uniformly as the index expects. But keys hashed by different strategies are different, so a page should stick to one.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public enum KeyHashing {
+    MD5 {
+        @Override
+        public Md5Key hash(byte[] bytes) { return new Md5Key(Md5.md5(bytes)); }
+    },
+
+    /** MurmurHash3 x64 128 bits with seed 0, h1 and h2 are most and least significant longs. */
+    MURMUR3_128 {
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        @Override
+        public Md5Key hash(byte[] bytes) {
+            int length = bytes.length;
+            long h1 = 0L;
+            long h2 = 0L;
+
+            int blocks = length >>> 4;
+            for (int i = 0; i < blocks; i++) {
+                long k1 = littleEndianLong(bytes, i << 4);
+                long k2 = littleEndianLong(bytes, (i << 4) + 8);
+
+                h1 ^= mixK1(k1);
+                h1 = Long.rotateLeft(h1, 27);
+                h1 += h2;
+                h1 = h1 * 5 + 0x52dce729;
+
+                h2 ^= mixK2(k2);
+                h2 = Long.rotateLeft(h2, 31);
+                h2 += h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+
+            int tail = blocks << 4;
+            long k1 = 0L;
+            long k2 = 0L;
+            switch (length & 15) {
+                case 15: k2 ^= (long) (bytes[tail + 14] & 0xff) << 48;
+                case 14: k2 ^= (long) (bytes[tail + 13] & 0xff) << 40;
+                case 13: k2 ^= (long) (bytes[tail + 12] & 0xff) << 32;
+                case 12: k2 ^= (long) (bytes[tail + 11] & 0xff) << 24;
+                case 11: k2 ^= (long) (bytes[tail + 10] & 0xff) << 16;
+                case 10: k2 ^= (long) (bytes[tail + 9] & 0xff) << 8;
+                case 9:
+                    k2 ^= (long) (bytes[tail + 8] & 0xff);
+                    h2 ^= mixK2(k2);
+                case 8: k1 ^= (long) (bytes[tail + 7] & 0xff) << 56;
+                case 7: k1 ^= (long) (bytes[tail + 6] & 0xff) << 48;
+                case 6: k1 ^= (long) (bytes[tail + 5] & 0xff) << 40;
+                case 5: k1 ^= (long) (bytes[tail + 4] & 0xff) << 32;
+                case 4: k1 ^= (long) (bytes[tail + 3] & 0xff) << 24;
+                case 3: k1 ^= (long) (bytes[tail + 2] & 0xff) << 16;
+                case 2: k1 ^= (long) (bytes[tail + 1] & 0xff) << 8;
+                case 1:
+                    k1 ^= (long) (bytes[tail] & 0xff);
+                    h1 ^= mixK1(k1);
+            }
+
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+            return new Md5Key(h1, h2);
+        }
+
+        private long mixK1(long k1) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            return k1 * C2;
+        }
+
+        private long mixK2(long k2) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            return k2 * C1;
+        }
+
+        private long fmix(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            return k ^ (k >>> 33);
+        }
+
+        private long littleEndianLong(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xffL)
+                    | (bytes[offset + 1] & 0xffL) << 8
+                    | (bytes[offset + 2] & 0xffL) << 16
+                    | (bytes[offset + 3] & 0xffL) << 24
+                    | (bytes[offset + 4] & 0xffL) << 32
+                    | (bytes[offset + 5] & 0xffL) << 40
+                    | (bytes[offset + 6] & 0xffL) << 48
+                    | (bytes[offset + 7] & 0xffL) << 56;
+        }
+    };
+
+    public abstract Md5Key hash(byte[] bytes);
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.page.Page;
+import com.github.zhongl.page.Range;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link LiveBytes} counts live and total bytes of every page, to tell how much garbage each page holds without
+ * scanning indices.
+ * <p/>
+ * Ranges are located by page number, so a page removed from binder should still be tracked until the indices
+ * referring to it have been superseded.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+class LiveBytes {
+    private final ConcurrentSkipListMap<Long, Counter> counters = new ConcurrentSkipListMap<Long, Counter>();
+
+    /** Track the page if absent, with initial live bytes. */
+    public void track(Page<?> page, long live) {
+        counters.putIfAbsent(page.number().value(), new Counter(page.fileName(), page.length(), live));
+    }
+
+    /** Stop tracking pages not in the list. */
+    public void retain(Collection<? extends Page<?>> pages) {
+        Set<Long> numbers = new HashSet<Long>();
+        for (Page<?> page : pages) numbers.add(page.number().value());
+        counters.keySet().retainAll(numbers);
+    }
+
+    public void clear() { counters.clear(); }
+
+    public void increase(Range range) { add(range, range.length()); }
+
+    public void decrease(Range range) { add(range, -range.length()); }
+
+    public long live(Page<?> page) {
+        Counter counter = counters.get(page.number().value());
+        return counter == null ? 0L : counter.live.get();
+    }
+
+    /** @return percent of garbage bytes in the page. */
+    public int garbagePercent(Page<?> page) {
+        long length = page.length();
+        if (length == 0) return 0;
+        return (int) ((length - live(page)) * 100 / length);
+    }
+
+    public long liveBytes() {
+        long bytes = 0L;
+        for (Counter counter : counters.values()) bytes += counter.live.get();
+        return bytes;
+    }
+
+    public long totalBytes() {
+        long bytes = 0L;
+        for (Counter counter : counters.values()) bytes += counter.total;
+        return bytes;
+    }
+
+    /** @return live bytes by page file name. */
+    public Map<String, Long> byName() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (Counter counter : counters.values()) map.put(counter.name, counter.live.get());
+        return map;
+    }
+
+    /** @return garbage percent by page file name, sorted by page number. */
+    public String[] garbagePercents() {
+        List<String> list = new ArrayList<String>();
+        for (Counter counter : counters.values()) {
+            long percent = counter.total == 0 ? 0 : (counter.total - counter.live.get()) * 100 / counter.total;
+            list.add(counter.name + '\t' + percent + '%');
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    private void add(Range range, long delta) {
+        Map.Entry<Long, Counter> entry = counters.floorEntry(range.from());
+        if (entry == null || range.from() >= entry.getKey() + entry.getValue().total) return; // untracked
+        entry.getValue().live.addAndGet(delta);
+    }
+
+    private static class Counter {
+        final String name;
+        final long total;
+        final AtomicLong live;
+
+        Counter(String name, long total, long live) {
+            this.name = name;
+            this.total = total;
+            this.live = new AtomicLong(live);
+        }
+    }
+}
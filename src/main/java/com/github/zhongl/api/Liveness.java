@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Index;
+import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Range;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * {@link Liveness} holds start offsets of live ranges sorted in a primitive array, which is collected by streaming
+ * indices once.
+ * <p/>
+ * As elements of a page are scanned in offset order, telling whether an element is alive is just a merge-walk of the
+ * cursor, instead of a binary search of indices for every element.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@NotThreadSafe
+class Liveness<V> implements Predicate<Element<V>> {
+    private final long[] offsets;
+    private final int start;
+    private final int end;
+
+    private int cursor;
+    private long last = Long.MIN_VALUE;
+
+    /**
+     * @param size   of indices, as the capacity of offsets, so that no copy is needed for growing.
+     * @param accept return true if the live range should be collected, nullable means all.
+     */
+    Liveness(Iterator<Index> indices, int size, final Predicate<Range> accept) {
+        final long[] array = new long[size];
+        final int[] count = {0};
+
+        while (indices.hasNext()) {
+            indices.next().get(new Function<Range, Void>() {
+                @Override
+                public Void apply(Range range) {
+                    if (accept != null && !accept.apply(range)) return null;
+                    array[count[0]++] = range.from();
+                    return null;
+                }
+            });
+        }
+
+        this.offsets = array;
+        this.start = 0;
+        this.end = count[0];
+        Arrays.sort(offsets, 0, end);
+    }
+
+    private Liveness(long[] offsets, int start, int end) {
+        this.offsets = offsets;
+        this.start = start;
+        this.end = end;
+        this.cursor = start;
+    }
+
+    public int size() { return end - start; }
+
+    /** @return the i-th live offset in order. */
+    public long offset(int i) { return offsets[start + i]; }
+
+    /** @return live offsets in [from, to), which shares the sorted offsets but walks with its own cursor. */
+    public Liveness<V> slice(long from, long to) {
+        int lower = lowerBound(from);
+        return new Liveness<V>(offsets, lower, Math.max(lower, lowerBound(to)));
+    }
+
+    @Override
+    public boolean apply(Element<V> element) {
+        long from = element.range().from();
+        if (from < last) cursor = lowerBound(from); // scanning another page behind
+        last = from;
+
+        while (cursor < end && offsets[cursor] < from) cursor++;
+        return cursor < end && offsets[cursor] == from;
+    }
+
+    private int lowerBound(long from) {
+        int i = Arrays.binarySearch(offsets, start, end, from);
+        return i < 0 ? -(i + 1) : i;
+    }
+}
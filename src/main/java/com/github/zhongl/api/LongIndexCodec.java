@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.ColumnCodec;
+import com.github.zhongl.index.Index;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.page.Range;
+import com.google.common.base.Function;
+
+/**
+ * {@link LongIndexCodec} specializes indices of {@link LongKey} for sequence keyed stores, which are laid out in columns
+ * of 16 bytes per entry, the half of {@link Md5Key} ones.
+ * <p/>
+ * A range is packed in a non negative long as 39 bits of offset and 24 bits of length. A range whose offset is not less
+ * than 512G or length not less than 16M overflows, then it takes 24 bytes more, see {@link ColumnCodec#OVERFLOW}.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public class LongIndexCodec extends RangeIndexCodec implements ColumnCodec {
+    static final int OFFSET_BITS = 39;
+    static final int LENGTH_BITS = 24;
+
+    public LongIndexCodec() { super(new LongKeyCodec()); }
+
+    @Override
+    public long keyOf(Key key) { return ((LongKey) key).value(); }
+
+    @Override
+    public long clueOf(Index index) {
+        return index.get(new Function<Range, Long>() {
+            @Override
+            public Long apply(Range range) { return pack(range); }
+        });
+    }
+
+    @Override
+    public Index index(long key, long clue) { return index(new LongKey(key), unpack(clue)); }
+
+    /** @return the packed range, or {@link ColumnCodec#OVERFLOW} if it is out of bits. */
+    static long pack(Range range) {
+        long length = range.length();
+        if (range.from() < 0 || range.from() >= 1L << OFFSET_BITS) return OVERFLOW;
+        if (length < 0 || length >= 1L << LENGTH_BITS) return OVERFLOW;
+        return range.from() << LENGTH_BITS | length;
+    }
+
+    static Range unpack(long packed) {
+        long from = packed >>> LENGTH_BITS;
+        return new Range(from, from + (packed & ((1L << LENGTH_BITS) - 1)));
+    }
+}
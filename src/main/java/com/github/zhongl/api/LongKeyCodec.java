@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Key;
+import com.github.zhongl.index.KeyCodec;
+
+import java.nio.ByteBuffer;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class LongKeyCodec implements KeyCodec {
+    public static final int BYTE_LENGTH = 8;
+
+    @Override
+    public LongKey decode(ByteBuffer byteBuffer) { return new LongKey(byteBuffer.getLong()); }
+
+    @Override
+    public ByteBuffer encode(Key value) {
+        return (ByteBuffer) ByteBuffer.allocate(BYTE_LENGTH).putLong(((LongKey) value).value()).flip();
+    }
+
+    @Override
+    public int length() { return BYTE_LENGTH; }
+}
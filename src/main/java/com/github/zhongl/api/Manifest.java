@@ -0,0 +1,387 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * {@link Manifest} is a binary append-only log of page and indices edits, which replaces the text snapshot file.
+ * <p/>
+ * <pre>
+ * Log   := [Batch...]
+ * Batch := (length:int, crc32:long, [Edit...])
+ * Edit  := (type:byte, name:utf, offset:long) | (type:byte, name:utf) | (type:byte, name:utf, liveBytes:long)
+ *        | (type:byte, name:utf, expireAt:long) | (type:byte, "":utf, sequence:long)
+ * </pre>
+ * A batch is the edits of one update, the torn or corrupt tail batch would be truncated on loading. The log would be
+ * compacted to a new file with only one batch of current state if it grows too large, and only compacting replaces
+ * the HEAD file by renaming. Files are named by the sequence kept in the log, rather than {@link System#nanoTime()}.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@NotThreadSafe
+class Manifest {
+    static final String SUFFIX = ".m";
+    static final int COMPACT_BYTES = Integer.getInteger("ipage.manifest.compact.kb", 64) * 1024;
+
+    private static final byte ADD_PAGE = 1;
+    private static final byte REMOVE_PAGE = 2;
+    private static final byte ADD_INDICES = 3;
+    private static final byte REMOVE_INDICES = 4;
+    private static final byte LIVE_BYTES = 5;
+    private static final byte EXPIRE_AT = 6;
+    private static final byte SEQUENCE = 7;
+
+    private static final int HEADER_LENGTH = 4 + 8;
+
+    private final File dir;
+    private final File headFile;
+    private final Map<String, Long> pages;
+    private final Map<String, Long> liveBytes;
+    private final Map<String, Long> expiries;
+    private final boolean readOnly;
+
+    private String indices;
+    private File file;
+    private long sequence;
+
+    /** Load from the file referred by head file, or create a new one with initial indices if head file absent. */
+    Manifest(File dir, File headFile, String initialIndices) throws IOException {
+        this(dir, headFile, initialIndices, false);
+    }
+
+    private Manifest(File dir, File headFile, String initialIndices, boolean readOnly) throws IOException {
+        this.dir = dir;
+        this.headFile = headFile;
+        this.readOnly = readOnly;
+        this.pages = new HashMap<String, Long>();
+        this.liveBytes = new HashMap<String, Long>();
+        this.expiries = new HashMap<String, Long>();
+
+        String name = headFile.exists() ? Files.readFirstLine(headFile, Charsets.UTF_8) : null;
+
+        if (name == null) {
+            if (readOnly) throw new IllegalStateException("Missing manifest in head " + headFile);
+            indices = initialIndices;
+            compact();
+        } else if (name.endsWith(SUFFIX)) {
+            file = new File(dir, name);
+            load();
+        } else {
+            file = new File(dir, name);
+            loadLegacy(file);
+            if (!readOnly) compact();
+        }
+    }
+
+    /**
+     * Load from the file referred by head file without any change of files, e.g. the torn tail would be ignored but
+     * not truncated, and the loaded could not be updated.
+     */
+    static Manifest readOnly(File dir, File headFile) throws IOException {
+        return new Manifest(dir, headFile, null, true);
+    }
+
+    /** @return page file names and their offset, sorted by offset. */
+    public Map<String, Long> pages() {
+        List<Map.Entry<String, Long>> list = new ArrayList<Map.Entry<String, Long>>(pages.entrySet());
+        Collections.sort(list, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : list) map.put(entry.getKey(), entry.getValue());
+        return map;
+    }
+
+    public String indices() { return indices; }
+
+    /** @return live bytes of pages, a page would be absent if it has never been counted. */
+    public Map<String, Long> liveBytes() { return Collections.unmodifiableMap(liveBytes); }
+
+    /** @return expiry time of pages, a page would be absent if it never expires. */
+    public Map<String, Long> expiries() { return Collections.unmodifiableMap(expiries); }
+
+    public String fileName() { return file.getName(); }
+
+    /** @return the greatest number reserved for naming files, or 0 if it has never been reserved. */
+    public long sequence() { return sequence; }
+
+    /** Reserve numbers not greater than the limit for naming files, it would be durable before returning. */
+    public void reserve(long limit) throws IOException {
+        checkState(!readOnly, "Manifest %s is read only.", file);
+        if (limit <= sequence) return;
+        append(file, put(ByteBuffer.allocate(64), SEQUENCE, "", limit));
+        sequence = limit;
+    }
+
+    /** @return names of files are no longer referred, includes the replaced manifest file after compaction. */
+    public Collection<String> update(Map<String, Long> newPages, String newIndices) throws IOException {
+        return update(newPages, newIndices, Collections.<String, Long>emptyMap());
+    }
+
+    /**
+     * @param newLiveBytes live bytes of pages, only the changed would be logged.
+     *
+     * @return names of files are no longer referred, includes the replaced manifest file after compaction.
+     */
+    public Collection<String> update(Map<String, Long> newPages, String newIndices, Map<String, Long> newLiveBytes)
+            throws IOException {
+        return update(newPages, newIndices, newLiveBytes, Collections.<String, Long>emptyMap());
+    }
+
+    /**
+     * @param newLiveBytes live bytes of pages, only the changed would be logged.
+     * @param newExpiries  expiry time of pages, only the new would be logged.
+     *
+     * @return names of files are no longer referred, includes the replaced manifest file after compaction.
+     */
+    public Collection<String> update(
+            Map<String, Long> newPages,
+            String newIndices,
+            Map<String, Long> newLiveBytes,
+            Map<String, Long> newExpiries
+    ) throws IOException {
+        checkState(!readOnly, "Manifest %s is read only.", file);
+        Collection<String> obsoletes = new ArrayList<String>();
+        ByteBuffer batch = ByteBuffer.allocate(4096);
+
+        for (String name : new ArrayList<String>(pages.keySet())) {
+            if (newPages.containsKey(name)) continue;
+            batch = put(batch, REMOVE_PAGE, name, null);
+            pages.remove(name);
+            liveBytes.remove(name);
+            expiries.remove(name);
+            obsoletes.add(name);
+        }
+
+        if (!newIndices.equals(indices)) {
+            batch = put(batch, REMOVE_INDICES, indices, null);
+            batch = put(batch, ADD_INDICES, newIndices, null);
+            obsoletes.add(indices);
+            indices = newIndices;
+        }
+
+        for (Map.Entry<String, Long> entry : newPages.entrySet()) {
+            if (pages.containsKey(entry.getKey())) continue;
+            batch = put(batch, ADD_PAGE, entry.getKey(), entry.getValue());
+            pages.put(entry.getKey(), entry.getValue());
+        }
+
+        for (Map.Entry<String, Long> entry : newLiveBytes.entrySet()) {
+            if (!pages.containsKey(entry.getKey()) || entry.getValue().equals(liveBytes.get(entry.getKey()))) continue;
+            batch = put(batch, LIVE_BYTES, entry.getKey(), entry.getValue());
+            liveBytes.put(entry.getKey(), entry.getValue());
+        }
+
+        for (Map.Entry<String, Long> entry : newExpiries.entrySet()) {
+            if (!pages.containsKey(entry.getKey()) || expiries.containsKey(entry.getKey())) continue;
+            batch = put(batch, EXPIRE_AT, entry.getKey(), entry.getValue());
+            expiries.put(entry.getKey(), entry.getValue());
+        }
+
+        if (batch.position() == 0) return obsoletes;
+
+        if (file.length() + batch.position() > Math.max(COMPACT_BYTES, stateBytes() * 4)) {
+            File compacted = file;
+            compact();
+            obsoletes.add(compacted.getName());
+        } else {
+            append(file, batch);
+        }
+
+        return obsoletes;
+    }
+
+    private void compact() throws IOException {
+        File newFile;
+        do {
+            newFile = new File(dir, ++sequence + SUFFIX); // named by the sequence, which is persisted in itself
+        } while (newFile.exists()); // e.g. left by crash before HEAD was replaced
+
+        ByteBuffer batch = ByteBuffer.allocate(4096);
+        batch = put(batch, ADD_INDICES, indices, null);
+        for (Map.Entry<String, Long> entry : pages().entrySet())
+            batch = put(batch, ADD_PAGE, entry.getKey(), entry.getValue());
+        for (Map.Entry<String, Long> entry : liveBytes.entrySet())
+            batch = put(batch, LIVE_BYTES, entry.getKey(), entry.getValue());
+        for (Map.Entry<String, Long> entry : expiries.entrySet())
+            batch = put(batch, EXPIRE_AT, entry.getKey(), entry.getValue());
+        batch = put(batch, SEQUENCE, "", sequence);
+
+        append(newFile, batch);
+        replaceHead(newFile.getName());
+        file = newFile;
+    }
+
+    /** Write a temporary file and rename it to HEAD, so that HEAD would never be torn by crash. */
+    private void replaceHead(String name) throws IOException {
+        File tmp = new File(headFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            stream.write(name.getBytes(Charsets.UTF_8));
+            stream.getChannel().force(false);
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+        if (!tmp.renameTo(headFile)) throw new IOException("Can't rename " + tmp + " to " + headFile);
+    }
+
+    private long stateBytes() {
+        long bytes = HEADER_LENGTH + 3 + indices.length() + 3 + 8;
+        for (String name : pages.keySet()) bytes += 3 + name.length() + 8;
+        for (String name : liveBytes.keySet()) bytes += 3 + name.length() + 8;
+        for (String name : expiries.keySet()) bytes += 3 + name.length() + 8;
+        return bytes;
+    }
+
+    private void load() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.toByteArray(file));
+        int valid = 0;
+
+        while (buffer.remaining() >= HEADER_LENGTH) {
+            int length = buffer.getInt();
+            long crc32 = buffer.getLong();
+            if (length < 0 || length > buffer.remaining()) break;
+
+            ByteBuffer payload = (ByteBuffer) buffer.slice().limit(length);
+            if (checksum(payload) != crc32) break;
+
+            try {
+                apply(payload);
+            } catch (BufferUnderflowException e) {
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            valid = buffer.position();
+        }
+
+        if (valid < buffer.capacity() && !readOnly) truncate(valid); // torn tail of last update
+        if (indices == null) throw new IllegalStateException("Missing indices in manifest " + file);
+    }
+
+    private void apply(ByteBuffer payload) {
+        while (payload.hasRemaining()) {
+            byte type = payload.get();
+            byte[] bytes = new byte[payload.getShort()];
+            payload.get(bytes);
+            String name = new String(bytes, Charsets.UTF_8);
+
+            switch (type) {
+                case ADD_PAGE:
+                    pages.put(name, payload.getLong());
+                    break;
+                case REMOVE_PAGE:
+                    pages.remove(name);
+                    liveBytes.remove(name);
+                    expiries.remove(name);
+                    break;
+                case LIVE_BYTES:
+                    liveBytes.put(name, payload.getLong());
+                    break;
+                case EXPIRE_AT:
+                    expiries.put(name, payload.getLong());
+                    break;
+                case SEQUENCE:
+                    sequence = Math.max(sequence, payload.getLong());
+                    break;
+                case ADD_INDICES:
+                    indices = name;
+                    break;
+                case REMOVE_INDICES:
+                    if (name.equals(indices)) indices = null;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown edit type " + type + " in manifest " + file);
+            }
+        }
+    }
+
+    private void loadLegacy(File snapshotFile) throws IOException {
+        for (String line : Files.readLines(snapshotFile, Charset.defaultCharset())) {
+            Iterator<String> iterator = Splitter.on('\t').omitEmptyStrings().trimResults().split(line).iterator();
+            String token = iterator.next();
+            if ("P".equals(token)) pages.put(iterator.next(), Long.parseLong(iterator.next()));
+            if ("I".equals(token)) indices = iterator.next();
+        }
+    }
+
+    private void truncate(int length) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try {
+            stream.getChannel().truncate(length);
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    private static void append(File file, ByteBuffer batch) throws IOException {
+        batch.flip();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(batch.remaining()).putLong(checksum(batch)).flip();
+
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer[] buffers = {header, batch};
+            while (batch.hasRemaining()) channel.write(buffers);
+            channel.force(false);
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    private static ByteBuffer put(ByteBuffer batch, byte type, String name, Long offset) {
+        byte[] bytes = name.getBytes(Charsets.UTF_8);
+        int length = 1 + 2 + bytes.length + (offset == null ? 0 : 8);
+
+        if (batch.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + length));
+            batch.flip();
+            batch = larger.put(batch);
+        }
+
+        batch.put(type).putShort((short) bytes.length).put(bytes);
+        if (offset != null) batch.putLong(offset);
+        return batch;
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        return crc32.getValue();
+    }
+}
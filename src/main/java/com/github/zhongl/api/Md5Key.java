@@ -19,34 +19,47 @@ import com.github.zhongl.index.Key;
 import com.github.zhongl.util.Md5;
 
 import javax.annotation.concurrent.ThreadSafe;
-import java.math.BigInteger;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+/**
+ * {@link Md5Key} holds the 16 bytes digest as two big-endian longs, which are compared as unsigned, the same order of
+ * the bytes.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
 @ThreadSafe
 public class Md5Key implements Key {
 
     public static final int BYTE_LENGTH = 16;
 
-    private final byte[] bytes;
-
-    final BigInteger bigInteger;
+    private final long most;
+    private final long least;
+    private final int hashCode;
 
     public Md5Key(byte[] bytes) {
-        checkArgument(bytes.length == BYTE_LENGTH, "Invalid bytes length %s", bytes.length);
-        this.bytes = bytes;
-        bigInteger = new BigInteger(1, bytes);
+        this(checkLength(bytes).getLong(), ByteBuffer.wrap(bytes, 8, 8).getLong());
+    }
+
+    public Md5Key(long most, long least) {
+        this.most = most;
+        this.least = least;
+        long h = most * 31 + least;
+        this.hashCode = (int) (h ^ (h >>> 32));
     }
 
     public byte[] toBytes() {
-        return bytes;
+        return ByteBuffer.allocate(BYTE_LENGTH).putLong(most).putLong(least).array();
     }
 
+    long most() { return most; }
+
+    long least() { return least; }
+
     @Override
     public String toString() {
-        return Md5.toHex(bytes);
+        return Md5.toHex(toBytes());
     }
 
     @Override
@@ -54,19 +67,32 @@ public class Md5Key implements Key {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Md5Key md5Key = (Md5Key) o;
-        return Arrays.equals(bytes, md5Key.bytes);
+        return most == md5Key.most && least == md5Key.least;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(bytes);
+        return hashCode;
     }
 
     @Override
     public int compareTo(Key that) {
         checkArgument(that.getClass() == getClass(), "Expect %s but %s", getClass(), that.getClass());
         if (this == that) return 0;
-        return bigInteger.compareTo(((Md5Key) that).bigInteger);
+        Md5Key key = (Md5Key) that;
+        int result = compareUnsigned(most, key.most);
+        return result != 0 ? result : compareUnsigned(least, key.least);
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static ByteBuffer checkLength(byte[] bytes) {
+        checkArgument(bytes.length == BYTE_LENGTH, "Invalid bytes length %s", bytes.length);
+        return ByteBuffer.wrap(bytes);
     }
 
 }
@@ -25,14 +25,14 @@ import java.nio.ByteBuffer;
 public class Md5KeyCodec implements KeyCodec {
     @Override
     public Md5Key decode(ByteBuffer byteBuffer) {
-        byte[] bytes = new byte[Md5Key.BYTE_LENGTH];
-        byteBuffer.get(bytes);
-        return new Md5Key(bytes);
+        long most = byteBuffer.getLong();
+        return new Md5Key(most, byteBuffer.getLong());
     }
 
     @Override
     public ByteBuffer encode(Key value) {
-        return (ByteBuffer) ByteBuffer.allocate(Md5Key.BYTE_LENGTH).put(((Md5Key) value).toBytes()).flip();
+        Md5Key key = (Md5Key) value;
+        return (ByteBuffer) ByteBuffer.allocate(Md5Key.BYTE_LENGTH).putLong(key.most()).putLong(key.least()).flip();
     }
 
     @Override
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Key;
+import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Page;
+import com.github.zhongl.util.Entry;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * {@link ParallelScan} visits live values of pages by concurrent threads.
+ * <p/>
+ * Start offsets of live ranges are collected from indices once as a {@link Liveness}, and pages are split into byte
+ * ranges at live offsets. Every split is scanned sequentially from its first live offset, and an element is alive only
+ * if it starts at the next live offset, so that no index is looked up during scanning.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+class ParallelScan<V> {
+    static final long SPLIT_BYTES = Integer.getInteger("ipage.parallel.scan.split.kb", 16 * 1024) * 1024L;
+
+    private final List<Split> splits;
+    private final Versions.Version version;
+
+    /**
+     * @param pages      to scan in order.
+     * @param liveness   of the same version with pages.
+     * @param splitBytes a split would be cut at the first live offset after these bytes.
+     * @param version    pins pages until the scan is run, nullable.
+     */
+    ParallelScan(
+            List<Page<Entry<Key, V>>> pages,
+            Liveness<Entry<Key, V>> liveness,
+            long splitBytes,
+            Versions.Version version
+    ) {
+        this.version = version;
+        List<Split> list = new ArrayList<Split>();
+        for (Page<Entry<Key, V>> page : pages) {
+            long end = page.nextPageNumber().value();
+            Liveness<Entry<Key, V>> live = liveness.slice(page.number().value(), end);
+            int size = live.size();
+            int i = 0;
+            while (i < size) {
+                long from = live.offset(i);
+                int j = i + 1;
+                while (j < size && live.offset(j) - from < splitBytes) j++;
+                long to = j < size ? live.offset(j) : end;
+                list.add(new Split(page, from, to, live.slice(from, to)));
+                i = j;
+            }
+        }
+        this.splits = Collections.unmodifiableList(list);
+    }
+
+    public int splits() { return splits.size(); }
+
+    /**
+     * @param visitor     would be applied by threads concurrently in no order.
+     * @param parallelism number of threads to scan splits.
+     */
+    public void run(final Function<? super V, Void> visitor, int parallelism) {
+        try {
+            if (!splits.isEmpty()) scan(visitor, parallelism);
+        } finally {
+            if (version != null) version.release();
+        }
+    }
+
+    private void scan(final Function<? super V, Void> visitor, int parallelism) {
+        ExecutorService service = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallelism, splits.size())),
+                new ThreadFactoryBuilder().setNameFormat("parallel-scan-%d").setDaemon(true).build()
+        );
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(splits.size());
+            for (final Split split : splits) {
+                futures.add(service.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        split.scan(visitor);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    private class Split {
+        final Page<Entry<Key, V>> page;
+        final long from;
+        final long to;
+        final Liveness<Entry<Key, V>> liveness;
+
+        Split(Page<Entry<Key, V>> page, long from, long to, Liveness<Entry<Key, V>> liveness) {
+            this.page = page;
+            this.from = from;
+            this.to = to;
+            this.liveness = liveness;
+        }
+
+        void scan(Function<? super V, Void> visitor) {
+            Iterator<Element<Entry<Key, V>>> iterator = page.iterator(from, to);
+            while (iterator.hasNext()) {
+                Element<Entry<Key, V>> element = iterator.next();
+                if (liveness.apply(element)) visitor.apply(element.value().value());
+            }
+        }
+    }
+}
@@ -40,7 +40,8 @@ public class RangeIndexCodec implements IndexCodec, IndexFactory {
 
     @Override
     public ByteBuffer encode(Index value) {
-        final ByteBuffer buffer = ByteBuffer.allocate(length()).put(keyCodec.encode(value.key()));
+        ByteBuffer key = keyCodec.encode(value.key());
+        final ByteBuffer buffer = ByteBuffer.allocate(key.remaining() + 16).put(key);
 
         value.get(new Function<Range, Void>() {
             @Override
@@ -54,7 +55,7 @@ public class RangeIndexCodec implements IndexCodec, IndexFactory {
 
     @Override
     public int length() {
-        return keyCodec.length() + 16;
+        return keyCodec.length() == VARIABLE ? VARIABLE : keyCodec.length() + 16;
     }
 
     @Override
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.index.*;
+import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Offset;
+import com.github.zhongl.page.Page;
+import com.github.zhongl.page.Range;
+import com.github.zhongl.page.Sequence;
+import com.github.zhongl.util.Entry;
+import com.google.common.base.Function;
+import com.google.common.base.Stopwatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * {@link Recovery} rebuilds the indices from all pages if the manifest or indices file is lost or corrupt.
+ * <p/>
+ * Pages are scanned in parallel, the newest range of a key would be kept unless it has been removed by a tombstone
+ * in {@link RemoveLog}, then all sorted runs are merged to a new indices file by {@link ExternalSorter}.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+class Recovery<V> {
+    static final boolean FORCE = Boolean.getBoolean("ipage.recovery.force");
+    static final int RUN_SIZE = Integer.getInteger("ipage.recovery.run.size", 1 << 20);
+
+    private final Logger logger;
+    private final File headFile;
+    private final File pagesDir;
+    private final File removesDir;
+    private final IndexCodec indexCodec;
+    private final IndexFactory indexFactory;
+    private final Codec<Entry<Key, V>> entryCodec;
+
+    Recovery(File dir, IndexCodec indexCodec, IndexFactory indexFactory, Codec<Entry<Key, V>> entryCodec) {
+        this.logger = Logger.getLogger(getClass().getName());
+        this.headFile = new File(dir, Snapshot.HEAD);
+        this.pagesDir = new File(dir, Snapshot.PAGES);
+        this.removesDir = new File(dir, Snapshot.REMOVES);
+        this.indexCodec = indexCodec;
+        this.indexFactory = indexFactory;
+        this.entryCodec = entryCodec;
+    }
+
+    public boolean isRequired() {
+        if (!pagesDir.exists()) return false;
+        if (FORCE) return true;
+        if (!headFile.exists()) return !pageFiles().isEmpty();
+
+        try {
+            Manifest manifest = Manifest.readOnly(pagesDir, headFile);
+            if (!new File(pagesDir, manifest.indices()).exists()) return true;
+            for (String name : manifest.pages().keySet()) if (!new File(pagesDir, name).exists()) return true;
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    /** @return elapse milliseconds of recovery. */
+    public long run() throws IOException {
+        Stopwatch stopwatch = new Stopwatch().start();
+
+        final Map<Key, Long> tombstones = tombstones();
+        final List<Page<Entry<Key, V>>> pages = pages();
+        final ExternalSorter sorter = new ExternalSorter(pagesDir, indexCodec);
+
+        ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < pages.size(); i++) {
+                final int sequence = i;
+                futures.add(service.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        scan(sequence, pages.get(sequence), tombstones, sorter);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) future.get();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            service.shutdownNow();
+        }
+
+        File indicesFile = sorter.merge();
+        writeManifest(pages, indicesFile, lastSequence(tombstones));
+
+        long elapse = stopwatch.stop().elapsedMillis();
+        logger.info("Recovered " + pages.size() + " pages in " + elapse + " ms.");
+        return elapse;
+    }
+
+    private void scan(int sequence, Page<Entry<Key, V>> page, Map<Key, Long> tombstones, ExternalSorter sorter)
+            throws IOException {
+        long mark = RemoveLog.numberOf(new File(page.fileName()));
+        SortedMap<Key, Range> run = new TreeMap<Key, Range>();
+        int spilled = 0;
+
+        for (Element<Entry<Key, V>> element : page) {
+            Key key = element.value().key();
+            Long removed = tombstones.get(key);
+            if (removed != null && removed >= mark) continue;
+            run.put(key, element.range()); // newer element overwrites elder one in the same page.
+            if (run.size() < RUN_SIZE) continue;
+            sorter.spill(sequenceOf(sequence, spilled++), indices(run));
+            run.clear();
+        }
+
+        if (!run.isEmpty()) sorter.spill(sequenceOf(sequence, spilled), indices(run));
+    }
+
+    private Map<Key, Long> tombstones() {
+        Map<Key, Long> map = new HashMap<Key, Long>();
+        for (Index index : RemoveLog.read(RemoveLog.existFilesIn(removesDir), indexCodec)) {
+            long mark = index.get(new Function<Range, Long>() {
+                @Override
+                public Long apply(Range range) { return range.from(); }
+            });
+            Long last = map.get(index.key());
+            if (last == null || last < mark) map.put(index.key(), mark);
+        }
+        return map;
+    }
+
+    private List<Page<Entry<Key, V>>> pages() {
+        List<Page<Entry<Key, V>>> list = new ArrayList<Page<Entry<Key, V>>>();
+        long offset = 0L;
+        for (File file : pageFiles()) {
+            list.add(new Page<Entry<Key, V>>(file, new Offset(offset), entryCodec));
+            offset += file.length();
+        }
+        return list;
+    }
+
+    /** @return page files sorted by their creation order. */
+    private List<File> pageFiles() {
+        List<File> list = new ArrayList<File>();
+        for (File file : pagesDir.listFiles()) {
+            if (file.getName().endsWith(Snapshot.PAGE_SUFFIX) && file.length() > 0) list.add(file);
+        }
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = RemoveLog.numberOf(a);
+                long y = RemoveLog.numberOf(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    /** @return not less than any number of files and marks of tombstones, so new pages would be newer than them. */
+    private long lastSequence(Map<Key, Long> tombstones) {
+        long last = Math.max(
+                Sequence.lastIn(pagesDir, Snapshot.PAGE_SUFFIX),
+                Sequence.lastIn(removesDir, RemoveLog.SUFFIX)
+        );
+        for (Long mark : tombstones.values()) last = Math.max(last, mark);
+        return last;
+    }
+
+    private void writeManifest(List<Page<Entry<Key, V>>> pages, File indicesFile, long lastSequence)
+            throws IOException {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        for (Page<Entry<Key, V>> page : pages) map.put(page.fileName(), page.number().value());
+
+        headFile.delete();
+        Manifest manifest = new Manifest(pagesDir, headFile, indicesFile.getName());
+        manifest.update(map, indicesFile.getName());
+        manifest.reserve(lastSequence);
+    }
+
+    private Iterable<Index> indices(SortedMap<Key, Range> run) {
+        List<Index> list = new ArrayList<Index>(run.size());
+        for (Map.Entry<Key, Range> entry : run.entrySet())
+            list.add(indexFactory.index(entry.getKey(), entry.getValue()));
+        return list;
+    }
+
+    private static long sequenceOf(int page, int spilled) { return ((long) page << 32) | spilled; }
+}
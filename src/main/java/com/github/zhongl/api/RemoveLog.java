@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Index;
+import com.github.zhongl.index.IndexCodec;
+import com.github.zhongl.io.IterableFile;
+import com.github.zhongl.page.Sequence;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Closeables;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * {@link RemoveLog} keeps tombstones of removed keys for {@link Recovery}.
+ * <p/>
+ * A tombstone is an index with an empty range, whose position is the mark of the newest page at removing, which means
+ * the key in the page not newer than the mark are removed. Pages and log files are numbered by the same
+ * {@link Sequence}, so marks are comparable across restarts.
+ * <p/>
+ * Log files would be rotated after defrag, and the old ones would be deleted by clean up.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@NotThreadSafe
+class RemoveLog {
+    static final String SUFFIX = ".r";
+
+    private final File dir;
+    private final IndexCodec codec;
+    private final Sequence sequence;
+    private final List<File> files;
+    private final List<File> retired;
+
+    /** @param sequence names log files, which is shared with pages. */
+    RemoveLog(File dir, IndexCodec codec, Sequence sequence) {
+        this.dir = dir;
+        this.codec = codec;
+        this.sequence = sequence;
+        this.files = new ArrayList<File>(existFilesIn(dir));
+        this.retired = new ArrayList<File>();
+        if (files.isEmpty()) rotate();
+    }
+
+    public void append(Collection<Index> tombstones) throws IOException {
+        if (tombstones.isEmpty()) return;
+        FileOutputStream stream = new FileOutputStream(current(), true);
+        try {
+            FileChannel channel = stream.getChannel();
+            for (Index tombstone : tombstones) {
+                ByteBuffer buffer = codec.encode(tombstone);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            channel.force(false);
+        } finally {
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    /** Tombstones logged before should be useless after defrag, they would be deleted by {@link #cleanUp()}. */
+    public void rotate() {
+        retired.addAll(files);
+        files.clear();
+        files.add(new File(dir, sequence.next() + SUFFIX));
+    }
+
+    public void cleanUp() {
+        for (File file : retired) file.delete();
+        retired.clear();
+    }
+
+    private File current() { return files.get(files.size() - 1); }
+
+    static List<File> existFilesIn(File dir) {
+        dir.mkdirs();
+        File[] array = dir.listFiles();
+        List<File> list = new ArrayList<File>();
+        for (File file : array) if (file.getName().endsWith(SUFFIX)) list.add(file);
+        Collections.sort(list, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = numberOf(a);
+                long y = numberOf(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    static long numberOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.lastIndexOf('.')));
+    }
+
+    static Iterable<Index> read(List<File> files, final IndexCodec codec) {
+        List<Iterable<Index>> list = new ArrayList<Iterable<Index>>();
+        for (final File file : files) {
+            list.add(new Iterable<Index>() {
+                @Override
+                public Iterator<Index> iterator() {
+                    return new IterableFile(file).toIterator(new Function<ByteBuffer, Index>() {
+                        @Override
+                        public Index apply(ByteBuffer byteBuffer) {
+                            return codec.decode(byteBuffer);
+                        }
+                    });
+                }
+            });
+        }
+        return Iterables.concat(list);
+    }
+}
@@ -18,155 +18,453 @@ package com.github.zhongl.api;
 
 import com.github.zhongl.codec.Codec;
 import com.github.zhongl.index.*;
+import com.github.zhongl.io.Reclaimer;
+import com.github.zhongl.io.TokenBucket;
 import com.github.zhongl.page.*;
+import com.github.zhongl.util.CloseableIterator;
 import com.github.zhongl.util.Entry;
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.AbstractIterator;
-import com.google.common.io.Files;
+import com.google.common.collect.Iterators;
 
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 class Snapshot<V> {
+    static final String HEAD = "HEAD";
+    static final String PAGES = "pages";
+    static final String REMOVES = "removes";
+    static final String PAGE_SUFFIX = ".p";
+    static final int ENTRIES_CHUNK = Integer.getInteger("ipage.entries.chunk", 4096);
+
     private final File headFile;
     private final File pagesDir;
-    private final Indices indices;
     private final Binder<Entry<Key, V>> binder;
-//    private final Set<String> fileNames;
+    private final RemoveLog removeLog;
+    private final Manifest manifest;
+    private final Sequence sequence;
+    private final Reclaimer reclaimer;
+    private final LiveBytes liveBytes;
+    private final Map<String, Long> expiries;
+    private final IndexCodec indexCodec;
+    private final Versions<View<V>> versions;
+    private final List<Indices> retiredIndices;
+    private final boolean readOnly;
+
+    private volatile Indices indices;
+    private boolean recountAfterMerge;
 
     public Snapshot(File dir, final IndexCodec indexCodec, final Codec<Entry<Key, V>> entryCodec) {
-        headFile = new File(dir, "HEAD");
-        pagesDir = new File(dir, "pages");
-//        fileNames = new HashSet<String>();
+        this(dir, indexCodec, entryCodec, false);
+    }
+
+    /** @param readOnly loads without any change of files, e.g. a checkpoint, then it should never be merged. */
+    public Snapshot(File dir, final IndexCodec indexCodec, final Codec<Entry<Key, V>> entryCodec, boolean readOnly) {
+        this.readOnly = readOnly;
+        headFile = new File(dir, HEAD);
+        pagesDir = new File(dir, PAGES);
+        reclaimer = new Reclaimer();
+        liveBytes = new LiveBytes();
+        expiries = new ConcurrentHashMap<String, Long>();
+        retiredIndices = new ArrayList<Indices>();
+        this.indexCodec = indexCodec;
 
         try {
+            if (!readOnly && !pagesDir.exists()) {
+                pagesDir.mkdirs();
+                new File(pagesDir, "null.i").createNewFile();
+            }
 
-            FileParser parser = new FileParser() {
+            manifest = readOnly ? Manifest.readOnly(pagesDir, headFile) : new Manifest(pagesDir, headFile, "null.i");
 
+            File removesDir = new File(dir, REMOVES);
+            long last = Math.max(Sequence.lastIn(pagesDir, PAGE_SUFFIX), Sequence.lastIn(removesDir, RemoveLog.SUFFIX));
+            sequence = new Sequence(Math.max(manifest.sequence(), last)) {
                 @Override
-                protected void bindBuilders() {
-                    bind("P", new Builder() {
-                        @Override
-                        public Object build(Iterator<String> iterator) {
-                            return new Page<Entry<Key, V>>(
-                                    new File(pagesDir, iterator.next()),
-                                    new Offset(iterator.next()),
-                                    entryCodec
-                            );
-                        }
-                    });
-
-                    bind("I", new Builder() {
-                        @Override
-                        public Object build(Iterator<String> iterator) {
-                            return new Indices(new File(pagesDir, iterator.next()), indexCodec);
-                        }
-                    });
+                protected void reserve(long limit) {
+                    try {
+                        manifest.reserve(limit);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
                 }
             };
+            removeLog = readOnly ? null : new RemoveLog(removesDir, indexCodec, sequence);
 
-            if (!pagesDir.exists()) {
-                pagesDir.mkdirs();
-                Files.write(("I\tnull.i\n").getBytes(), new File(pagesDir, "null.s"));
-                new File(pagesDir, "null.i").createNewFile();
-            }
+            this.indices = new Indices(new File(pagesDir, manifest.indices()), indexCodec);
+            this.expiries.putAll(manifest.expiries());
 
-            if (!headFile.exists()) Files.write("null.s".getBytes(), headFile);
-
-            String snapshotFileName = Files.readFirstLine(headFile, Charset.defaultCharset());
-            if (snapshotFileName != null) parser.parse(new File(pagesDir, snapshotFileName));
+            List<Page<Entry<Key, V>>> list = new ArrayList<Page<Entry<Key, V>>>();
+            for (Map.Entry<String, Long> entry : manifest.pages().entrySet()) {
+                Page<Entry<Key, V>> page = new Page<Entry<Key, V>>(new File(pagesDir, entry.getKey()), new Offset(entry.getValue()), entryCodec);
+                list.add(page);
+            }
+            this.binder = new Binder<Entry<Key, V>>(pagesDir, list, entryCodec, sequence);
 
-            this.indices = parser.getFirst(Indices.class);
+            Map<String, Long> persisted = manifest.liveBytes();
+            if (persisted.keySet().containsAll(manifest.pages().keySet())) {
+                for (Page<Entry<Key, V>> page : list) liveBytes.track(page, persisted.get(page.fileName()));
+            } else {
+                recount(); // counted by an elder version or recovery
+            }
 
-            List<Page<Entry<Key, V>>> list = (List<Page<Entry<Key, V>>>) parser.getAll(Page.class);
-            this.binder = new Binder<Entry<Key, V>>(pagesDir, list, entryCodec);
+            if (!readOnly) deleteUnreferencedFiles();
+            versions = new Versions<View<V>>(new View<V>(list, indices), fileNamesOf(list, indices));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
     }
 
-    public void defrag(
-            Predicate<Element<Entry<Key, V>>> filter,
+    /**
+     * @param collector   collect live elements moved to new page.
+     * @param tokenBucket limits bytes scanned and transferred, nullable means unlimited.
+     */
+    public void defrag(Function<Element<Entry<Key, V>>, Void> collector, TokenBucket tokenBucket) throws IOException {
+        binder.defrag(new Liveness<Entry<Key, V>>(indices.iterator(), indices.size(), null), collector, tokenBucket);
+        removeLog.rotate();
+        liveBytes.clear(); // new page overlaps numbers of old ones
+        recountAfterMerge = true;
+    }
+
+    /**
+     * Select pages of most garbage whose alive bytes do not exceed the budget, and pin the current version for them.
+     *
+     * @param garbagePercent a page would not be compacted if its garbage percent is less than this.
+     * @param tokenBucket    limits bytes scanned and transferred, nullable means unlimited.
+     *
+     * @return null if there is no page worth to compact, or else a compaction should be installed or aborted.
+     */
+    public Compaction<V> prepareCompaction(long budgetBytes, int garbagePercent, TokenBucket tokenBucket) {
+        List<Page<Entry<Key, V>>> candidates = new ArrayList<Page<Entry<Key, V>>>();
+        for (Page<Entry<Key, V>> page : binder.pages()) {
+            if (expiries.containsKey(page.fileName())) continue; // reclaimed wholesale on expiring
+            if (liveBytes.garbagePercent(page) >= garbagePercent) candidates.add(page);
+        }
+
+        Collections.sort(candidates, new Comparator<Page<Entry<Key, V>>>() {
+            @Override
+            public int compare(Page<Entry<Key, V>> a, Page<Entry<Key, V>> b) {
+                return liveBytes.garbagePercent(b) - liveBytes.garbagePercent(a); // more garbage first
+            }
+        });
+
+        List<Page<Entry<Key, V>>> victims = new ArrayList<Page<Entry<Key, V>>>();
+        long cost = 0L;
+        for (Page<Entry<Key, V>> page : candidates) {
+            long alive = liveBytes.live(page);
+            if (cost + alive > budgetBytes) continue;
+            cost += alive;
+            victims.add(page);
+        }
+
+        if (victims.isEmpty()) return null;
+
+        // named before pinning, so that keys removed later would have greater marks than it for recovery.
+        File target = new File(pagesDir, sequence.next() + PAGE_SUFFIX);
+        Versions.Version<View<V>> version = versions.acquire();
+        Indices indices = version.state().indices;
+        File indicesFile = new File(pagesDir, indices.fileName());
+        return new Compaction<V>(
+                victims, indicesFile, indices.size(), target, binder, indexCodec, tokenBucket, version);
+    }
+
+    /**
+     * Install the rewritten page of a finished compaction, only keys still referring to victims are collected with
+     * their new ranges, the others have been updated or removed by intervening flushes.
+     */
+    public void install(Compaction<V> compaction, Function<Element<Key>, Void> collector) throws IOException {
+        try {
+            final Set<Page<Entry<Key, V>>> victimSet = new HashSet<Page<Entry<Key, V>>>(compaction.victims);
+            List<Element<Key>> reconciled = new ArrayList<Element<Key>>();
+
+            for (Element<Key> moved : compaction.moved()) {
+                Index index = indices.get(moved.value());
+                if (index == null) continue;
+                boolean inVictims = index.get(new Function<Range, Boolean>() {
+                    @Override
+                    public Boolean apply(Range range) { return victimSet.contains(binder.pageOf(range)); }
+                });
+                if (inVictims) reconciled.add(moved);
+            }
+
+            Page<Entry<Key, V>> page = binder.install(compaction.victims, compaction.target);
+            if (page == null) return;
+
+            trackNewPages();
+            long base = page.number().value();
+            for (Element<Key> moved : reconciled) {
+                Range range = moved.range();
+                collector.apply(new Element<Key>(moved.value(), new Range(base + range.from(), base + range.to())));
+            }
+        } finally {
+            compaction.version.release();
+        }
+    }
+
+    public void abort(Compaction<V> compaction) {
+        compaction.version.release();
+        compaction.target.delete();
+    }
+
+    public void append(
+            Collection<Entry<Key, V>> values,
             Function<Element<Entry<Key, V>>, Void> collector
     ) throws IOException {
-        binder.defrag(filter, collector);
+        append(values, collector, ExpiringEntry.NEVER);
     }
 
+    /** @param expireAt of the new page, all values would be dropped together at it. */
     public void append(
             Collection<Entry<Key, V>> values,
-            Function<Element<Entry<Key, V>>, Void> collector
+            Function<Element<Entry<Key, V>>, Void> collector,
+            long expireAt
     ) throws IOException {
         binder.append(values, collector);
+        List<Page<Entry<Key, V>>> pages = binder.pages();
+        if (expireAt != ExpiringEntry.NEVER) expiries.put(pages.get(pages.size() - 1).fileName(), expireAt);
+        trackNewPages();
     }
 
+    /**
+     * Drop expired pages wholesale.
+     *
+     * @param purged would be applied with keys still referring to the dropped pages.
+     */
+    public void dropExpired(long now, Function<Key, Void> purged) throws IOException {
+        final Set<Page<Entry<Key, V>>> expired = new LinkedHashSet<Page<Entry<Key, V>>>();
+        for (Page<Entry<Key, V>> page : binder.pages()) if (isExpired(page, now)) expired.add(page);
+        if (expired.isEmpty()) return;
+
+        // keys are collected by walking indices, so that dead pages would never be read.
+        Iterator<Index> iterator = indices.iterator();
+        while (iterator.hasNext()) {
+            Index index = iterator.next();
+            if (index.isRemoved()) continue;
+            Range range = index.get(Functions.<Range>identity());
+            if (expired.contains(binder.pageOf(range))) purged.apply(index.key());
+        }
+        binder.drop(expired);
+        liveBytes.retain(binder.pages());
+    }
+
+    public boolean hasExpiringPages() { return !expiries.isEmpty(); }
+
+    public boolean isReadOnly() { return readOnly; }
+
     public void updateAndCleanUp() throws IOException {
-        final Set<String> fileNames = new HashSet<String>();
-        final StringBuilder sb = new StringBuilder();
+        final Map<String, Long> pages = new LinkedHashMap<String, Long>();
 
         binder.foreachPage(new Function<Page<Entry<Key, V>>, Void>() {
             @Override
             public Void apply(Page<Entry<Key, V>> page) {
-                sb.append("P").append('\t')
-                  .append(page.fileName()).append('\t')
-                  .append(page.number().toString()).append('\n');
-                fileNames.add(page.fileName());
+                pages.put(page.fileName(), page.number().value());
                 return null;
             }
         });
 
-        sb.append("I").append('\t').append(indices.fileName()).append('\n');
-        fileNames.add(indices.fileName());
+        liveBytes.retain(binder.pages());
 
-        File snapshotFile = new File(pagesDir, System.nanoTime() + ".s");
-        fileNames.add(snapshotFile.getName());
+        for (String name : manifest.update(pages, indices.fileName(), liveBytes.byName(), expiries)) {
+            expiries.remove(name);
+            reclaimer.retire(new File(pagesDir, name), new Predicate<File>() {
+                @Override
+                public boolean apply(File file) { return versions.isReferring(file.getName()); }
+            });
+        }
+        removeLog.cleanUp();
+        closeUnreferencedIndices();
+    }
 
-        Files.write(sb.toString().getBytes(), snapshotFile);
-        Files.write(snapshotFile.getName().getBytes(), headFile);
+    /** @param tombstones should be created with a empty range at {@link #removedMark()}. */
+    public void logRemoves(Collection<Index> tombstones) throws IOException { removeLog.append(tombstones); }
 
-        File[] files = pagesDir.listFiles();
-        for (File file : files) if (!fileNames.contains(file.getName())) file.delete();
-        fileNames.clear();
-    }
+    /**
+     * @return the last number of the sequence, which is not less than the number of any page file, include the one
+     *         being compacted, key removed now has no value in pages not newer than it.
+     */
+    public long removedMark() { return sequence.last(); }
 
     public V get(Key key) {
-        Index index = indices.get(key);
-        if (index == null) return null;
-        return index.get(new Function<Range, V>() {
+        Versions.Version<View<V>> version = versions.acquire();
+        try {
+            final View<V> view = version.state();
+            Index index = view.indices.get(key);
+            if (index == null) return null;
+            return index.get(new Function<Range, V>() {
+                @Override
+                public V apply(Range range) {
+                    Page<Entry<Key, V>> page = view.pageOf(range);
+                    if (isExpired(page, System.currentTimeMillis())) return null;
+                    return page.get(range).value();
+                }
+            });
+        } finally {
+            version.release();
+        }
+    }
+
+    public CloseableIterator<V> iterator() {
+        final Versions.Version<View<V>> version = versions.acquire();
+        final View<V> view = version.state();
+        return versions.hold(version, new ValueIterator(view));
+    }
+
+    /** @return live keys in key order, which are streamed from indices without reading pages. */
+    public CloseableIterator<Key> keys() {
+        final Versions.Version<View<V>> version = versions.acquire();
+        final View<V> view = version.state();
+        final Iterator<Index> iterator = view.indices.iterator();
+        return versions.hold(version, new AbstractIterator<Key>() {
+            final long now = System.currentTimeMillis();
+
             @Override
-            public V apply(Range range) {
-                try {
-                    return binder.get(range).value();
-                } catch (IOException e) {
-                    throw new IllegalStateException(e);
+            protected Key computeNext() {
+                while (iterator.hasNext()) {
+                    Index index = iterator.next();
+                    if (!isExpired(view.pageOf(rangeOf(index)), now)) return index.key();
                 }
+                return endOfData();
             }
         });
+    }
+
+    /**
+     * @return live entries in key order, values of every {@link #ENTRIES_CHUNK} keys are read in offset order, so that
+     *         pages are read mostly sequentially.
+     */
+    public CloseableIterator<Entry<Key, V>> entries() {
+        final Versions.Version<View<V>> version = versions.acquire();
+        final View<V> view = version.state();
+        final Iterator<Index> iterator = view.indices.iterator();
+        return versions.hold(version, new AbstractIterator<Entry<Key, V>>() {
+            final long now = System.currentTimeMillis();
+            Iterator<Entry<Key, V>> chunk = Iterators.emptyIterator();
+
+            @Override
+            protected Entry<Key, V> computeNext() {
+                while (!chunk.hasNext()) {
+                    if (!iterator.hasNext()) return endOfData();
+                    chunk = nextChunk().iterator();
+                }
+                return chunk.next();
+            }
 
+            private List<Entry<Key, V>> nextChunk() {
+                List<Range> ranges = new ArrayList<Range>(ENTRIES_CHUNK);
+                while (ranges.size() < ENTRIES_CHUNK && iterator.hasNext()) {
+                    Range range = rangeOf(iterator.next());
+                    if (!isExpired(view.pageOf(range), now)) ranges.add(range);
+                }
+                return read(view, ranges);
+            }
+        });
     }
 
-    public Iterator<V> iterator() {
-        return new AbstractIterator<V>() {
-            final Iterator<Element<Entry<Key, V>>> iterator = binder.iterator();
+    /** Should be called by the thread of merging, the current version would be pinned until the scan is run. */
+    public ParallelScan<V> parallelScan() {
+        long now = System.currentTimeMillis();
+        Versions.Version<View<V>> version = versions.acquire();
+        View<V> view = version.state();
+        List<Page<Entry<Key, V>>> pages = new ArrayList<Page<Entry<Key, V>>>();
+        for (Page<Entry<Key, V>> page : view.pages) if (!isExpired(page, now)) pages.add(page);
+        Liveness<Entry<Key, V>> liveness =
+                new Liveness<Entry<Key, V>>(view.indices.iterator(), view.indices.size(), null);
+        return new ParallelScan<V>(pages, liveness, ParallelScan.SPLIT_BYTES, version);
+    }
+
+    /**
+     * Should be called by the thread of merging, the current version would be pinned until the checkpoint is exported.
+     */
+    public Checkpoint checkpoint() {
+        Versions.Version<View<V>> version = versions.acquire();
+        View<V> view = version.state();
+        Map<String, Long> pages = new LinkedHashMap<String, Long>();
+        for (Page<Entry<Key, V>> page : view.pages) pages.put(page.fileName(), page.number().value());
+        return new Checkpoint(pagesDir, pages, view.indices.fileName(), liveBytes.byName(), expiries, version);
+    }
+
+    /** @return values of keys in [from, to) in key order, null means unbounded. */
+    public CloseableIterator<V> scan(Key from, Key to) {
+        final Versions.Version<View<V>> version = versions.acquire();
+        final View<V> view = version.state();
+        final Iterator<Index> iterator = view.indices.scan(from, to);
+        return versions.hold(version, new AbstractIterator<V>() {
+            final long now = System.currentTimeMillis();
 
             @Override
             protected V computeNext() {
-                while (true) {
-                    if (!iterator.hasNext()) return endOfData();
-                    final Element<Entry<Key, V>> element = iterator.next();
-                    if (isRemoved(element)) continue;
-                    return element.value().value();
+                while (iterator.hasNext()) {
+                    V value = iterator.next().get(new Function<Range, V>() {
+                        @Override
+                        public V apply(Range range) {
+                            Page<Entry<Key, V>> page = view.pageOf(range);
+                            if (isExpired(page, now)) return null;
+                            return page.get(range).value();
+                        }
+                    });
+                    if (value != null) return value;
                 }
+                return endOfData();
             }
-        };
+        });
+    }
 
+    public boolean isRemoved(Element<Entry<Key, V>> element) { return isRemoved(indices, element); }
+
+    public void merge(Difference difference) throws IOException {
+        if (recountAfterMerge) {
+            replace(indices.merged(difference, null));
+            recount();
+            recountAfterMerge = false;
+            return;
+        }
+
+        replace(indices.merged(difference, new Function<Index, Void>() {
+            @Override
+            public Void apply(Index superseded) {
+                superseded.get(new Function<Range, Void>() {
+                    @Override
+                    public Void apply(Range range) {
+                        liveBytes.decrease(range);
+                        return null;
+                    }
+                });
+                return null;
+            }
+        }));
+
+        for (Index index : difference) {
+            if (index.isRemoved()) continue;
+            index.get(new Function<Range, Void>() {
+                @Override
+                public Void apply(Range range) {
+                    liveBytes.increase(range);
+                    return null;
+                }
+            });
+        }
     }
 
-    public boolean isRemoved(final Element<Entry<Key, V>> element) {
+    public int aliveSize() { return indices.size(); }
+
+    /**
+     * Publish pages and indices merged just now as a new version, which should be done before callbacks of the merging,
+     * so that a reader missing the ephemeron would find it in the storage.
+     */
+    private void replace(Indices merged) {
+        retiredIndices.add(indices);
+        indices = merged;
+        List<Page<Entry<Key, V>>> pages = binder.pages();
+        versions.publish(new View<V>(pages, indices), fileNamesOf(pages, indices));
+    }
+
+    private static <V> boolean isRemoved(Indices indices, final Element<Entry<Key, V>> element) {
         Index index = indices.get(element.value().key());
         if (index == null) return true;
         return index.get(new Function<Range, Boolean>() {
@@ -176,14 +474,144 @@ class Snapshot<V> {
                 return !element.range().equals(range);
             }
         });
+    }
 
+    /** @return entries of ranges in the given order, which are read in offset order page by page. */
+    private static <V> List<Entry<Key, V>> read(View<V> view, final List<Range> ranges) {
+        Integer[] order = new Integer[ranges.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long x = ranges.get(a).from();
+                long y = ranges.get(b).from();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        Entry<Key, V>[] entries = new Entry[order.length];
+        int i = 0;
+        while (i < order.length) {
+            Page<Entry<Key, V>> page = view.pageOf(ranges.get(order[i]));
+            List<Range> sequential = new ArrayList<Range>();
+            int j = i;
+            while (j < order.length && view.pageOf(ranges.get(order[j])) == page) sequential.add(ranges.get(order[j++]));
+            List<Entry<Key, V>> values = page.get(sequential);
+            for (int k = i; k < j; k++) entries[order[k]] = values.get(k - i);
+            i = j;
+        }
+        return Arrays.asList(entries);
     }
 
-    public void merge(Difference difference) throws IOException { indices.merge(difference); }
+    private static <V> Collection<String> fileNamesOf(List<Page<Entry<Key, V>>> pages, Indices indices) {
+        List<String> names = new ArrayList<String>(pages.size() + 1);
+        for (Page<Entry<Key, V>> page : pages) names.add(page.fileName());
+        names.add(indices.fileName());
+        return names;
+    }
 
-    public int aliveSize() { return indices.size(); }
+    private static Range rangeOf(Index index) {
+        return index.get(new Function<Range, Range>() {
+            @Override
+            public Range apply(Range range) { return range; }
+        });
+    }
+
+    private boolean isExpired(Page<Entry<Key, V>> page, long now) {
+        Long expireAt = expiries.get(page.fileName());
+        return expireAt != null && expireAt <= now;
+    }
+
+    private void trackNewPages() {
+        for (Page<Entry<Key, V>> page : binder.pages()) liveBytes.track(page, 0L);
+    }
+
+    private void recount() {
+        liveBytes.clear();
+        trackNewPages();
+        Iterator<Index> iterator = indices.iterator();
+        while (iterator.hasNext()) {
+            iterator.next().get(new Function<Range, Void>() {
+                @Override
+                public Void apply(Range range) {
+                    liveBytes.increase(range);
+                    return null;
+                }
+            });
+        }
+    }
+
+    private void closeUnreferencedIndices() {
+        Iterator<Indices> iterator = retiredIndices.iterator();
+        while (iterator.hasNext()) {
+            Indices retired = iterator.next();
+            if (versions.isReferring(retired.fileName())) continue;
+            retired.close();
+            iterator.remove();
+        }
+    }
+
+    /** Files left by crash or the legacy snapshot would be deleted once on opening. */
+    private void deleteUnreferencedFiles() {
+        Set<String> fileNames = new HashSet<String>(manifest.pages().keySet());
+        fileNames.add(manifest.indices());
+        fileNames.add(manifest.fileName());
+
+        for (File file : pagesDir.listFiles()) if (!fileNames.contains(file.getName())) file.delete();
+    }
+
+    public Reclaimer reclaimer() { return reclaimer; }
+
+    public LiveBytes liveBytes() { return liveBytes; }
 
     public long diskOccupiedBytes() {
         return binder.diskOccupiedBytes() + indices.diskOccupiedBytes();
     }
+
+    public long indicesBytes() { return indices.diskOccupiedBytes(); }
+
+    public int liveVersions() { return versions.live(); }
+
+    /** Reads values page by page, the page being read would be closed if it is closed early. */
+    private class ValueIterator extends AbstractIterator<V> implements CloseableIterator<V> {
+        private final long now = System.currentTimeMillis();
+        private final View<V> view;
+        private final Iterator<Page<Entry<Key, V>>> pages;
+        private CloseableIterator<Element<Entry<Key, V>>> elements;
+
+        ValueIterator(View<V> view) {
+            this.view = view;
+            this.pages = view.pages.iterator();
+        }
+
+        @Override
+        protected V computeNext() {
+            while (true) {
+                while (elements == null || !elements.hasNext()) {
+                    if (!pages.hasNext()) return endOfData();
+                    Page<Entry<Key, V>> page = pages.next();
+                    if (!isExpired(page, now)) elements = page.iterator();
+                }
+                Element<Entry<Key, V>> element = elements.next();
+                if (isRemoved(view.indices, element)) continue;
+                return element.value().value();
+            }
+        }
+
+        @Override
+        public void close() { if (elements != null) elements.close(); }
+    }
+
+    /** Pages and indices of a version, which would never be changed by merging. */
+    private static class View<V> {
+        final List<Page<Entry<Key, V>>> pages;
+        final Indices indices;
+
+        View(List<Page<Entry<Key, V>>> pages, Indices indices) {
+            this.pages = pages;
+            this.indices = indices;
+        }
+
+        Page<Entry<Key, V>> pageOf(Range range) { return Binder.pageOf(pages, range); }
+    }
 }
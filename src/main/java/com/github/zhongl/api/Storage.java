@@ -19,24 +19,30 @@ package com.github.zhongl.api;
 import com.github.zhongl.index.Difference;
 import com.github.zhongl.index.Index;
 import com.github.zhongl.index.Key;
+import com.github.zhongl.io.MemoryBudget;
 import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Range;
+import com.github.zhongl.util.CloseableIterator;
 import com.github.zhongl.util.Entry;
 import com.github.zhongl.util.Nils;
 import com.google.common.base.Function;
-import com.google.common.base.Predicate;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.softee.management.annotation.Description;
 import org.softee.management.annotation.MBean;
 import org.softee.management.annotation.ManagedAttribute;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Collections2.transform;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
@@ -46,15 +52,30 @@ class Storage<V> implements Iterable<V> {
     private final Snapshot<V> snapshot;
     private final DefragPolicy defragPolicy;
     private final IndexFactory indexFactory;
+    private final MemoryBudget memoryBudget;
 
     private volatile Behavior lastBehavior = Behavior.NONE;
     private volatile long lastBehaviorElapseMillis;
+    private volatile long recoveryElapseMillis;
+
+    private final ExecutorService compactor;
+    private volatile Compaction<V> compacting;
+    private Future<Compaction<V>> compacted;
 
     Storage(Snapshot<V> snapshot, IndexFactory indexFactory, DefragPolicy defragPolicy) {
+        this(snapshot, indexFactory, defragPolicy, MemoryBudget.SHARED);
+    }
+
+    /** @param memoryBudget reserves memory for collecting alive indices of defrag. */
+    Storage(Snapshot<V> snapshot, IndexFactory indexFactory, DefragPolicy defragPolicy, MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
         this.logger = Logger.getLogger(getClass().getName());
         this.snapshot = snapshot;
         this.defragPolicy = defragPolicy;
         this.indexFactory = indexFactory;
+        this.compactor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("compactor").setDaemon(true).build()
+        );
     }
 
     public void merge(
@@ -64,13 +85,30 @@ class Storage<V> implements Iterable<V> {
     ) {
         Stopwatch stopwatch = new Stopwatch().start();
         try {
-            if (defragPolicy.evaluate(snapshot.aliveSize(), addOrUpdates.size() - removes.size())) {
-                defrag(addOrUpdates, removes);
-                lastBehavior = Behavior.DEFRAG;
+            checkState(!snapshot.isReadOnly(), "Can't merge into a read only snapshot.");
+            Difference difference = new Difference(new TreeSet<Index>());
+            int aliveSize = snapshot.aliveSize();
+            int probableDelta = addOrUpdates.size() - removes.size();
+            defragPolicy.observeIndices(snapshot.indicesBytes(), aliveSize);
+            boolean needDefrag = defragPolicy.evaluate(aliveSize, probableDelta);
+            boolean installed = installCompacted(difference);
+            purgeExpired(difference);
+            if (installed) {
+                lastBehavior = Behavior.INSTALL; // moved keys should be merged before selecting pages again
+            } else if (needDefrag) {
+                if (defragPolicy.isIncremental() || snapshot.hasExpiringPages()) {
+                    lastBehavior = compact(difference);
+                } else if (compacting == null) {
+                    lastBehavior = defrag(difference, defragPolicy.estimateDefragBytes(aliveSize, probableDelta));
+                } else {
+                    lastBehavior = Behavior.APPEND;
+                }
+            } else if (defragPolicy.evaluateSpace(getLiveBytes(), getPageBytes())) {
+                lastBehavior = compact(difference);
             } else {
-                append(addOrUpdates, removes);
                 lastBehavior = Behavior.APPEND;
             }
+            append(addOrUpdates, removes, difference);
             onSuccess(addOrUpdates);
             onSuccess(removes);
             snapshot.updateAndCleanUp();
@@ -92,10 +130,31 @@ class Storage<V> implements Iterable<V> {
         }
     }
 
-    public V get(Key key) { return snapshot.get(key); }
+    public V get(Key key) {
+        if (compacting == null) return snapshot.get(key);
+
+        long begin = System.nanoTime();
+        try {
+            return snapshot.get(key);
+        } finally {
+            defragPolicy.readDuringCompaction(System.nanoTime() - begin);
+        }
+    }
 
     @Override
-    public Iterator<V> iterator() { return snapshot.iterator(); }
+    public CloseableIterator<V> iterator() { return snapshot.iterator(); }
+
+    public CloseableIterator<V> scan(Key from, Key to) { return snapshot.scan(from, to); }
+
+    public CloseableIterator<Key> keys() { return snapshot.keys(); }
+
+    public CloseableIterator<Entry<Key, V>> entries() { return snapshot.entries(); }
+
+    /** Should be called by the thread of merging. */
+    public ParallelScan<V> parallelScan() { return snapshot.parallelScan(); }
+
+    /** Should be called by the thread of merging. */
+    public Checkpoint checkpoint() { return snapshot.checkpoint(); }
 
     @ManagedAttribute
     public String getLastBehavior() { return lastBehavior.name(); }
@@ -106,69 +165,180 @@ class Storage<V> implements Iterable<V> {
     @ManagedAttribute
     public long getDiskOccupiedBytes() { return snapshot.diskOccupiedBytes(); }
 
-    private void append(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
-                        Collection<WriteOperation<Key>> removes) throws IOException {
-        append(addOrUpdates, removes, new Difference(new TreeSet<Index>()));
+    @ManagedAttribute
+    public boolean isCompacting() { return compacting != null; }
+
+    @ManagedAttribute
+    public long getLiveBytes() { return snapshot.liveBytes().liveBytes(); }
+
+    @ManagedAttribute
+    public long getPageBytes() { return snapshot.liveBytes().totalBytes(); }
+
+    @ManagedAttribute
+    public long getReclaimableBytes() { return getPageBytes() - getLiveBytes(); }
+
+    @ManagedAttribute
+    public String[] getPageGarbagePercents() { return snapshot.liveBytes().garbagePercents(); }
+
+    @ManagedAttribute
+    public long getRecoveryElapseMillis() { return recoveryElapseMillis; }
+
+    @ManagedAttribute
+    public long getPendingReclaimBytes() { return snapshot.reclaimer().pendingBytes(); }
+
+    @ManagedAttribute
+    public int getPendingReclaimFiles() { return snapshot.reclaimer().pendingFiles(); }
+
+    @ManagedAttribute
+    @Description("Versions of snapshot pinned by readers or current")
+    public int getLiveVersions() { return snapshot.liveVersions(); }
+
+    @ManagedAttribute
+    public long getReclaimBytesPerSecond() { return snapshot.reclaimer().bytesPerSecond(); }
+
+    @ManagedAttribute
+    @Description("Bandwidth of deleting obsolete files")
+    public void setReclaimBytesPerSecond(@Description("Bytes per second, non-positive means unlimited") long bytesPerSecond) {
+        snapshot.reclaimer().bytesPerSecond(bytesPerSecond);
     }
 
-    private void defrag(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
-                        Collection<WriteOperation<Key>> removes) throws IOException {
-        final Difference difference = new Difference(new TreeSet<Index>());
-
-        snapshot.defrag(
-                new Predicate<Element<Entry<Key, V>>>() {
-                    @Override
-                    public boolean apply(final Element<Entry<Key, V>> element) {
-                        return !snapshot.isRemoved(element);
-                    }
-                },
-                new Function<Element<Entry<Key, V>>, Void>() {
-                    @Override
-                    public Void apply(Element<Entry<Key, V>> element) {
-                        difference.add(indexFactory.index(element.value().key(), element.range()));
-                        return null;
-                    }
-                }
+    void recovered(long elapseMillis) { recoveryElapseMillis = elapseMillis; }
+
+    /** Stop compacting, the unfinished page would be deleted on next opening. */
+    void stop() { compactor.shutdownNow(); }
+
+    /** Defrag would be skipped, instead of running out of memory, if the budget can't afford alive indices. */
+    private Behavior defrag(Difference difference, long estimateBytes) throws IOException {
+        if (!memoryBudget.tryReserve(estimateBytes)) return Behavior.APPEND;
+        try {
+            snapshot.defrag(collectInto(difference), defragPolicy.tokenBucket());
+            return Behavior.DEFRAG;
+        } finally {
+            memoryBudget.release(estimateBytes);
+        }
+    }
+
+    private Behavior compact(Difference difference) throws IOException {
+        if (compacting != null) return Behavior.APPEND;
+
+        final Compaction<V> compaction = snapshot.prepareCompaction(
+                defragPolicy.getCompactBudgetBytes(),
+                defragPolicy.getCompactGarbagePercent(),
+                defragPolicy.tokenBucket()
         );
+        if (compaction == null) return Behavior.APPEND;
 
-        append(addOrUpdates, removes, difference);
+        if (defragPolicy.isConcurrent()) {
+            compacting = compaction;
+            compacted = compactor.submit(new Callable<Compaction<V>>() {
+                @Override
+                public Compaction<V> call() throws Exception { return compaction.run(); }
+            });
+            return Behavior.COMPACT;
+        }
+
+        try {
+            compaction.run();
+        } catch (IOException e) {
+            snapshot.abort(compaction);
+            throw e;
+        }
+        snapshot.install(compaction, collectKeysInto(difference));
+        return Behavior.COMPACT;
+    }
+
+    /** @return true if a compaction finished on the compactor thread has been installed. */
+    private boolean installCompacted(Difference difference) throws IOException {
+        if (compacting == null || !compacted.isDone()) return false;
+
+        Compaction<V> compaction = compacting;
+        compacting = null;
+
+        try {
+            compacted.get();
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Compaction failed because ", e);
+            snapshot.abort(compaction);
+            return false;
+        }
+
+        snapshot.install(compaction, collectKeysInto(difference));
+        return true;
+    }
+
+    private Function<Element<Key>, Void> collectKeysInto(final Difference difference) {
+        return new Function<Element<Key>, Void>() {
+            @Override
+            public Void apply(Element<Key> element) {
+                difference.add(indexFactory.index(element.value(), element.range()));
+                return null;
+            }
+        };
+    }
+
+    private Function<Element<Entry<Key, V>>, Void> collectInto(final Difference difference) {
+        return new Function<Element<Entry<Key, V>>, Void>() {
+            @Override
+            public Void apply(Element<Entry<Key, V>> element) {
+                difference.add(indexFactory.index(element.value().key(), element.range()));
+                return null;
+            }
+        };
     }
 
     private void append(Collection<WriteOperation<Entry<Key, V>>> addOrUpdates,
                         Collection<WriteOperation<Key>> removes,
                         final Difference difference) throws IOException {
-        if (!addOrUpdates.isEmpty()) {
-            snapshot.append(
-                    transform(
-                            addOrUpdates,
-                            new Function<WriteOperation<Entry<Key, V>>, Entry<Key, V>>() {
-                                @Override
-                                public Entry<Key, V> apply(WriteOperation<Entry<Key, V>> operation) {
-                                    return operation.attachement();
-                                }
-                            }
-                    ),
-                    new Function<Element<Entry<Key, V>>, Void>() {
-                        @Override
-                        public Void apply(Element<Entry<Key, V>> element) {
-                            difference.add(indexFactory.index(element.value().key(), element.range()));
-                            return null;
-                        }
-                    });
+        Map<Long, List<Entry<Key, V>>> buckets = new TreeMap<Long, List<Entry<Key, V>>>();
+        for (WriteOperation<Entry<Key, V>> operation : addOrUpdates) {
+            Entry<Key, V> entry = operation.attachement();
+            long expireAt = ExpiringEntry.expireAtOf(entry);
+            List<Entry<Key, V>> bucket = buckets.get(expireAt);
+            if (bucket == null) buckets.put(expireAt, bucket = new ArrayList<Entry<Key, V>>());
+            bucket.add(entry);
         }
 
-        if (!removes.isEmpty()) {
-            difference.addAll(transform(removes, new Function<WriteOperation<Key>, Index>() {
-                @Override
-                public Index apply(WriteOperation<Key> operation) {
-                    return indexFactory.removedIndex(operation.attachement());
-                }
-            }));
+        for (Map.Entry<Long, List<Entry<Key, V>>> bucket : buckets.entrySet()) { // a page per expiry window
+            snapshot.append(bucket.getValue(), collectInto(difference), bucket.getKey());
         }
 
+        remove(transform(removes, new Function<WriteOperation<Key>, Key>() {
+            @Override
+            public Key apply(WriteOperation<Key> operation) { return operation.attachement(); }
+        }), difference);
+
         snapshot.merge(difference);
     }
 
+    private void remove(Collection<Key> keys, Difference difference) throws IOException {
+        if (keys.isEmpty()) return;
+
+        difference.addAll(transform(keys, new Function<Key, Index>() {
+            @Override
+            public Index apply(Key key) { return indexFactory.removedIndex(key); }
+        }));
+
+        long removedMark = snapshot.removedMark();
+        final Range mark = new Range(removedMark, removedMark);
+        snapshot.logRemoves(transform(keys, new Function<Key, Index>() {
+            @Override
+            public Index apply(Key key) { return indexFactory.index(key, mark); }
+        }));
+    }
+
+    /** Drop expired pages, and purge their keys before appending, so that keys added again would not be removed. */
+    private void purgeExpired(Difference difference) throws IOException {
+        final List<Key> keys = new ArrayList<Key>();
+        snapshot.dropExpired(System.currentTimeMillis(), new Function<Key, Void>() {
+            @Override
+            public Void apply(Key key) {
+                keys.add(key);
+                return null;
+            }
+        });
+        remove(keys, difference);
+    }
+
     private static void onSuccess(Collection<? extends FutureCallback<Void>> callbacks) {
         for (FutureCallback<Void> callback : callbacks) callback.onSuccess(null);
     }
@@ -177,5 +347,5 @@ class Storage<V> implements Iterable<V> {
         for (FutureCallback<Void> callback : callbacks) callback.onFailure(t);
     }
 
-    private enum Behavior {NONE, DEFRAG, APPEND, FAIL}
+    private enum Behavior {NONE, DEFRAG, COMPACT, INSTALL, APPEND, FAIL}
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+/**
+ * {@link Subscriber} receives values from {@link IPage#subscribe(Subscriber)} no more than requested through
+ * {@link Subscription}, in the shape of reactive streams.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public interface Subscriber<V> {
+    void onSubscribe(Subscription subscription);
+
+    void onNext(V value);
+
+    void onError(Throwable t);
+
+    void onComplete();
+}
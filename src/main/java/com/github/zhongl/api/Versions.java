@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.CloseableIterator;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.Closeables;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link Versions} keeps reference counted versions of a snapshot for concurrent readers.
+ * <p/>
+ * A version is an immutable state with the set of files it refers, which is referred by the owner until the next one
+ * is published, and by every reader between its acquiring and releasing. A retired file or state should not be
+ * reclaimed until no live version refers to it, so that readers would never meet a file deleted or a buffer unmapped
+ * under them, without any lock.
+ * <p/>
+ * An iterator held by {@link #hold(Version, Iterator)} releases its version at the end or closing, and the one
+ * abandoned before that would be released after it is collected by GC, like leases of a
+ * {@link com.github.zhongl.io.DirectBufferPool}.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+class Versions<T> {
+    private final AtomicReference<Version<T>> current;
+    private final Set<Version<T>> live;
+    private final Set<Holding> holdings;
+    private final ReferenceQueue<Object> abandoned;
+
+    Versions(T state, Collection<String> fileNames) {
+        live = Collections.newSetFromMap(new ConcurrentHashMap<Version<T>, Boolean>());
+        holdings = Collections.newSetFromMap(new ConcurrentHashMap<Holding, Boolean>());
+        abandoned = new ReferenceQueue<Object>();
+        current = new AtomicReference<Version<T>>(new Version<T>(state, fileNames, live));
+    }
+
+    /** @return the current version, which should be released after reading. */
+    public Version<T> acquire() {
+        reclaimAbandoned();
+        while (true) {
+            Version<T> version = current.get();
+            if (version.retain()) return version; // or else it was replaced and released just now
+        }
+    }
+
+    /** Replace the current version, the elder would be alive until its readers release it. */
+    public void publish(T state, Collection<String> fileNames) {
+        current.getAndSet(new Version<T>(state, fileNames, live)).release();
+    }
+
+    /**
+     * @param version  acquired for the iterator, which would be released by the returned.
+     * @param iterator reads the state of the version, it would be closed with the version if it is {@link Closeable}.
+     *
+     * @return an iterator releases the version once it is exhausted, failed or closed, or collected by GC.
+     */
+    public <E> CloseableIterator<E> hold(Version<T> version, Iterator<E> iterator) {
+        HeldIterator<E> held = new HeldIterator<E>(iterator);
+        held.holding = new Holding(held, version, iterator);
+        holdings.add(held.holding);
+        return held;
+    }
+
+    /** @return true if any live version refers to the file. */
+    public boolean isReferring(String fileName) {
+        reclaimAbandoned();
+        for (Version<T> version : live) if (version.fileNames.contains(fileName)) return true;
+        return false;
+    }
+
+    /** @return number of versions not released. */
+    public int live() {
+        reclaimAbandoned();
+        return live.size();
+    }
+
+    private void reclaimAbandoned() {
+        for (Reference<?> reference = abandoned.poll(); reference != null; reference = abandoned.poll()) {
+            ((Holding) reference).release();
+        }
+    }
+
+    private class HeldIterator<E> extends AbstractIterator<E> implements CloseableIterator<E> {
+        private final Iterator<E> iterator;
+        private Holding holding;
+
+        HeldIterator(Iterator<E> iterator) { this.iterator = iterator; }
+
+        @Override
+        protected E computeNext() {
+            boolean ended = true; // or failed
+            try {
+                if (!iterator.hasNext()) return endOfData();
+                E next = iterator.next();
+                ended = false;
+                return next;
+            } finally {
+                if (ended) close();
+            }
+        }
+
+        @Override
+        public void close() { holding.release(); }
+    }
+
+    /**
+     * Refers the holder weakly but the version and the iterator strongly, so both could be released after the holder is
+     * lost.
+     */
+    private class Holding extends WeakReference<Object> {
+        private final Version<T> version;
+        private final Iterator<?> iterator;
+
+        Holding(Object holder, Version<T> version, Iterator<?> iterator) {
+            super(holder, abandoned);
+            this.version = version;
+            this.iterator = iterator;
+        }
+
+        void release() {
+            if (!holdings.remove(this)) return;
+            clear();
+            if (iterator instanceof Closeable) Closeables.closeQuietly((Closeable) iterator); // e.g. reading a file
+            version.release();
+        }
+    }
+
+    @ThreadSafe
+    static class Version<T> {
+        private final T state;
+        private final Set<String> fileNames;
+        private final Set<Version<T>> live;
+        private final AtomicInteger references;
+
+        private Version(T state, Collection<String> fileNames, Set<Version<T>> live) {
+            this.state = state;
+            this.fileNames = Collections.unmodifiableSet(new HashSet<String>(fileNames));
+            this.live = live;
+            this.references = new AtomicInteger(1);
+            live.add(this);
+        }
+
+        public T state() { return state; }
+
+        public Set<String> fileNames() { return fileNames; }
+
+        public void release() {
+            if (references.decrementAndGet() == 0) live.remove(this);
+        }
+
+        private boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) return false;
+                if (references.compareAndSet(count, count + 1)) return true;
+            }
+        }
+    }
+}
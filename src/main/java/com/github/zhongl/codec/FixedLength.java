@@ -18,5 +18,8 @@ package com.github.zhongl.codec;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
 public interface FixedLength {
+    /** Length of self-delimited encoding which varies by value. */
+    int VARIABLE = -1;
+
     int length();
 }
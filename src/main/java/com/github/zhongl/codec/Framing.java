@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link Framing} tells the length of the next encoded value from its header without decoding it, so that a reader
+ * knows how many bytes to load before decoding.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public interface Framing {
+    /** The remaining bytes are not enough to tell the length. */
+    int UNKNOWN = -1;
+
+    /** The header is invalid, e.g. corrupted on disk, so nothing from it could be read. */
+    int CORRUPT = -2;
+
+    /**
+     * @return length of the value starts at the position of buffer, or {@link #UNKNOWN}, or {@link #CORRUPT}, the buffer
+     *         is untouched.
+     */
+    int lengthOf(ByteBuffer buffer);
+}
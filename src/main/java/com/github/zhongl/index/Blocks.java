@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.github.zhongl.codec.Decoder;
+import com.github.zhongl.codec.FixedLength;
+import com.github.zhongl.io.FileChannels;
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * {@link Blocks} is the layout of indices file for variable length keys.
+ * <p/>
+ * Sorted entries are grouped in blocks of about {@link #BLOCK_BYTES}, every entry is prefix compressed against the
+ * previous one in the same block as {@code [varint shared][varint unshared][unshared bytes]}, and the first entry of a
+ * block is always complete. The footer lists offsets of blocks, so that a block could be located by binary search on
+ * first entries and then scanned.
+ * <pre>
+ * | block 0 | block 1 | ... | offset 0 | offset 1 | ... | blocks | entries | footer offset | magic |
+ * </pre>
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+class Blocks {
+    static final int BLOCK_BYTES = Integer.getInteger("ipage.indices.block.bytes", 4096);
+    static final int MAGIC = 0x1b10c5;
+    static final int TAIL_LENGTH = 16;
+
+    private Blocks() { }
+
+    static boolean isBlocked(Object codec) {
+        return codec instanceof FixedLength && ((FixedLength) codec).length() == FixedLength.VARIABLE;
+    }
+
+    /** @return layout of blocks, or an empty one if the buffer is empty. */
+    static Layout layoutOf(ByteBuffer buffer, Decoder<Index> decoder) {
+        int capacity = buffer.capacity();
+        if (capacity == 0) return new Layout(new int[0], Collections.<Index>emptyList(), 0, 0);
+
+        checkState(buffer.getInt(capacity - 4) == MAGIC, "Invalid indices file without magic.");
+        int footer = buffer.getInt(capacity - 8);
+        int entries = buffer.getInt(capacity - 12);
+        int count = buffer.getInt(capacity - 16);
+
+        int[] offsets = new int[count];
+        List<Index> firsts = new ArrayList<Index>(count);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = buffer.getInt(footer + i * 4);
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.limit(i + 1 < count ? buffer.getInt(footer + i * 4 + 4) : footer).position(offsets[i]);
+            firsts.add(new BlockReader(duplicate, decoder).next());
+        }
+        return new Layout(offsets, firsts, footer, entries);
+    }
+
+    /** @return all indices in a file, which is read block by block. */
+    static Iterator<Index> stream(final File file, final Decoder<Index> decoder) {
+        final int[] bounds;
+        try {
+            bounds = boundsOf(file);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return new AbstractIterator<Index>() {
+            private int block = 0;
+            private Iterator<Index> current = Collections.<Index>emptyList().iterator();
+
+            @Override
+            protected Index computeNext() {
+                while (!current.hasNext()) {
+                    if (block + 1 >= bounds.length) return endOfData();
+                    current = readBlock(block++).iterator();
+                }
+                return current.next();
+            }
+
+            private List<Index> readBlock(int i) {
+                try {
+                    return FileChannels.read(file, bounds[i], bounds[i + 1] - bounds[i], new Function<ByteBuffer, List<Index>>() {
+                        @Override
+                        public List<Index> apply(ByteBuffer byteBuffer) {
+                            List<Index> list = new ArrayList<Index>();
+                            BlockReader reader = new BlockReader(byteBuffer, decoder);
+                            while (reader.hasNext()) list.add(reader.next());
+                            return list;
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /** @return offsets of blocks followed by the footer offset. */
+    private static int[] boundsOf(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) return new int[0];
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = randomAccessFile.length();
+            randomAccessFile.seek(length - TAIL_LENGTH);
+            int count = randomAccessFile.readInt();
+            randomAccessFile.readInt(); // entries
+            int footer = randomAccessFile.readInt();
+            checkState(randomAccessFile.readInt() == MAGIC, "Invalid indices file without magic.");
+
+            int[] bounds = new int[count + 1];
+            randomAccessFile.seek(footer);
+            for (int i = 0; i < count; i++) bounds[i] = randomAccessFile.readInt();
+            bounds[count] = footer;
+            return bounds;
+        } finally {
+            Closeables.closeQuietly(randomAccessFile);
+        }
+    }
+
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+
+    static int sharedPrefix(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) if (a[i] != b[i]) return i;
+        return length;
+    }
+
+    static class Layout {
+        final int[] offsets;
+        final List<Index> firsts;
+        final int footer;
+        final int entries;
+
+        Layout(int[] offsets, List<Index> firsts, int footer, int entries) {
+            this.offsets = offsets;
+            this.firsts = firsts;
+            this.footer = footer;
+            this.entries = entries;
+        }
+
+        int blocks() { return offsets.length; }
+
+        int endOf(int block) { return block + 1 < offsets.length ? offsets[block + 1] : footer; }
+
+        /** @return the last block whose first index is not greater than the index, or 0. */
+        int blockOf(Index index) {
+            int i = Collections.binarySearch(firsts, index);
+            return i >= 0 ? i : Math.max(0, -i - 2);
+        }
+    }
+
+    /** Decode entries of a block from the position to the limit of a buffer. */
+    static class BlockReader {
+        private final ByteBuffer buffer;
+        private final Decoder<Index> decoder;
+        private byte[] last = new byte[0];
+
+        BlockReader(ByteBuffer buffer, Decoder<Index> decoder) {
+            this.buffer = buffer;
+            this.decoder = decoder;
+        }
+
+        boolean hasNext() { return buffer.hasRemaining(); }
+
+        Index next() {
+            int shared = getVarint(buffer);
+            int unshared = getVarint(buffer);
+            byte[] bytes = new byte[shared + unshared];
+            System.arraycopy(last, 0, bytes, 0, shared);
+            buffer.get(bytes, shared, unshared);
+            last = bytes;
+            return decoder.decode(ByteBuffer.wrap(bytes));
+        }
+    }
+}
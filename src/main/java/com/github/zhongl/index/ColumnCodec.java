@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+/**
+ * {@link ColumnCodec} lays indices out as {@link Columns}, whose keys and clues should be encoded in a long each, and
+ * key order should be the signed order of encoded keys. An index whose clue could not be packed in a long overflows,
+ * which is encoded as a whole by {@link #encode} instead.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public interface ColumnCodec extends IndexCodec {
+
+    long keyOf(Key key);
+
+    /** The clue of an index could not be packed in a non negative long. */
+    long OVERFLOW = -1L;
+
+    /** @return clue of the index which is not removed, or {@link #OVERFLOW}. */
+    long clueOf(Index index);
+
+    Index index(long key, long clue);
+}
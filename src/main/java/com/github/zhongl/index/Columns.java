@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.github.zhongl.io.FileChannels;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.AbstractIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * {@link Columns} is the layout of indices file for {@link ColumnCodec}, which takes 16 bytes per entry.
+ * <p/>
+ * Sorted keys are a column of longs followed by a column of their clues, so that lookups are branch-free binary
+ * searches on the key column, without decoding any index but the result. An index overflows if its clue could not be
+ * packed, then it is encoded as a whole in the overflow column, and its clue is the complement of its ordinal there.
+ * The number of entries is the last long.
+ * <pre>
+ * | key 0 | key 1 | ... | clue 0 | clue 1 | ... | overflow 0 | ... | size |
+ * </pre>
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+class Columns {
+    static final int ENTRY_LENGTH = 16;
+    static final int FOOTER_LENGTH = 8;
+    static final String CLUES_SUFFIX = ".clues";
+    static final String OVERFLOW_SUFFIX = ".overflow";
+    private static final int STREAM_CHUNK = 4096; // entries
+
+    private Columns() { }
+
+    static boolean isColumnar(Object codec) { return codec instanceof ColumnCodec; }
+
+    /** @return number of entries, an empty file has none. */
+    static int size(ByteBuffer buffer) {
+        return buffer.capacity() == 0 ? 0 : (int) buffer.getLong(buffer.capacity() - FOOTER_LENGTH);
+    }
+
+    static long keyAt(ByteBuffer buffer, int i) { return buffer.getLong(i << 3); }
+
+    static long clueAt(ByteBuffer buffer, int size, int i) { return buffer.getLong((size + i) << 3); }
+
+    /** @return the i-th index, which is decoded from the overflow column if its clue is negative. */
+    static Index indexAt(ByteBuffer buffer, int size, int i, ColumnCodec codec) {
+        long key = keyAt(buffer, i);
+        long clue = clueAt(buffer, size, i);
+        if (clue >= 0) return codec.index(key, clue);
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(size * ENTRY_LENGTH + (int) ~clue * codec.length());
+        return codec.decode(duplicate);
+    }
+
+    /** @return the last position whose key is not greater than the key, or -1. */
+    static int floor(ByteBuffer buffer, int size, long key) {
+        if (size == 0) return -1;
+        int base = 0;
+        for (int length = size; length > 1; ) {
+            int half = length >>> 1;
+            base = keyAt(buffer, base + half) <= key ? base + half : base; // compiled to a conditional move
+            length -= half;
+        }
+        return keyAt(buffer, base) <= key ? base : -1;
+    }
+
+    /** @return the first position whose key is not less than the key. */
+    static int ceiling(ByteBuffer buffer, int size, long key) {
+        int i = floor(buffer, size, key);
+        return i >= 0 && keyAt(buffer, i) == key ? i : i + 1;
+    }
+
+    /** @return all indices in a file, which is read chunk by chunk of both columns. */
+    static Iterator<Index> stream(final File file, final ColumnCodec codec) {
+        final int size = sizeOf(file, codec);
+
+        return new AbstractIterator<Index>() {
+            private int position = 0;
+            private Iterator<Index> current = Collections.<Index>emptyList().iterator();
+
+            @Override
+            protected Index computeNext() {
+                if (!current.hasNext()) {
+                    if (position >= size) return endOfData();
+                    int count = Math.min(STREAM_CHUNK, size - position);
+                    current = readChunk(position, count).iterator();
+                    position += count;
+                }
+                return current.next();
+            }
+
+            private List<Index> readChunk(int from, final int count) {
+                try {
+                    final ByteBuffer keys = FileChannels.read(file, from * 8L, count * 8, Functions.<ByteBuffer>identity());
+                    return FileChannels.read(file, (size + from) * 8L, count * 8, new Function<ByteBuffer, List<Index>>() {
+                        @Override
+                        public List<Index> apply(ByteBuffer clues) {
+                            List<Index> list = new ArrayList<Index>(count);
+                            for (int i = 0; i < count; i++) {
+                                long clue = clues.getLong();
+                                list.add(clue >= 0 ? codec.index(keys.getLong(), clue) : overflow(~clue, keys));
+                            }
+                            return list;
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            private Index overflow(long ordinal, ByteBuffer keys) {
+                keys.getLong(); // skip the key, which is encoded in the overflow too
+                long position = size * (long) ENTRY_LENGTH + ordinal * codec.length();
+                try {
+                    return FileChannels.read(file, position, codec.length(), new Function<ByteBuffer, Index>() {
+                        @Override
+                        public Index apply(ByteBuffer byteBuffer) { return codec.decode(byteBuffer); }
+                    });
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    private static int sizeOf(File file, ColumnCodec codec) {
+        long length = file.exists() ? file.length() : 0L;
+        if (length == 0L) return 0;
+        try {
+            Function<ByteBuffer, Long> getLong = new Function<ByteBuffer, Long>() {
+                @Override
+                public Long apply(ByteBuffer byteBuffer) { return byteBuffer.getLong(); }
+            };
+            long size = FileChannels.read(file, length - FOOTER_LENGTH, FOOTER_LENGTH, getLong);
+            long overflow = length - FOOTER_LENGTH - size * ENTRY_LENGTH;
+            checkState(size >= 0 && overflow >= 0 && overflow % codec.length() == 0,
+                    "Invalid columnar indices file %s of length %s.", file, length);
+            return (int) size;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
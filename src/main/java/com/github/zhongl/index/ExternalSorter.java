@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.github.zhongl.io.FileAppender;
+import com.github.zhongl.io.IterableFile;
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link ExternalSorter} collects sorted runs of {@link Index} spilled by concurrent producers, and merges them into
+ * one sorted indices file.
+ * <p/>
+ * Every run is tagged with a sequence, the index from the run with greater sequence wins if there are same keys. At
+ * most {@link #FAN_IN} runs are opened at once, each with a read buffer, so more runs are merged in several passes.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class ExternalSorter {
+    static final String SUFFIX = ".run";
+    static final int FAN_IN = Integer.getInteger("ipage.external.sorter.fan.in", 64);
+
+    private final File dir;
+    private final IndexCodec codec;
+    private final int fanIn;
+    private final SortedMap<Long, File> runs;
+
+    public ExternalSorter(File dir, IndexCodec codec) { this(dir, codec, FAN_IN); }
+
+    /** @param fanIn is the max number of runs merged at once, more runs would be merged pass by pass. */
+    ExternalSorter(File dir, IndexCodec codec, int fanIn) {
+        checkArgument(fanIn > 1, "Fan in %s should be greater than 1.", fanIn);
+        this.dir = dir;
+        this.codec = codec;
+        this.fanIn = fanIn;
+        this.runs = new ConcurrentSkipListMap<Long, File>();
+    }
+
+    /** @param sorted should be sorted by key without duplicated. */
+    public void spill(long sequence, Iterable<Index> sorted) throws IOException {
+        FileAppender appender = new FileAppender(new File(dir, sequence + SUFFIX));
+        for (Index index : sorted) appender.append(codec.encode(index));
+        runs.put(sequence, appender.force());
+    }
+
+    public File merge() throws IOException {
+        while (runs.size() > fanIn) {
+            List<Long> sequences = new ArrayList<Long>(runs.keySet());
+            for (int i = 0; i < sequences.size(); i += fanIn) {
+                List<Long> group = sequences.subList(i, Math.min(i + fanIn, sequences.size()));
+                if (group.size() > 1) merge(group);
+            }
+        }
+
+        IndicesFile file = new IndicesFile(dir, codec);
+        Iterator<Index> merged = merging(runs);
+        while (merged.hasNext()) {
+            Index index = merged.next();
+            if (!index.isRemoved()) file.append(index);
+        }
+
+        for (File run : runs.values()) run.delete();
+        runs.clear();
+
+        return file.toFile();
+    }
+
+    /**
+     * Merge runs of consecutive sequences to one tagged with the last sequence, so that it is still newer than elder
+     * runs and elder than newer ones. Removed indices are kept to hide elder ones in other runs.
+     */
+    private void merge(List<Long> sequences) throws IOException {
+        SortedMap<Long, File> group = new TreeMap<Long, File>();
+        for (Long sequence : sequences) group.put(sequence, runs.get(sequence));
+
+        long last = group.lastKey();
+        File merging = new File(dir, last + SUFFIX + ".merging");
+        FileAppender appender = new FileAppender(merging);
+        Iterator<Index> merged = merging(group);
+        while (merged.hasNext()) appender.append(codec.encode(merged.next()));
+        appender.force();
+
+        for (Long sequence : sequences) runs.remove(sequence).delete();
+        File run = new File(dir, last + SUFFIX);
+        if (!merging.renameTo(run)) throw new IOException("Can't rename " + merging + " to " + run);
+        runs.put(last, run);
+    }
+
+    /** @return indices of runs in key order, only the one from the newest run is kept for the same key. */
+    private Iterator<Index> merging(Map<Long, File> group) {
+        final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+        for (Map.Entry<Long, File> entry : group.entrySet()) {
+            Run run = new Run(entry.getKey(), entry.getValue());
+            if (run.iterator.hasNext()) queue.add(run);
+        }
+
+        return new AbstractIterator<Index>() {
+            private Index last;
+
+            @Override
+            protected Index computeNext() {
+                while (!queue.isEmpty()) {
+                    Run run = queue.poll();
+                    Index c = run.iterator.next();
+                    if (run.iterator.hasNext()) queue.add(run);
+
+                    if (last != null && last.compareTo(c) == 0) continue; // elder one of the same key
+                    last = c;
+                    return c;
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    private class Run implements Comparable<Run> {
+        private final long sequence;
+        private final PeekingIterator<Index> iterator;
+
+        Run(long sequence, File file) {
+            this.sequence = sequence;
+            this.iterator = Iterators.peekingIterator(new IterableFile(file).toIterator(new Function<ByteBuffer, Index>() {
+                @Override
+                public Index apply(ByteBuffer byteBuffer) {
+                    return codec.decode(byteBuffer);
+                }
+            }));
+        }
+
+        @Override
+        public int compareTo(Run that) {
+            int result = iterator.peek().compareTo(that.iterator.peek());
+            if (result != 0) return result;
+            return sequence > that.sequence ? -1 : (sequence == that.sequence ? 0 : 1); // newer first
+        }
+    }
+}
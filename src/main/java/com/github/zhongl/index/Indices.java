@@ -16,21 +16,28 @@
 package com.github.zhongl.index;
 
 import com.github.zhongl.io.DirectBuffer;
+import com.github.zhongl.io.IterableFile;
 import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.AbstractList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.RandomAccess;
+import java.util.*;
 
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Iterators.peekingIterator;
 
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+/**
+ * {@link Indices} are sorted by key in a file loaded in memory.
+ * <p/>
+ * Indices of a fixed length codec are records could be binary searched, or they are prefix compressed {@link Blocks}
+ * for variable length keys, or {@link Columns} for a {@link ColumnCodec}. All could be scanned in key order.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
 @ThreadSafe
 public class Indices {
 
@@ -38,6 +45,10 @@ public class Indices {
     private final IndexCodec codec;
     private final DirectBuffer directBuffer;
     private final SortedIndexList sortedIndexList;
+    private final boolean blocked;
+    private final ColumnCodec columns;
+
+    private volatile LoadedLayout layout; // of blocks
 
     public Indices(File file, IndexCodec codec) {
         try {
@@ -45,31 +56,264 @@ public class Indices {
             this.codec = codec;
             this.merger = new Merger(file.getParentFile(), codec);
             this.sortedIndexList = new SortedIndexList();
+            this.blocked = Blocks.isBlocked(codec);
+            this.columns = Columns.isColumnar(codec) ? (ColumnCodec) codec : null;
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
-    public Index get(Key key) {
-        int i = Collections.binarySearch(sortedIndexList, new FakeIndex(key));
+    public Index get(final Key key) {
+        if (columns != null) {
+            return directBuffer.read(new Function<ByteBuffer, Index>() {
+                @Override
+                public Index apply(ByteBuffer byteBuffer) {
+                    long value = columns.keyOf(key);
+                    int size = Columns.size(byteBuffer);
+                    int i = Columns.floor(byteBuffer, size, value);
+                    if (i < 0 || Columns.keyAt(byteBuffer, i) != value) return null;
+                    return Columns.indexAt(byteBuffer, size, i, columns);
+                }
+            });
+        }
+
+        final FakeIndex fake = new FakeIndex(key);
+        if (blocked) {
+            return directBuffer.read(new Function<ByteBuffer, Index>() {
+                @Override
+                public Index apply(ByteBuffer byteBuffer) {
+                    Blocks.Layout layout = layoutOf(byteBuffer);
+                    if (layout.blocks() == 0) return null;
+                    Blocks.BlockReader reader = readerOf(byteBuffer, layout, layout.blockOf(fake));
+                    while (reader.hasNext()) {
+                        Index index = reader.next();
+                        int result = index.compareTo(fake);
+                        if (result == 0) return index;
+                        if (result > 0) return null;
+                    }
+                    return null;
+                }
+            });
+        }
+
+        int i = Collections.binarySearch(sortedIndexList, fake);
         if (i < 0) return null;
         return sortedIndexList.get(i);
     }
 
-    public Indices merge(Difference difference) throws IOException {
-        IndicesFile indicesFile = merger.merge(peekingIterator(iterator()), peekingIterator(difference.iterator()));
+    public Indices merge(Difference difference) throws IOException { return merge(difference, null); }
+
+    /** @param superseded would be applied with the index replaced or removed by difference, nullable. */
+    public Indices merge(Difference difference, Function<Index, Void> superseded) throws IOException {
+        IndicesFile indicesFile = merger.merge(
+                peekingIterator(iterator()),
+                peekingIterator(difference.iterator()),
+                superseded
+        );
         directBuffer.loadFrom(indicesFile.toFile());
         return this;
     }
 
-    public Iterator<Index> iterator() { return sortedIndexList.iterator(); }
+    /**
+     * Unlike {@link #merge(Difference, Function)}, this one is untouched, so that it could be read during and after
+     * merging, and should be closed once no one reads it.
+     *
+     * @param superseded would be applied with the index replaced or removed by difference, nullable.
+     *
+     * @return new indices merged with difference.
+     */
+    public Indices merged(Difference difference, Function<Index, Void> superseded) throws IOException {
+        IndicesFile indicesFile = merger.merge(
+                peekingIterator(iterator()),
+                peekingIterator(difference.iterator()),
+                superseded
+        );
+        return new Indices(indicesFile.toFile(), codec);
+    }
+
+    /** Unload the file, it should not be read any more. */
+    public void close() { directBuffer.unload(); }
+
+    public Iterator<Index> iterator() { return scan(null, null); }
+
+    /**
+     * @param from inclusive, null means from the first.
+     * @param to   exclusive, null means to the last.
+     *
+     * @return indices between keys in order.
+     */
+    public Iterator<Index> scan(Key from, Key to) {
+        final FakeIndex upper = to == null ? null : new FakeIndex(to);
+        final Iterator<Index> iterator = columns != null
+                ? new ColumnIterator(from == null ? Long.MIN_VALUE : columns.keyOf(from))
+                : blocked ? new BlockIterator(from) : listIterator(from);
+        return new AbstractIterator<Index>() {
+            @Override
+            protected Index computeNext() {
+                if (!iterator.hasNext()) return endOfData();
+                Index index = iterator.next();
+                if (upper != null && index.compareTo(upper) >= 0) return endOfData();
+                return index;
+            }
+        };
+    }
+
+    /**
+     * Like {@link #scan(Key, Key)}, but keys are bounded by longs of a {@link ColumnCodec}, without any key object.
+     *
+     * @param from inclusive.
+     * @param to   exclusive.
+     */
+    public Iterator<Index> rangeScan(long from, final long to) {
+        checkState(columns != null, "Range scan needs a column codec rather than %s.", codec);
+        final Iterator<Index> iterator = new ColumnIterator(from);
+        return new AbstractIterator<Index>() {
+            @Override
+            protected Index computeNext() {
+                if (!iterator.hasNext()) return endOfData();
+                Index index = iterator.next();
+                return columns.keyOf(index.key()) < to ? index : endOfData();
+            }
+        };
+    }
 
-    public int size() { return sortedIndexList.size(); }
+    public int size() {
+        if (columns != null) {
+            return directBuffer.read(new Function<ByteBuffer, Integer>() {
+                @Override
+                public Integer apply(ByteBuffer byteBuffer) { return Columns.size(byteBuffer); }
+            });
+        }
+        if (!blocked) return sortedIndexList.size();
+        return directBuffer.read(new Function<ByteBuffer, Integer>() {
+            @Override
+            public Integer apply(ByteBuffer byteBuffer) { return layoutOf(byteBuffer).entries; }
+        });
+    }
 
     public String fileName() { return directBuffer.backendFile().getName(); }
 
     public long diskOccupiedBytes() { return directBuffer.backendFile().length(); }
 
+    /** @return indices of the file read in a streaming way, without loading it. */
+    public static Iterator<Index> stream(File file, final IndexCodec codec) {
+        if (Columns.isColumnar(codec)) return Columns.stream(file, (ColumnCodec) codec);
+        if (Blocks.isBlocked(codec)) return Blocks.stream(file, codec);
+        return new IterableFile(file).toIterator(new Function<ByteBuffer, Index>() {
+            @Override
+            public Index apply(ByteBuffer byteBuffer) { return codec.decode(byteBuffer); }
+        });
+    }
+
+    private Iterator<Index> listIterator(Key from) {
+        if (from == null) return sortedIndexList.iterator();
+        int i = Collections.binarySearch(sortedIndexList, new FakeIndex(from));
+        return sortedIndexList.listIterator(i >= 0 ? i : -i - 1);
+    }
+
+    /** Should be called with the buffer read from {@link #directBuffer}, so that the layout matches the file. */
+    private Blocks.Layout layoutOf(ByteBuffer byteBuffer) {
+        File file = directBuffer.backendFile();
+        LoadedLayout loaded = layout;
+        if (loaded != null && loaded.file == file) return loaded.layout;
+        loaded = new LoadedLayout(file, Blocks.layoutOf(byteBuffer, codec));
+        layout = loaded;
+        return loaded.layout;
+    }
+
+    private Blocks.BlockReader readerOf(ByteBuffer byteBuffer, Blocks.Layout layout, int block) {
+        byteBuffer.limit(layout.endOf(block)).position(layout.offsets[block]);
+        return new Blocks.BlockReader(byteBuffer, codec);
+    }
+
+    private static class LoadedLayout {
+        final File file;
+        final Blocks.Layout layout;
+
+        LoadedLayout(File file, Blocks.Layout layout) {
+            this.file = file;
+            this.layout = layout;
+        }
+    }
+
+    /**
+     * Decodes a block at a time, and the next block is located by the last returned key, so that it goes on well even
+     * if the file was replaced by merging.
+     */
+    private class BlockIterator extends AbstractIterator<Index> {
+        private Index last;
+        private final Index from;
+        private Iterator<Index> current = Collections.<Index>emptyList().iterator();
+
+        BlockIterator(Key from) { this.from = from == null ? null : new FakeIndex(from); }
+
+        @Override
+        protected Index computeNext() {
+            if (!current.hasNext()) current = nextBlock().iterator();
+            if (!current.hasNext()) return endOfData();
+            last = current.next();
+            return last;
+        }
+
+        private List<Index> nextBlock() {
+            return directBuffer.read(new Function<ByteBuffer, List<Index>>() {
+                @Override
+                public List<Index> apply(ByteBuffer byteBuffer) {
+                    Blocks.Layout layout = layoutOf(byteBuffer);
+                    Index after = last != null ? last : from;
+                    int block = after == null ? 0 : layout.blockOf(after);
+                    List<Index> list = new ArrayList<Index>();
+                    for (; block < layout.blocks() && list.isEmpty(); block++) {
+                        Blocks.BlockReader reader = readerOf(byteBuffer.duplicate(), layout, block);
+                        while (reader.hasNext()) {
+                            Index index = reader.next();
+                            if (last != null && index.compareTo(last) <= 0) continue;
+                            if (last == null && from != null && index.compareTo(from) < 0) continue;
+                            list.add(index);
+                        }
+                    }
+                    return list;
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads an entry at a time, and repositions by the last returned key if the file was replaced by merging. The key of
+     * {@link Long#MAX_VALUE} must be the last one, so nothing would follow it.
+     */
+    private class ColumnIterator extends AbstractIterator<Index> {
+        private File current;
+        private int position;
+        private long next;
+        private boolean exhausted;
+
+        ColumnIterator(long from) { next = from; }
+
+        @Override
+        protected Index computeNext() {
+            if (exhausted) return endOfData();
+            Index index = directBuffer.read(new Function<ByteBuffer, Index>() {
+                @Override
+                public Index apply(ByteBuffer byteBuffer) {
+                    int size = Columns.size(byteBuffer);
+                    File file = directBuffer.backendFile();
+                    if (file != current) {
+                        current = file;
+                        position = Columns.ceiling(byteBuffer, size, next);
+                    }
+                    if (position >= size) return null;
+
+                    long key = Columns.keyAt(byteBuffer, position);
+                    if (key == Long.MAX_VALUE) exhausted = true;
+                    else next = key + 1;
+                    return Columns.indexAt(byteBuffer, size, position++, columns);
+                }
+            });
+            return index == null ? endOfData() : index;
+        }
+    }
+
     private static class FakeIndex extends Index {
 
         protected FakeIndex(Key key) { super(key); }
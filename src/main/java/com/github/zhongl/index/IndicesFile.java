@@ -17,26 +17,153 @@ package com.github.zhongl.index;
 
 import com.github.zhongl.codec.Encoder;
 import com.github.zhongl.io.FileAppender;
+import com.google.common.base.Function;
+import com.google.common.io.Closeables;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+/**
+ * {@link IndicesFile} appends sorted indices as fixed length records, or as prefix compressed {@link Blocks} if the
+ * encoder is of variable length, or as {@link Columns} if the encoder is a {@link ColumnCodec}.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
 class IndicesFile {
 
     private final FileAppender appender;
     private final Encoder<Index> encoder;
+    private final boolean blocked;
+    private final ColumnCodec columns;
+    private final File cluesFile;
+    private final FileAppender clues;
+    private final File overflowFile;
+    private final FileAppender overflow;
+    private final List<Integer> offsets;
+
+    private byte[] last;
+    private int written;
+    private int blockStart;
+    private int entries;
+    private long overflowed;
 
     IndicesFile(File dir, Encoder<Index> encoder) throws IOException {
-        appender = new FileAppender(new File(dir, System.nanoTime() + ".i"));
+        long name = System.nanoTime();
+        appender = new FileAppender(new File(dir, name + ".i"));
         this.encoder = encoder;
+        this.blocked = Blocks.isBlocked(encoder);
+        this.offsets = new ArrayList<Integer>();
+        this.columns = Columns.isColumnar(encoder) ? (ColumnCodec) encoder : null;
+        this.cluesFile = columns == null ? null : new File(dir, name + Columns.CLUES_SUFFIX);
+        this.clues = columns == null ? null : new FileAppender(cluesFile);
+        this.overflowFile = columns == null ? null : new File(dir, name + Columns.OVERFLOW_SUFFIX);
+        this.overflow = columns == null ? null : new FileAppender(overflowFile);
     }
 
     public void append(Index index) throws IOException {
-        appender.append(encoder.encode(index));
+        if (columns != null) {
+            long clue = columns.clueOf(index);
+            if (clue == ColumnCodec.OVERFLOW) {
+                clue = ~overflowed++;
+                overflow.append(encoder.encode(index));
+            }
+            appendLong(appender, columns.keyOf(index.key()));
+            appendLong(clues, clue);
+            entries++;
+            return;
+        }
+
+        ByteBuffer encoded = encoder.encode(index);
+        if (!blocked) {
+            appender.append(encoded);
+            return;
+        }
+
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+
+        if (last == null || written - blockStart >= Blocks.BLOCK_BYTES) {
+            blockStart = written;
+            offsets.add(written);
+            last = new byte[0];
+        }
+
+        int shared = Blocks.sharedPrefix(last, bytes);
+        ByteBuffer entry = ByteBuffer.allocate(10 + bytes.length - shared);
+        Blocks.putVarint(entry, shared);
+        Blocks.putVarint(entry, bytes.length - shared);
+        entry.put(bytes, shared, bytes.length - shared).flip();
+        written += appender.append(entry);
+
+        last = bytes;
+        entries++;
     }
 
     public File toFile() throws IOException {
-        return appender.force();
+        if (blocked) writeFooter();
+        File file = appender.force();
+        if (columns != null) concatColumns(file);
+        return file;
+    }
+
+    /** Append the clue and overflow columns to the key column, and the number of entries at last. */
+    private void concatColumns(File file) throws IOException {
+        clues.force();
+        overflow.force();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            FileChannel channel = out.getChannel();
+            transfer(cluesFile, channel);
+            transfer(overflowFile, channel);
+            ByteBuffer footer = (ByteBuffer) ByteBuffer.allocate(Columns.FOOTER_LENGTH).putLong(entries).flip();
+            while (footer.hasRemaining()) channel.write(footer);
+            channel.force(false);
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+        cluesFile.delete();
+        overflowFile.delete();
+    }
+
+    private static void transfer(File file, FileChannel channel) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long length = in.getChannel().size();
+            for (long position = 0; position < length; )
+                position += in.getChannel().transferTo(position, length - position, channel);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private static void appendLong(FileAppender appender, final long value) throws IOException {
+        appender.append(new Function<ByteBuffer, Void>() {
+            @Override
+            public Void apply(ByteBuffer buffer) {
+                buffer.putLong(value);
+                return null;
+            }
+        });
+    }
+
+    private void writeFooter() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096); // the footer might be larger than the batch of appender
+        for (Integer offset : offsets) {
+            if (!buffer.hasRemaining()) {
+                appender.append((ByteBuffer) buffer.flip());
+                buffer.clear();
+            }
+            buffer.putInt(offset);
+        }
+        appender.append((ByteBuffer) buffer.flip());
+        buffer.clear();
+        buffer.putInt(offsets.size()).putInt(entries).putInt(written).putInt(Blocks.MAGIC).flip();
+        appender.append(buffer);
     }
 }
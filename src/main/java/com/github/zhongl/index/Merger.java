@@ -16,6 +16,7 @@
 package com.github.zhongl.index;
 
 import com.github.zhongl.codec.Encoder;
+import com.google.common.base.Function;
 import com.google.common.collect.PeekingIterator;
 
 import java.io.File;
@@ -34,6 +35,12 @@ class Merger {
     }
 
     public IndicesFile merge(PeekingIterator<Index> base, PeekingIterator<Index> delta) throws IOException {
+        return merge(base, delta, null);
+    }
+
+    /** @param superseded would be applied with the base index replaced or removed by delta, nullable. */
+    public IndicesFile merge(PeekingIterator<Index> base, PeekingIterator<Index> delta, Function<Index, Void> superseded)
+            throws IOException {
         IndicesFile file = new IndicesFile(dir, encoder);
 
         while (base.hasNext() && delta.hasNext()) {
@@ -50,6 +57,7 @@ class Merger {
                 c = b;
                 delta.next();
                 base.next();
+                if (superseded != null) superseded.apply(a);
             }
 
             if (c.isRemoved()) continue;           // remove this entry
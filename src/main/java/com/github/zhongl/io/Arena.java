@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.github.zhongl.util.DirectByteBufferCleaner;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Arena} copies encoded values into direct slabs, so that short-lived values are kept out of the heap.
+ * <p/>
+ * Slices are allocated by bumping the position of the current slab, and a slab would be recycled after it is full
+ * and all its slices are freed. A value larger than a slab takes a dedicated one, which is cleaned on freeing. Slabs
+ * are reserved from a {@link MemoryBudget} if there is, and pooled ones would be cleaned under its pressure.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class Arena {
+    static final int SLAB_BYTES = Integer.getInteger("ipage.arena.slab.kb", 1024) * 1024;
+    static final int POOLED_SLABS = Integer.getInteger("ipage.arena.pooled.slabs", 8);
+
+    private final int slabBytes;
+    private final MemoryBudget budget;
+    private final MemoryBudget.Shrinker shrinker;
+    private final Queue<Slab> pool;
+    private final AtomicLong directBytes;
+
+    @GuardedBy("this")
+    private Slab current;
+
+    public Arena() { this(SLAB_BYTES, MemoryBudget.SHARED); }
+
+    public Arena(int slabBytes) { this(slabBytes, null); }
+
+    /** @param budget nullable means unaccounted. */
+    public Arena(int slabBytes, MemoryBudget budget) {
+        this.slabBytes = slabBytes;
+        this.budget = budget;
+        this.pool = new ConcurrentLinkedQueue<Slab>();
+        this.directBytes = new AtomicLong();
+        this.shrinker = new MemoryBudget.Shrinker() {
+            @Override
+            public long shrink(long bytes) { return trim(bytes); }
+        };
+        if (budget != null) budget.register(shrinker);
+    }
+
+    /** @return slice of copied remaining bytes of source, which should be freed after use. */
+    public Slice allocate(ByteBuffer source) {
+        int length = source.remaining();
+        if (length > slabBytes) {
+            Slab dedicated = new Slab(length, false);
+            Slice slice = dedicated.slice(source);
+            dedicated.release(); // retired at once
+            return slice;
+        }
+
+        synchronized (this) {
+            if (current == null || current.remaining() < length) {
+                if (current != null) current.release();
+                current = newSlab();
+            }
+            return current.slice(source);
+        }
+    }
+
+    /** Release all pooled slabs, the ones in use would be cleaned by GC. */
+    public void clear() {
+        synchronized (this) {
+            if (current != null) current.release();
+            current = null;
+        }
+        trim(Long.MAX_VALUE);
+        if (budget != null) budget.unregister(shrinker);
+    }
+
+    /** @return bytes of allocated direct slabs, including the pooled. */
+    public long directBytes() { return directBytes.get(); }
+
+    private long trim(long bytes) {
+        long cleaned = 0L;
+        for (Slab slab = pool.poll(); slab != null; slab = cleaned < bytes ? pool.poll() : null) {
+            cleaned += slab.buffer.capacity();
+            slab.clean();
+        }
+        return cleaned;
+    }
+
+    private Slab newSlab() {
+        Slab slab = pool.poll();
+        if (slab == null) return new Slab(slabBytes, true);
+        slab.reset();
+        return slab;
+    }
+
+    private void recycle(Slab slab) {
+        if (slab.pooled && pool.size() < POOLED_SLABS) pool.offer(slab);
+        else slab.clean();
+    }
+
+    /** {@link Slice} is a range of a slab, whose bytes would be overwritten once it is freed. */
+    public final class Slice {
+        private final Slab slab;
+        private final int offset;
+        private final int length;
+
+        private Slice(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** @return a read only view of the slice. */
+        public ByteBuffer read() {
+            ByteBuffer duplicate = slab.buffer.duplicate();
+            duplicate.limit(offset + length).position(offset);
+            return duplicate.slice().asReadOnlyBuffer();
+        }
+
+        public int length() { return length; }
+
+        /** Should be called only once. */
+        public void free() { slab.release(); }
+    }
+
+    private class Slab {
+        final ByteBuffer buffer;
+        final boolean pooled;
+        final AtomicInteger references; // one for being current, and one for each live slice.
+
+        @GuardedBy("Arena.this")
+        int position;
+
+        Slab(int capacity, boolean pooled) {
+            if (budget != null) budget.reserve(capacity);
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.pooled = pooled;
+            this.references = new AtomicInteger(1);
+            directBytes.addAndGet(capacity);
+        }
+
+        int remaining() { return buffer.capacity() - position; }
+
+        Slice slice(ByteBuffer source) {
+            int offset = position;
+            int length = source.remaining();
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset);
+            duplicate.put(source.duplicate());
+            position += length;
+            references.incrementAndGet();
+            return new Slice(this, offset, length);
+        }
+
+        void release() { if (references.decrementAndGet() == 0) recycle(this); }
+
+        void reset() {
+            position = 0;
+            references.set(1);
+        }
+
+        void clean() {
+            directBytes.addAndGet(-buffer.capacity());
+            if (budget != null) budget.release(buffer.capacity());
+            DirectByteBufferCleaner.clean(buffer);
+        }
+    }
+}
@@ -79,6 +79,18 @@ public class DirectBuffer {
         }
     }
 
+    /** Release loaded bytes, which should not be read by anyone, reading after it would see nothing. */
+    public void unload() {
+        lock.writeLock().lock();
+        try {
+            ByteBuffer toClean = byteBuffer;
+            byteBuffer = ByteBuffer.allocate(0);
+            DirectByteBufferCleaner.clean(toClean);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     public File backendFile() {
         lock.readLock().lock();
         try {
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.github.zhongl.util.DirectByteBufferCleaner;
+import org.softee.management.annotation.Description;
+import org.softee.management.annotation.MBean;
+import org.softee.management.annotation.ManagedAttribute;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link DirectBufferPool} reuses direct buffers in power-of-2 size classes, so that short-lived appenders and
+ * iterators don't allocate and clean direct memory every time.
+ * <p/>
+ * Idle buffers are kept no more than the max pooled bytes, the rest would be cleaned on releasing. A lease collected
+ * by GC without releasing is counted as a leak, and its buffer would be taken back on next acquiring. Allocated bytes
+ * are reserved from a {@link MemoryBudget} if there is, and idle buffers would be cleaned under its pressure.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+@MBean
+public class DirectBufferPool {
+    static final int MIN_CLASS_SHIFT = 12;  // 4K
+    static final int MAX_CLASS_SHIFT = 24;  // 16M
+    static final long MAX_POOLED_BYTES = Long.getLong("ipage.buffer.pool.max.mb", 64L) * 1024 * 1024;
+
+    public static final DirectBufferPool SHARED = new DirectBufferPool(MAX_POOLED_BYTES, MemoryBudget.SHARED);
+
+    private final long maxPooledBytes;
+    private final MemoryBudget budget;
+    private final List<Queue<ByteBuffer>> classes;
+    private final Set<LeaseReference> leased;
+    private final ReferenceQueue<Lease> abandoned;
+    private final AtomicLong allocatedBytes;
+    private final AtomicLong pooledBytes;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong leaks;
+
+    public DirectBufferPool(long maxPooledBytes) { this(maxPooledBytes, null); }
+
+    /** @param budget nullable means unaccounted. */
+    public DirectBufferPool(long maxPooledBytes, MemoryBudget budget) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.budget = budget;
+        this.classes = new ArrayList<Queue<ByteBuffer>>();
+        for (int i = MIN_CLASS_SHIFT; i <= MAX_CLASS_SHIFT; i++) classes.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        this.leased = Collections.newSetFromMap(new ConcurrentHashMap<LeaseReference, Boolean>());
+        this.abandoned = new ReferenceQueue<Lease>();
+        this.allocatedBytes = new AtomicLong();
+        this.pooledBytes = new AtomicLong();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.leaks = new AtomicLong();
+        if (budget == null) return;
+        budget.register(new MemoryBudget.Shrinker() {
+            @Override
+            public long shrink(long bytes) { return trim(bytes); }
+        });
+    }
+
+    /** @return a lease of a cleared buffer whose capacity is not less than the required, which should be released. */
+    public Lease acquire(int capacity) {
+        checkArgument(capacity > 0, "Capacity %s should be positive.", capacity);
+        reclaimAbandoned();
+
+        int shift = shiftOf(capacity);
+        ByteBuffer buffer = shift > MAX_CLASS_SHIFT ? null : classes.get(shift - MIN_CLASS_SHIFT).poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            int allocating = shift > MAX_CLASS_SHIFT ? capacity : 1 << shift;
+            if (budget != null) budget.reserve(allocating);
+            buffer = ByteBuffer.allocateDirect(allocating);
+            allocatedBytes.addAndGet(allocating);
+        } else {
+            hits.incrementAndGet();
+            pooledBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+        }
+
+        Lease lease = new Lease(buffer);
+        leased.add(lease.reference);
+        return lease;
+    }
+
+    @ManagedAttribute
+    @Description("bytes of direct buffers allocated by the pool, including the leased and the idle.")
+    public long getAllocatedBytes() { return allocatedBytes.get(); }
+
+    @ManagedAttribute
+    @Description("bytes of idle direct buffers in the pool.")
+    public long getPooledBytes() { return pooledBytes.get(); }
+
+    @ManagedAttribute
+    public int getLeased() { return leased.size(); }
+
+    @ManagedAttribute
+    public long getHits() { return hits.get(); }
+
+    @ManagedAttribute
+    public long getMisses() { return misses.get(); }
+
+    @ManagedAttribute
+    @Description("leases collected by GC without releasing.")
+    public long getLeaks() {
+        reclaimAbandoned();
+        return leaks.get();
+    }
+
+    private void reclaimAbandoned() {
+        for (Reference<? extends Lease> reference = abandoned.poll(); reference != null; reference = abandoned.poll()) {
+            LeaseReference leaseReference = (LeaseReference) reference;
+            if (!leased.remove(leaseReference)) continue;
+            leaks.incrementAndGet();
+            giveBack(leaseReference.buffer);
+        }
+    }
+
+    private void giveBack(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int shift = shiftOf(capacity);
+        boolean classed = shift <= MAX_CLASS_SHIFT && 1 << shift == capacity;
+
+        if (classed) {
+            if (pooledBytes.addAndGet(capacity) <= maxPooledBytes) {
+                classes.get(shift - MIN_CLASS_SHIFT).offer(buffer);
+                return;
+            }
+            pooledBytes.addAndGet(-capacity); // over the limit
+        }
+
+        clean(buffer);
+    }
+
+    /** @return bytes of idle buffers cleaned, larger ones first. */
+    long trim(long bytes) {
+        long cleaned = 0L;
+        for (int i = classes.size() - 1; i >= 0 && cleaned < bytes; i--) {
+            for (ByteBuffer buffer = classes.get(i).poll(); buffer != null; buffer = classes.get(i).poll()) {
+                pooledBytes.addAndGet(-buffer.capacity());
+                cleaned += buffer.capacity();
+                clean(buffer);
+                if (cleaned >= bytes) break;
+            }
+        }
+        return cleaned;
+    }
+
+    private void clean(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        allocatedBytes.addAndGet(-capacity);
+        if (budget != null) budget.release(capacity);
+        DirectByteBufferCleaner.clean(buffer);
+    }
+
+    /** @return the shift of the smallest size class not less than capacity. */
+    static int shiftOf(int capacity) {
+        if (capacity <= 1 << MIN_CLASS_SHIFT) return MIN_CLASS_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    /** {@link Lease} holds a pooled buffer until it is released, it should not be used after releasing. */
+    public final class Lease {
+        private final ByteBuffer buffer;
+        private final LeaseReference reference;
+
+        private Lease(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.reference = new LeaseReference(this, buffer);
+        }
+
+        public ByteBuffer buffer() { return buffer; }
+
+        /** Releasing more than once is ignored. */
+        public void release() {
+            if (!leased.remove(reference)) return;
+            reference.clear();
+            giveBack(buffer);
+        }
+    }
+
+    private class LeaseReference extends WeakReference<Lease> {
+        private final ByteBuffer buffer; // kept for taking back after the lease is collected
+
+        LeaseReference(Lease lease, ByteBuffer buffer) {
+            super(lease, abandoned);
+            this.buffer = buffer;
+        }
+    }
+}
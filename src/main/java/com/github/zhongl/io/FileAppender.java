@@ -16,7 +16,6 @@
 
 package com.github.zhongl.io;
 
-import com.github.zhongl.util.DirectByteBufferCleaner;
 import com.google.common.base.Function;
 import com.google.common.io.Closeables;
 
@@ -35,15 +34,23 @@ import static com.google.common.base.Preconditions.checkState;
 @NotThreadSafe
 public class FileAppender {
     private static final int BATCH_KB = Integer.getInteger("ipage.file.appender.batch.kb", 1024) * 1024;// 1M
+    private static final int TRANSFER_CHUNK = 64 * 1024;
 
+    private final DirectBufferPool.Lease lease;
     private final ByteBuffer batchBuffer;
     private final File file;
     private final FileOutputStream fileOutputStream;
+    private final TokenBucket tokenBucket;
 
     /** An {@link OutOfMemoryError} should be handled. */
-    public FileAppender(File file) {
+    public FileAppender(File file) { this(file, null); }
+
+    /** @param tokenBucket limits bytes written and transferred, nullable means unlimited. */
+    public FileAppender(File file, TokenBucket tokenBucket) {
         this.file = file;
-        batchBuffer = ByteBuffer.allocateDirect(BATCH_KB);
+        this.tokenBucket = tokenBucket;
+        lease = DirectBufferPool.SHARED.acquire(BATCH_KB);
+        batchBuffer = lease.buffer();
         try {
             fileOutputStream = new FileOutputStream(file, false);
         } catch (FileNotFoundException e) {
@@ -72,10 +79,21 @@ public class FileAppender {
     }
 
     public int transferFrom(FileChannel channel, long position, int length) throws IOException {
-        checkState(
-                channel.transferTo(position, length, thisChannel()) == length,
-                "Unexpected transfer length, there may be a bug in FileChannelImpl#transferTo, you should take care of it."
-        );
+        if (tokenBucket == null) {
+            checkState(
+                    channel.transferTo(position, length, thisChannel()) == length,
+                    "Unexpected transfer length, there may be a bug in FileChannelImpl#transferTo, you should take care of it."
+            );
+            return length;
+        }
+
+        for (int transferred = 0; transferred < length; ) { // chunk by chunk to smooth the limited rate
+            int chunk = Math.min(TRANSFER_CHUNK, length - transferred);
+            tokenBucket.acquire(chunk);
+            long count = channel.transferTo(position + transferred, chunk, thisChannel());
+            checkState(count > 0, "Unexpected transfer length %s at %s of %s.", count, transferred, length);
+            transferred += count;
+        }
         return length;
     }
 
@@ -84,15 +102,16 @@ public class FileAppender {
         try {
             if (batchBuffer.position() > 0) write();
             thisChannel().force(false);
-            DirectByteBufferCleaner.clean(batchBuffer);
             return file;
         } finally {
+            lease.release();
             Closeables.closeQuietly(fileOutputStream);
         }
     }
 
     private void write() throws IOException {
         batchBuffer.flip();
+        if (tokenBucket != null) tokenBucket.acquire(batchBuffer.remaining());
         while (batchBuffer.hasRemaining()) thisChannel().write(batchBuffer);
         batchBuffer.clear();
     }
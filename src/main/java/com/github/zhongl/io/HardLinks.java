@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.github.zhongl.io;
+
+import com.google.common.io.Closeables;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * {@link HardLinks} links a file by the API of Java 7 if the running JVM has, or copies it by
+ * {@link FileChannel#transferTo} instead, e.g. on Java 6 or across file systems.
+ * <p/>
+ * The API is invoked by reflection, so that the source level would be still compatible with Java 6.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class HardLinks {
+    private static final Method TO_PATH = method("java.io.File", "toPath");
+    private static final Method CREATE_LINK =
+            method("java.nio.file.Files", "createLink", "java.nio.file.Path", "java.nio.file.Path");
+    private static final Method GET_ATTRIBUTE = method("java.nio.file.Files", "getAttribute",
+                                                       "java.nio.file.Path", "java.lang.String",
+                                                       "[Ljava.nio.file.LinkOption;");
+    private static final Object NO_LINK_OPTIONS = GET_ATTRIBUTE == null ? null
+            : Array.newInstance(GET_ATTRIBUTE.getParameterTypes()[2].getComponentType(), 0);
+
+    private HardLinks() {}
+
+    public static boolean isSupported() { return TO_PATH != null && CREATE_LINK != null; }
+
+    /** @return true if linked, or false if copied. */
+    public static boolean linkOrCopy(File existing, File link) throws IOException {
+        if (isSupported()) {
+            try {
+                CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+                return true;
+            } catch (Exception ignored) { } // e.g. across file systems or not supported by the file system
+        }
+        copy(existing, link);
+        return false;
+    }
+
+    /**
+     * A shared file should not be truncated, since the content is shared with other links.
+     *
+     * @return true if the file may have other links, it would be false always if links are not supported.
+     */
+    public static boolean isShared(File file) {
+        if (!isSupported()) return false;
+        if (GET_ATTRIBUTE == null) return true;
+        try {
+            Object count = GET_ATTRIBUTE.invoke(null, TO_PATH.invoke(file), "unix:nlink", NO_LINK_OPTIONS);
+            return ((Number) count).intValue() > 1;
+        } catch (Exception e) {
+            return true; // link count is unknown, e.g. on windows
+        }
+    }
+
+    static void copy(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target, false);
+            try {
+                FileChannel from = in.getChannel();
+                FileChannel to = out.getChannel();
+                long size = from.size();
+                for (long position = 0L; position < size; ) {
+                    long count = from.transferTo(position, size - position, to);
+                    checkState(count > 0, "Unexpected transfer length %s at %s of %s.", count, position, size);
+                    position += count;
+                }
+                to.force(false);
+            } finally {
+                Closeables.closeQuietly(out);
+            }
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private static Method method(String className, String name, String... parameterClassNames) {
+        try {
+            Class<?>[] parameterTypes = new Class<?>[parameterClassNames.length];
+            for (int i = 0; i < parameterTypes.length; i++) parameterTypes[i] = Class.forName(parameterClassNames[i]);
+            return Class.forName(className).getMethod(name, parameterTypes);
+        } catch (Exception e) {
+            return null; // absent before Java 7
+        }
+    }
+}
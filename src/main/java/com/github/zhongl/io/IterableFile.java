@@ -16,10 +16,12 @@
 
 package com.github.zhongl.io;
 
-import com.github.zhongl.util.DirectByteBufferCleaner;
+import com.github.zhongl.codec.Framing;
+import com.github.zhongl.util.CloseableIterator;
 import com.google.common.base.Function;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.File;
@@ -29,16 +31,50 @@ import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+/**
+ * {@link IterableFile} iterates objects decoded from a file buffer by buffer.
+ * <p/>
+ * Without {@link Framing}, the end of loaded bytes is detected by the exception thrown from decoding. With it, the
+ * length of next object is told before decoding, and a buffer is refilled only if the object is incomplete. Then the
+ * next buffer could be read ahead on a background thread while decoding the current one, if ipage.iterable.file.read
+ * .ahead is true.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
 @ThreadSafe
 public class IterableFile {
     protected static final int BUFFER_SIZE = Integer.getInteger("ipage.iterable.file.buffer.size", 1024) * 1024; // 1M
+    static final boolean READ_AHEAD = Boolean.getBoolean("ipage.iterable.file.read.ahead");
+
+    private static final Logger LOGGER = Logger.getLogger(IterableFile.class.getName());
+
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("read-ahead-%d").setDaemon(true).build()
+    );
 
+    protected final File file;
     protected final FileInputStream stream;
+    protected final long from;
+    protected final long to;
 
-    public IterableFile(File file) {
+    public IterableFile(File file) { this(file, 0L, Long.MAX_VALUE); }
+
+    /**
+     * @param from position of the first object, inclusive.
+     * @param to   position to stop, exclusive, an object crossing it would not be decoded.
+     */
+    public IterableFile(File file, long from, long to) {
+        this.file = file;
+        this.from = from;
+        this.to = to;
         try {
             stream = new FileInputStream(file);
         } catch (FileNotFoundException e) {
@@ -46,39 +82,206 @@ public class IterableFile {
         }
     }
 
-    public <T> Iterator<T> toIterator(final Function<ByteBuffer, T> function) {
-        return new AbstractIterator<T>() {
-            private ByteBuffer byteBuffer = (ByteBuffer) ByteBuffer.allocateDirect(BUFFER_SIZE).position(BUFFER_SIZE);
-            private long position = 0;
+    /** @return an iterator closes the file once it is exhausted, or else it should be closed. */
+    public <T> CloseableIterator<T> toIterator(Function<ByteBuffer, T> function) {
+        return new UnframedIterator<T>(function);
+    }
 
-            @Override
-            protected synchronized T computeNext() {
-                while (true) {
+    /** @param framing tells length of next object, nullable means detecting the end by exception. */
+    public <T> CloseableIterator<T> toIterator(Function<ByteBuffer, T> function, Framing framing) {
+        return toIterator(function, framing, READ_AHEAD);
+    }
+
+    public <T> CloseableIterator<T> toIterator(Function<ByteBuffer, T> function, Framing framing, boolean readAhead) {
+        if (framing == null) return toIterator(function);
+        try {
+            return new FramedIterator<T>(function, framing, readAhead);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @param end position to stop filling, exclusive. */
+    private static int fill(FileChannel channel, long position, ByteBuffer byteBuffer, long end) throws IOException {
+        if (end - position < byteBuffer.remaining()) byteBuffer.limit(byteBuffer.position() + (int) (end - position));
+        int read = 0;
+        while (byteBuffer.hasRemaining()) {
+            int count = channel.read(byteBuffer, position + read); // positional, safe to read ahead concurrently
+            if (count < 0) break;
+            read += count;
+        }
+        return read;
+    }
+
+    private class UnframedIterator<T> extends AbstractIterator<T> implements CloseableIterator<T> {
+        private final Function<ByteBuffer, T> function;
+        private final DirectBufferPool.Lease lease = DirectBufferPool.SHARED.acquire(BUFFER_SIZE);
+        private final ByteBuffer byteBuffer = (ByteBuffer) lease.buffer().position(lease.buffer().limit());
+        private long position = from;
+
+        UnframedIterator(Function<ByteBuffer, T> function) { this.function = function; }
+
+        @Override
+        protected synchronized T computeNext() {
+            while (true) {
+                try {
+                    int last = byteBuffer.position();
+                    ByteBuffer duplicate = byteBuffer.duplicate();
+                    T object = function.apply(duplicate);
+                    byteBuffer.position(duplicate.position());
+                    position += byteBuffer.position() - last;
+                    return object;
+                } catch (RuntimeException e) {
+                    if (isNotOutOfBound(e)) throw e;
                     try {
-                        int last = byteBuffer.position();
-                        ByteBuffer duplicate = byteBuffer.duplicate();
-                        T object = function.apply(duplicate);
-                        byteBuffer.position(duplicate.position());
-                        position += byteBuffer.position() - last;
-                        return object;
-                    } catch (RuntimeException e) {
-                        if (isNotOutOfBound(e)) throw e;
-                        try {
-                            FileChannel channel = stream.getChannel();
-                            if (position >= channel.size()) {
-                                DirectByteBufferCleaner.clean(byteBuffer);
-                                Closeables.closeQuietly(stream);
-                                return endOfData();
-                            }
-                            byteBuffer.clear();
-                            FileChannels.read(channel, position, byteBuffer);
-                        } catch (IOException ex) {
-                            throw new IllegalStateException(ex);
+                        FileChannel channel = stream.getChannel();
+                        long end = Math.min(to, channel.size());
+                        if (position >= end) {
+                            close();
+                            return endOfData();
                         }
+                        byteBuffer.clear();
+                        if (end - position < byteBuffer.remaining()) byteBuffer.limit((int) (end - position));
+                        FileChannels.read(channel, position, byteBuffer);
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
                     }
                 }
             }
-        };
+        }
+
+        @Override
+        public synchronized void close() {
+            lease.release();
+            Closeables.closeQuietly(stream);
+        }
+    }
+
+    private class FramedIterator<T> extends AbstractIterator<T> implements CloseableIterator<T> {
+        private final Function<ByteBuffer, T> function;
+        private final Framing framing;
+        private final FileChannel channel;
+        private final long size;       // position to stop
+
+        private DirectBufferPool.Lease lease;
+        private ByteBuffer buffer;     // remaining bytes are loaded from the file right before end
+        private long end;
+
+        private DirectBufferPool.Lease spare; // read ahead from end, null if disabled
+        private Future<Integer> ahead;
+
+        FramedIterator(Function<ByteBuffer, T> function, Framing framing, boolean readAhead) throws IOException {
+            this.function = function;
+            this.framing = framing;
+            this.channel = stream.getChannel();
+            this.size = Math.min(to, channel.size());
+            this.end = from;
+            this.lease = DirectBufferPool.SHARED.acquire(BUFFER_SIZE);
+            this.buffer = (ByteBuffer) lease.buffer().limit(0);
+            if (readAhead) spare = DirectBufferPool.SHARED.acquire(BUFFER_SIZE);
+        }
+
+        @Override
+        protected synchronized T computeNext() {
+            try {
+                while (true) {
+                    int length = framing.lengthOf(buffer);
+                    long rest = buffer.remaining() + size - end;
+                    if (length == Framing.CORRUPT || length > rest) {
+                        boolean oversized = length != Framing.CORRUPT;
+                        if (oversized && end < size && rest <= buffer.capacity()) { // load the rest to see the end
+                            refill(Framing.UNKNOWN);
+                            continue;
+                        }
+                        // a frame runs over the end is a torn tail left by crash, any other is lost data to be told.
+                        if (!oversized || end < size) warnSkipping(end - buffer.remaining());
+                        close();
+                        return endOfData();
+                    }
+                    if (length != Framing.UNKNOWN && length <= buffer.remaining()) {
+                        ByteBuffer frame = buffer.duplicate();
+                        frame.limit(frame.position() + length);
+                        buffer.position(buffer.position() + length);
+                        return function.apply(frame);
+                    }
+
+                    if (end >= size) { // the rest is incomplete, e.g. left by crash
+                        close();
+                        return endOfData();
+                    }
+                    refill(length);
+                }
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void warnSkipping(long offset) {
+            LOGGER.log(Level.WARNING, "Skip {0} bytes of {1} from {2}, because of a bad frame.",
+                    new Object[]{size - offset, file, offset});
+        }
+
+        private void refill(int length) throws IOException {
+            if (length == Framing.UNKNOWN && buffer.remaining() == buffer.capacity()) length = buffer.capacity() * 2;
+            buffer.compact();
+            if (length > buffer.capacity()) grow(length);
+            if (!takeAhead()) end += fill(channel, end, buffer, size);
+            buffer.flip();
+            readAhead();
+        }
+
+        /** @return false if there is nothing read ahead from end. */
+        private boolean takeAhead() throws IOException {
+            if (ahead == null) return false;
+            try {
+                ByteBuffer read = (ByteBuffer) spare.buffer().duplicate().position(0).limit(ahead.get());
+                ahead = null;
+                if (read.remaining() > buffer.remaining()) read.limit(buffer.remaining()); // the rest would be read again
+                end += read.remaining();
+                buffer.put(read);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private void readAhead() {
+            if (spare == null || end >= size) return;
+            final DirectBufferPool.Lease lease = spare; // held by the reader in case of this iterator is abandoned
+            final long position = end;
+            ahead = READERS.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    ByteBuffer byteBuffer = lease.buffer();
+                    byteBuffer.clear();
+                    return fill(channel, position, byteBuffer, size);
+                }
+            });
+        }
+
+        private void grow(int length) {
+            DirectBufferPool.Lease larger = DirectBufferPool.SHARED.acquire(length);
+            buffer.flip();
+            larger.buffer().put(buffer);
+            lease.release();
+            lease = larger;
+            buffer = larger.buffer();
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                if (ahead != null) ahead.get();
+            } catch (Exception ignored) { }
+            ahead = null;
+            lease.release();
+            if (spare != null) spare.release();
+            Closeables.closeQuietly(stream);
+        }
     }
 
     private boolean isNotOutOfBound(RuntimeException e) {
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import org.softee.management.annotation.Description;
+import org.softee.management.annotation.MBean;
+import org.softee.management.annotation.ManagedAttribute;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link MemoryBudget} accounts bytes reserved by components before they allocate, so that memory is governed by one
+ * capacity instead of guessing from {@link Runtime#freeMemory()}.
+ * <p/>
+ * An optional reservation, e.g. collecting indices for defrag, would be refused if it is over the capacity, while a
+ * forced one, e.g. a buffer of an appender, is always accounted. Registered {@link Shrinker}s, e.g. pools of idle
+ * buffers, are asked to release memory once the reserved bytes are over the capacity, and producers should wait while
+ * the budget is exhausted.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+@MBean
+public class MemoryBudget {
+    static final long CAPACITY_BYTES =
+            Long.getLong("ipage.memory.budget.mb", Runtime.getRuntime().maxMemory() / 2 / 1024 / 1024) * 1024 * 1024;
+
+    public static final MemoryBudget SHARED = new MemoryBudget(CAPACITY_BYTES);
+
+    private final AtomicLong reserved;
+    private final AtomicLong refused;
+    private final AtomicLong shrunk;
+    private final AtomicInteger waiters;
+    private final List<Shrinker> shrinkers;
+
+    private volatile long capacity;
+
+    public MemoryBudget(long capacity) {
+        this.reserved = new AtomicLong();
+        this.refused = new AtomicLong();
+        this.shrunk = new AtomicLong();
+        this.waiters = new AtomicInteger();
+        this.shrinkers = new CopyOnWriteArrayList<Shrinker>();
+        setCapacityBytes(capacity);
+    }
+
+    /** @return false if there is no enough budget even after shrinking. */
+    public boolean tryReserve(long bytes) {
+        checkArgument(bytes >= 0, "Bytes %s should not be negative.", bytes);
+        if (reserveWithinCapacity(bytes)) return true;
+        shrink(bytes);
+        if (reserveWithinCapacity(bytes)) return true;
+        refused.incrementAndGet();
+        return false;
+    }
+
+    /** Reserve even if it is over the capacity, which would make the budget exhausted. */
+    public void reserve(long bytes) {
+        checkArgument(bytes >= 0, "Bytes %s should not be negative.", bytes);
+        if (reserveWithinCapacity(bytes)) return;
+        shrink(bytes);
+        reserved.addAndGet(bytes);
+    }
+
+    public void release(long bytes) {
+        reserved.addAndGet(-bytes);
+        if (waiters.get() == 0) return;
+        synchronized (this) { notifyAll(); }
+    }
+
+    /** @return true if reserved bytes are not less than the capacity after shrinking. */
+    public boolean isExhausted() {
+        long over = reserved.get() - capacity;
+        if (over < 0) return false;
+        shrink(over);
+        return reserved.get() >= capacity;
+    }
+
+    /** @return false if the budget is still exhausted after timeout. */
+    public boolean awaitAvailable(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!isExhausted()) return true;
+        waiters.incrementAndGet();
+        try {
+            synchronized (this) {
+                if (isExhausted()) unit.timedWait(this, timeout);
+            }
+            return !isExhausted();
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    public void register(Shrinker shrinker) { shrinkers.add(shrinker); }
+
+    public void unregister(Shrinker shrinker) { shrinkers.remove(shrinker); }
+
+    @ManagedAttribute
+    public long getCapacityBytes() { return capacity; }
+
+    @ManagedAttribute
+    public void setCapacityBytes(long capacity) {
+        this.capacity = Math.max(0L, capacity);
+        if (waiters.get() == 0) return;
+        synchronized (this) { notifyAll(); }
+    }
+
+    @ManagedAttribute
+    public long getReservedBytes() { return reserved.get(); }
+
+    @ManagedAttribute
+    public long getAvailableBytes() { return Math.max(0L, capacity - reserved.get()); }
+
+    @ManagedAttribute
+    @Description("percent of reserved bytes in the capacity, over 100 means exhausted.")
+    public int getPressurePercent() {
+        long capacity = this.capacity;
+        return capacity == 0 ? 100 : (int) (reserved.get() * 100 / capacity);
+    }
+
+    @ManagedAttribute
+    @Description("times of reservations refused for no enough budget.")
+    public long getRefused() { return refused.get(); }
+
+    @ManagedAttribute
+    @Description("bytes released by shrinkers under pressure.")
+    public long getShrunkBytes() { return shrunk.get(); }
+
+    private boolean reserveWithinCapacity(long bytes) {
+        while (true) {
+            long current = reserved.get();
+            if (current + bytes > capacity) return false;
+            if (reserved.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    private void shrink(long bytes) {
+        long released = 0L;
+        for (Shrinker shrinker : shrinkers) {
+            if (released >= bytes) break;
+            released += shrinker.shrink(bytes - released);
+        }
+        shrunk.addAndGet(released);
+    }
+
+    /** {@link Shrinker} releases memory not in use, e.g. idle buffers of a pool, under pressure. */
+    public interface Shrinker {
+        /** @return bytes released, which should have been given back to the budget. */
+        long shrink(long bytes);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.google.common.base.Predicate;
+import com.google.common.io.Closeables;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Reclaimer} deletes retired files on a background thread, so that unlinking huge files can't stall the caller.
+ * <p/>
+ * A retired file would not be deleted until it is no longer in use, and it would be truncated chunk by chunk in a
+ * limited bandwidth before unlinking, unless it is shared by other hard links. The thread exits when there is nothing
+ * to reclaim for a while, and files left by exiting JVM should be cleaned up by their owner on next opening.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class Reclaimer {
+    static final long BYTES_PER_SECOND = Long.getLong("ipage.reclaimer.bytes.per.second", 256L * 1024 * 1024);
+    static final int CHUNK_BYTES = Integer.getInteger("ipage.reclaimer.chunk.kb", 64 * 1024) * 1024;
+    static final long IDLE_MILLIS = 1000L;
+    static final long RETRY_MILLIS = 100L;
+
+    private final Logger logger;
+    private final BlockingQueue<Retired> queue;
+    private final AtomicLong pendingBytes;
+    private final AtomicInteger pendingFiles;
+
+    private volatile long bytesPerSecond;
+
+    @GuardedBy("this")
+    private Thread worker;
+
+    public Reclaimer() {
+        logger = Logger.getLogger(getClass().getName());
+        queue = new LinkedBlockingQueue<Retired>();
+        pendingBytes = new AtomicLong();
+        pendingFiles = new AtomicInteger();
+        bytesPerSecond = BYTES_PER_SECOND;
+    }
+
+    /** @param inUse should return true if the file is still held by any reader. */
+    public void retire(File file, Predicate<File> inUse) {
+        Retired retired = new Retired(file, inUse);
+        pendingBytes.addAndGet(retired.length);
+        pendingFiles.incrementAndGet();
+        queue.offer(retired);
+        ensureWorking();
+    }
+
+    public long pendingBytes() { return pendingBytes.get(); }
+
+    /** @return number of retired files not deleted yet, include empty ones. */
+    public int pendingFiles() { return pendingFiles.get(); }
+
+    public long bytesPerSecond() { return bytesPerSecond; }
+
+    /** @param bytesPerSecond non-positive means unlimited. */
+    public void bytesPerSecond(long bytesPerSecond) { this.bytesPerSecond = bytesPerSecond; }
+
+    private synchronized void ensureWorking() {
+        if (worker != null) return;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() { work(); }
+        }, "reclaimer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private synchronized boolean quitIfIdle() {
+        if (!queue.isEmpty()) return false;
+        worker = null;
+        return true;
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                Retired retired = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (retired == null) {
+                    if (quitIfIdle()) return;
+                    continue;
+                }
+
+                if (retired.inUse.apply(retired.file)) {
+                    queue.offer(retired);
+                    Thread.sleep(RETRY_MILLIS);
+                    continue;
+                }
+
+                reclaim(retired);
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) { worker = null; }
+        }
+    }
+
+    private void reclaim(Retired retired) throws InterruptedException {
+        long length = retired.length;
+        try {
+            if (HardLinks.isShared(retired.file)) return; // truncating would corrupt other links
+            RandomAccessFile randomAccessFile = new RandomAccessFile(retired.file, "rw");
+            try {
+                while (length > CHUNK_BYTES) { // the last chunk would be unlinked directly
+                    randomAccessFile.setLength(length - CHUNK_BYTES);
+                    length -= CHUNK_BYTES;
+                    pendingBytes.addAndGet(-CHUNK_BYTES);
+                    pace(CHUNK_BYTES);
+                }
+            } finally {
+                Closeables.closeQuietly(randomAccessFile);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Truncate " + retired.file + " failed, delete it directly.", e);
+        } finally {
+            retired.file.delete();
+            pendingBytes.addAndGet(-length);
+            pendingFiles.decrementAndGet();
+            pace(length);
+        }
+    }
+
+    private void pace(long bytes) throws InterruptedException {
+        long limit = bytesPerSecond;
+        if (limit <= 0) return;
+        TimeUnit.MICROSECONDS.sleep(bytes * 1000000L / limit);
+    }
+
+    private static class Retired {
+        final File file;
+        final Predicate<File> inUse;
+        final long length;
+
+        Retired(File file, Predicate<File> inUse) {
+            this.file = file;
+            this.inUse = inUse;
+            this.length = file.length();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TokenBucket} limits bytes per second of background I/O, like compaction.
+ * <p/>
+ * Tokens are refilled continuously up to one second of rate as burst. An acquirer could overdraw the bucket, then it
+ * sleeps outside the lock until the debt would be paid off, so that a large request won't starve small ones.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class TokenBucket {
+    @GuardedBy("this")
+    private long bytesPerSecond;
+
+    @GuardedBy("this")
+    private double tokens;
+
+    @GuardedBy("this")
+    private long lastRefillNanos;
+
+    /** @param bytesPerSecond non-positive means unlimited. */
+    public TokenBucket(long bytesPerSecond) {
+        this.lastRefillNanos = System.nanoTime();
+        rate(bytesPerSecond);
+    }
+
+    public synchronized long rate() { return bytesPerSecond; }
+
+    /** @param bytesPerSecond non-positive means unlimited. */
+    public synchronized void rate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.min(tokens, Math.max(bytesPerSecond, 0));
+    }
+
+    /** Block until the bytes could be consumed. */
+    public void acquire(long bytes) {
+        long waitNanos = reserve(bytes);
+        if (waitNanos <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized long reserve(long bytes) {
+        if (bytesPerSecond <= 0) return 0L;
+        refill();
+        tokens -= bytes;
+        if (tokens >= 0) return 0L;
+        return (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+    }
+
+    @GuardedBy("this")
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        }
+        lastRefillNanos = now;
+    }
+}
@@ -18,6 +18,7 @@ package com.github.zhongl.page;
 
 import com.github.zhongl.codec.Codec;
 import com.github.zhongl.io.FileAppender;
+import com.github.zhongl.io.TokenBucket;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
@@ -34,17 +35,24 @@ import static java.util.Collections.unmodifiableList;
 @ThreadSafe
 public class Binder<V> implements Iterable<Element<V>> {
     protected static final String SUFFIX = ".p";
+    private static final int SCAN_CHUNK = 64 * 1024;
     protected final File dir;
     protected final Codec<V> codec;
     protected final AtomicReference<List<Page<V>>> pages;
+    protected final Sequence sequence;
 
-    public Binder(final File dir, List<Page<V>> list, final Codec<V> codec) {
+    /** End position of dropped tail pages, so that positions keep growing and their ranges would never be reused. */
+    private volatile long droppedEnd;
+
+    /** @param sequence names new pages, which should be called by one thread only. */
+    public Binder(final File dir, List<Page<V>> list, final Codec<V> codec, Sequence sequence) {
         this.dir = dir;
         this.codec = codec;
+        this.sequence = sequence;
         pages = new AtomicReference<List<Page<V>>>(unmodifiableList(list));
     }
 
-    public V get(Range range) throws IOException { return binarySearch(new Offset(range.from())).get(range); }
+    public V get(Range range) throws IOException { return pageOf(range).get(range); }
 
     public Binder<V> append(final Collection<V> values, final Function<Element<V>, Void> collector) throws IOException {
         return modifyPages(new Modification<V>() {
@@ -60,38 +68,108 @@ public class Binder<V> implements Iterable<Element<V>> {
     }
 
     public Binder<V> defrag(final Predicate<Element<V>> filter, final Function<Element<V>, Void> collector) throws IOException {
+        return defrag(filter, collector, null);
+    }
+
+    /** @param tokenBucket limits bytes scanned and transferred, nullable means unlimited. */
+    public Binder<V> defrag(
+            final Predicate<Element<V>> filter,
+            final Function<Element<V>, Void> collector,
+            final TokenBucket tokenBucket
+    ) throws IOException {
         return modifyPages(new Modification<V>() {
             @Override
             public List<Page<V>> apply(List<Page<V>> list) throws IOException {
+                FileAppender fileAppender = new FileAppender(new File(dir, sequence.next() + SUFFIX), tokenBucket);
                 long offset = 0;
-                FileAppender fileAppender = new FileAppender(new File(dir, System.nanoTime() + SUFFIX));
-                for (Page<V> page : list) {
-                    RangeJoiner joiner = new RangeJoiner();
-                    for (Element<V> element : page) {
-                        if (filter.apply(element)) {
-                            Range range = element.range();
-                            joiner.join(range);
-                            long length = range.to() - range.from();
-                            collector.apply(new Element<V>(element.value(), new Range(offset, offset + length)));
-                            offset += length;
-                        }
-                    }
-                    page.transferTo(fileAppender, joiner);
-                }
+                for (Page<V> page : list) offset = transfer(page, fileAppender, filter, collector, offset, tokenBucket);
                 File file = fileAppender.force();
+                droppedEnd = 0L; // all positions are renumbered
                 if (file.length() == 0) return Collections.emptyList();
                 return Collections.singletonList(new Page<V>(file, new Offset(0L), codec));
             }
         });
     }
 
+    /**
+     * Rewrite filtered elements of victims into a detached file, which could be installed later. This does not modify
+     * pages, so it could run on another thread while appending.
+     *
+     * @param victims   should be pages of this binder, and they would be read only.
+     * @param target    file to write.
+     * @param filter    return true if the element should be kept.
+     * @param collector   collect elements moved to target, whose ranges are relative to the beginning of target.
+     * @param tokenBucket limits bytes scanned and transferred, nullable means unlimited.
+     */
+    public File rewrite(
+            Collection<Page<V>> victims,
+            File target,
+            Predicate<Element<V>> filter,
+            Function<Element<V>, Void> collector,
+            TokenBucket tokenBucket
+    ) throws IOException {
+        FileAppender fileAppender = new FileAppender(target, tokenBucket);
+        long offset = 0L;
+        for (Page<V> page : victims) offset = transfer(page, fileAppender, filter, collector, offset, tokenBucket);
+        return fileAppender.force();
+    }
+
+    /**
+     * Replace victims with the rewritten file as a new page at the end.
+     *
+     * @return the new page, or null if the file is empty.
+     */
+    public Page<V> install(final Collection<Page<V>> victims, final File file) throws IOException {
+        final Page<V>[] installed = new Page[1];
+        modifyPages(new Modification<V>() {
+            @Override
+            public List<Page<V>> apply(List<Page<V>> list) throws IOException {
+                ArrayList<Page<V>> newList = new ArrayList<Page<V>>(list);
+                newList.removeAll(victims);
+                installed[0] = null;
+                if (file.length() > 0) {
+                    installed[0] = new Page<V>(file, new Offset(endPositionOf(list)), codec);
+                    newList.add(installed[0]);
+                }
+                return newList;
+            }
+        });
+        if (installed[0] == null) file.delete();
+        return installed[0];
+    }
+
+    /** Remove pages wholesale, all of their elements should be no longer referred. */
+    public Binder<V> drop(final Collection<Page<V>> victims) throws IOException {
+        return modifyPages(new Modification<V>() {
+            @Override
+            public List<Page<V>> apply(List<Page<V>> list) throws IOException {
+                ArrayList<Page<V>> newList = new ArrayList<Page<V>>(list);
+                newList.removeAll(victims);
+                droppedEnd = endPositionOf(list);
+                return newList;
+            }
+        });
+    }
+
+    public Page<V> pageOf(Range range) { return pageOf(pages.get(), range); }
+
+    /** @param pages should be sorted by their numbers, such as {@link #pages()} of any time. */
+    public static <V> Page<V> pageOf(List<Page<V>> pages, Range range) {
+        int i = Collections.binarySearch(pages, new Numbered<Offset>(new Offset(range.from())) {});
+        i = i < 0 ? -(i + 2) : i; // round index
+        return pages.get(i);
+    }
+
+    public List<Page<V>> pages() { return pages.get(); }
+
     @Override
     public Iterator<Element<V>> iterator() { return Iterables.concat(pages.get()).iterator(); }
 
     public long diskOccupiedBytes() { return endPositionOf(pages.get()); }
 
     private long endPositionOf(List<Page<V>> list) {
-        return list.isEmpty() ? 0L : list.get(list.size() - 1).nextPageNumber().value();
+        long end = list.isEmpty() ? 0L : list.get(list.size() - 1).nextPageNumber().value();
+        return Math.max(end, droppedEnd);
     }
 
     private Binder<V> modifyPages(Modification<V> modification) throws IOException {
@@ -102,8 +180,36 @@ public class Binder<V> implements Iterable<Element<V>> {
         return this;
     }
 
+    private long transfer(
+            Page<V> page,
+            FileAppender fileAppender,
+            Predicate<Element<V>> filter,
+            Function<Element<V>, Void> collector,
+            long offset,
+            TokenBucket tokenBucket
+    ) {
+        RangeJoiner joiner = new RangeJoiner();
+        long scanned = 0L;
+        for (Element<V> element : page) {
+            if (tokenBucket != null && (scanned += element.range().length()) >= SCAN_CHUNK) {
+                tokenBucket.acquire(scanned);
+                scanned = 0L;
+            }
+            if (filter.apply(element)) {
+                Range range = element.range();
+                joiner.join(range);
+                long length = range.to() - range.from();
+                collector.apply(new Element<V>(element.value(), new Range(offset, offset + length)));
+                offset += length;
+            }
+        }
+        if (tokenBucket != null && scanned > 0) tokenBucket.acquire(scanned);
+        page.transferTo(fileAppender, joiner);
+        return offset;
+    }
+
     private File append(Iterable<V> values, Function<Element<V>, Void> collector, long offset) throws IOException {
-        FileAppender fileAppender = new FileAppender(new File(dir, System.nanoTime() + SUFFIX));
+        FileAppender fileAppender = new FileAppender(new File(dir, sequence.next() + SUFFIX));
         for (V value : values) offset += append(value, fileAppender, collector, offset);
         return fileAppender.force();
     }
@@ -114,12 +220,6 @@ public class Binder<V> implements Iterable<Element<V>> {
         return appended;
     }
 
-    private Page<V> binarySearch(Offset offset) {
-        int i = Collections.binarySearch(pages.get(), new Numbered<Offset>(offset) {});
-        i = i < 0 ? -(i + 2) : i; // round index
-        return pages.get().get(i);
-    }
-
     public void foreachPage(Function<Page<V>, Void> function) {
         for (Page<V> page : pages.get()) function.apply(page);
     }
@@ -17,9 +17,11 @@
 package com.github.zhongl.page;
 
 import com.github.zhongl.codec.Decoder;
+import com.github.zhongl.codec.Framing;
 import com.github.zhongl.io.FileAppender;
 import com.github.zhongl.io.FileChannels;
 import com.github.zhongl.io.IterableFile;
+import com.github.zhongl.util.CloseableIterator;
 import com.github.zhongl.util.Nils;
 import com.google.common.base.Function;
 
@@ -27,9 +29,15 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
-/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+/**
+ * A page is immutable once it is written, readers should pin it by a version of snapshot, so that it would not be
+ * reclaimed under them.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
 public class Page<V> extends Numbered<Offset> implements Iterable<Element<V>> {
     protected final File file;
     protected final Decoder<V> decoder;
@@ -55,12 +63,43 @@ public class Page<V> extends Numbered<Offset> implements Iterable<Element<V>> {
         }
     }
 
-    public Offset nextPageNumber() { return new Offset(number().value() + file.length()); }
+    /** @param ranges should be in offset order, so that they are read sequentially through one channel. */
+    public List<V> get(final List<Range> ranges) {
+        try {
+            return FileChannels.read(file, new FileChannels.FileChannelFunction<List<V>>() {
+                @Override
+                public List<V> apply(FileChannel channel) throws IOException {
+                    List<V> values = new ArrayList<V>(ranges.size());
+                    for (Range range : ranges) {
+                        ByteBuffer byteBuffer = ByteBuffer.allocate((int) range.length());
+                        FileChannels.read(channel, refer(range.from()), byteBuffer);
+                        values.add(decoder.decode(byteBuffer));
+                    }
+                    return values;
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Offset nextPageNumber() { return new Offset(number().value() + length()); }
+
+    public long length() { return file.length(); }
 
     @Override
-    public Iterator<Element<V>> iterator() {
-        return new IterableFile(file).toIterator(new Function<ByteBuffer, Element<V>>() {
-            private long position = number().value();
+    public CloseableIterator<Element<V>> iterator() { return iterator(number().value(), Long.MAX_VALUE); }
+
+    /**
+     * @param from absolute position of the first element, inclusive.
+     * @param to   absolute position to stop, exclusive.
+     */
+    public CloseableIterator<Element<V>> iterator(final long from, long to) {
+        Framing framing = decoder instanceof Framing ? (Framing) decoder : null;
+        long end = to == Long.MAX_VALUE ? to : refer(to);
+        IterableFile iterableFile = new IterableFile(file, refer(from), end);
+        return iterableFile.toIterator(new Function<ByteBuffer, Element<V>>() {
+            private long position = from;
 
             @Override
             public Element<V> apply(ByteBuffer byteBuffer) {
@@ -72,7 +111,7 @@ public class Page<V> extends Numbered<Offset> implements Iterable<Element<V>> {
                 return element;
             }
 
-        });
+        }, framing);
     }
 
     public void transferTo(final FileAppender fileAppender, final RangeJoiner joiner) {
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.github.zhongl.page;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.File;
+
+/**
+ * {@link Sequence} numbers files in creation order across restarts, which {@link System#nanoTime()} could not, since
+ * its origin is arbitrary and would be reset by rebooting.
+ * <p/>
+ * Numbers are reserved block by block, and a block should be persisted by {@link #reserve(long)} before any number of
+ * it is used, so that a sequence reloaded from the last reserved would never go back.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@NotThreadSafe
+public class Sequence {
+    static final long BLOCK = Long.getLong("ipage.sequence.block", 1024L);
+
+    private long last;
+    private long reserved;
+
+    /** @param last the greatest number has been used or reserved, the next one would be greater than it. */
+    public Sequence(long last) {
+        this.last = last;
+        this.reserved = last;
+    }
+
+    public long next() {
+        if (last >= reserved) {
+            reserve(last + BLOCK);
+            reserved = last + BLOCK;
+        }
+        return ++last;
+    }
+
+    /** @return the greatest number has been used. */
+    public long last() { return last; }
+
+    /** Persist that numbers not greater than the limit are reserved, it does nothing by default. */
+    protected void reserve(long limit) {}
+
+    /** @return the greatest number of files with the suffix in the dir, or 0 if there is none. */
+    public static long lastIn(File dir, String suffix) {
+        long last = 0L;
+        File[] files = dir.listFiles();
+        if (files == null) return last;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(suffix)) continue;
+            try {
+                last = Math.max(last, Long.parseLong(name.substring(0, name.length() - suffix.length())));
+            } catch (NumberFormatException ignored) { } // e.g. null.i
+        }
+        return last;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.github.zhongl.util;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * {@link CloseableIterator} holds resources until it is exhausted or closed, so an iterator left early should be closed.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+
+    /** Release the resources held, closing more than once is ignored. */
+    @Override
+    void close();
+}
@@ -28,6 +28,12 @@ public class Entry<K, V> {
         this.value = checkNotNull(value);
     }
 
+    /** For an entry whose value is computed on demand, {@link #value()} should be overridden. */
+    protected Entry(K key) {
+        this.key = checkNotNull(key);
+        this.value = null;
+    }
+
     public K key() {
         return key;
     }
@@ -37,5 +43,5 @@ public class Entry<K, V> {
     }
 
     @Override
-    public String toString() { return "Entry{key=" + key + ", value=" + value + '}'; }
+    public String toString() { return "Entry{key=" + key + ", value=" + value() + '}'; }
 }
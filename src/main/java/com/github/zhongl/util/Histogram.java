@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.util;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link Histogram} counts non-negative values in power of 2 buckets, so percentiles are upper bounds within 2x.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class Histogram {
+    private static final int BUCKETS = 65; // 0, [1,1], [2,3], [4,7] ... [2^63, Long.MAX_VALUE]
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public Histogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public void record(long value) {
+        if (value < 0L) value = 0L;
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long last;
+        while ((last = max.get()) < value && !max.compareAndSet(last, value)) ;
+    }
+
+    public long count() { return count.get(); }
+
+    public long max() { return max.get(); }
+
+    public long mean() {
+        long c = count.get();
+        return c == 0L ? 0L : sum.get() / c;
+    }
+
+    /** @return the upper bound of the bucket the percentile falls in, not greater than max. */
+    public long percentile(double percent) {
+        long c = count.get();
+        if (c == 0L) return 0L;
+        long rank = (long) Math.ceil(c * percent / 100);
+        long accumulated = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            accumulated += buckets.get(i);
+            if (accumulated >= rank) return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** @return a readable summary for JMX. */
+    public String[] summary() {
+        return new String[]{
+                "count=" + count(),
+                "mean=" + mean(),
+                "p50<=" + percentile(50),
+                "p90<=" + percentile(90),
+                "p99<=" + percentile(99),
+                "max=" + max()
+        };
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket == 0) return 0L;
+        if (bucket == 64) return Long.MAX_VALUE;
+        return (1L << bucket) - 1;
+    }
+}
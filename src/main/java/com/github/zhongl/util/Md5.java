@@ -25,10 +25,16 @@ public class Md5 {
             '8', '9', 'a', 'b',
             'c', 'd', 'e', 'f'};
 
+    private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() { return messageDigest(); }
+    };
+
     private Md5() { }
 
+    /** The digest is cached per thread, since looking up a provider is much more expensive than digesting a key. */
     public static byte[] md5(byte[] bytes) {
-        return messageDigest().digest(bytes);
+        return DIGESTS.get().digest(bytes);
     }
 
     public static MessageDigest messageDigest() {
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.util;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * {@link RingBuffer} is a bounded, preallocated and lock-free queue for multiple producers and a single consumer.
+ * <p/>
+ * Producers claim sequences by CAS on the tail and publish elements into slots, the consumer drains published slots in
+ * batch from the head and clears them. A null slot means not published yet, so the consumer never sees a half claimed
+ * sequence. How to wait for an empty (consumer) or full (producers) buffer is decided by {@link WaitStrategy}.
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+@ThreadSafe
+public class RingBuffer<T> {
+    static final long PRODUCER_PARK_NANOS = 10000L;
+
+    private final AtomicReferenceArray<T> slots;
+    private final int capacity;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong tail; // next sequence to be claimed by producers
+    private final AtomicLong head; // next sequence to be consumed, only written by the consumer
+
+    private volatile Thread waiter;
+
+    /** @param capacity should be power of 2. */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "Capacity %s should be power of 2", capacity);
+        this.slots = new AtomicReferenceArray<T>(capacity);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.waitStrategy = checkNotNull(waitStrategy);
+        this.tail = new AtomicLong();
+        this.head = new AtomicLong();
+    }
+
+    /** @return false if the buffer is full. */
+    public boolean offer(T element) {
+        checkNotNull(element);
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= capacity) return false;
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        publish(sequence, element);
+        return true;
+    }
+
+    /** Wait for a free slot if the buffer is full. */
+    public void put(T element) throws InterruptedException {
+        while (!offer(element)) waitStrategy.backOff();
+    }
+
+    /**
+     * Drain published elements to the batch, this should only be called by the consumer thread.
+     *
+     * @return number of drained elements, 0 if nothing was published in timeout.
+     */
+    public int drainTo(List<? super T> batch, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        int count = drainTo(batch, max);
+        if (count > 0) return count;
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long remains = deadline - System.nanoTime();
+            if (remains <= 0L) return 0;
+            waitStrategy.await(this, remains);
+            count = drainTo(batch, max);
+            if (count > 0) return count;
+        }
+    }
+
+    public int drainTo(List<? super T> batch, int max) {
+        long sequence = head.get();
+        int count = 0;
+        while (count < max) {
+            int index = (int) sequence & mask;
+            T element = slots.get(index);
+            if (element == null) break; // not published yet
+            slots.lazySet(index, null);
+            batch.add(element);
+            sequence++;
+            count++;
+        }
+        if (count > 0) head.lazySet(sequence);
+        return count;
+    }
+
+    public int size() { return (int) Math.max(0L, tail.get() - head.get()); }
+
+    public int capacity() { return capacity; }
+
+    private void publish(long sequence, T element) {
+        slots.set((int) sequence & mask, element); // volatile write must happen before reading waiter
+        Thread thread = waiter;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    private boolean isPublished() { return slots.get((int) head.get() & mask) != null; }
+
+    public enum WaitStrategy {
+        /** Busy spinning, lowest latency with a core burnt. */
+        SPIN {
+            @Override
+            void await(RingBuffer<?> buffer, long nanos) throws InterruptedException { checkInterrupted(); }
+
+            @Override
+            void backOff() throws InterruptedException { checkInterrupted(); }
+        },
+
+        /** Give up the core to other threads between checks. */
+        YIELD {
+            @Override
+            void await(RingBuffer<?> buffer, long nanos) throws InterruptedException {
+                checkInterrupted();
+                Thread.yield();
+            }
+
+            @Override
+            void backOff() throws InterruptedException {
+                checkInterrupted();
+                Thread.yield();
+            }
+        },
+
+        /** Park the consumer until a producer publishes, it costs an unpark for producers on waking up. */
+        PARK {
+            @Override
+            void await(RingBuffer<?> buffer, long nanos) throws InterruptedException {
+                checkInterrupted();
+                buffer.waiter = Thread.currentThread();
+                try {
+                    if (!buffer.isPublished()) LockSupport.parkNanos(buffer, nanos);
+                } finally {
+                    buffer.waiter = null;
+                }
+            }
+
+            @Override
+            void backOff() throws InterruptedException {
+                checkInterrupted();
+                LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+            }
+        };
+
+        abstract void await(RingBuffer<?> buffer, long nanos) throws InterruptedException;
+
+        abstract void backOff() throws InterruptedException;
+
+        private static void checkInterrupted() throws InterruptedException {
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+    }
+}
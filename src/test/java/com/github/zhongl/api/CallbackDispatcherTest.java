@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.google.common.util.concurrent.FutureCallback;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class CallbackDispatcherTest {
+
+    @Test
+    public void keepOrderPerKeyOffCallerThread() throws Exception {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(4);
+        final int times = 1000;
+        final CountDownLatch latch = new CountDownLatch(times * 2);
+        final List<Integer> a = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> b = Collections.synchronizedList(new ArrayList<Integer>());
+        final Thread caller = Thread.currentThread();
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        for (int i = 0; i < times; i++) {
+            dispatcher.onSuccess("a", new Recorder(a, latch, threads), i);
+            dispatcher.onSuccess("b", new Recorder(b, latch, threads), i);
+        }
+
+        assertThat(latch.await(3L, TimeUnit.SECONDS), is(true));
+        dispatcher.stop();
+
+        for (int i = 0; i < times; i++) {
+            assertThat(a.get(i), is(i));
+            assertThat(b.get(i), is(i));
+        }
+        assertThat(threads, not(hasItem(caller)));
+        assertThat(dispatcher.getQueueDepth(), is(0));
+        assertThat(dispatcher.getLatencyMicrosHistogram()[0], is("count=" + times * 2));
+    }
+
+    @Test
+    public void useCallerExecutor() throws Exception {
+        final List<Runnable> executed = new ArrayList<Runnable>();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+                command.run();
+            }
+        });
+
+        List<Integer> results = new ArrayList<Integer>();
+        List<Thread> threads = new ArrayList<Thread>();
+        dispatcher.onSuccess("a", new Recorder(results, new CountDownLatch(1), threads), 1);
+
+        assertThat(executed.size(), is(1));
+        assertThat(results, is(Collections.singletonList(1)));
+        assertThat(dispatcher.getQueueDepthHistogram()[0], is("count=1"));
+    }
+
+    @Test
+    public void runInlineWithoutStripe() throws Exception {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(0);
+        List<Integer> results = new ArrayList<Integer>();
+        List<Thread> threads = new ArrayList<Thread>();
+        dispatcher.onSuccess("a", new Recorder(results, new CountDownLatch(1), threads), 1);
+
+        assertThat(threads, is(Collections.singletonList(Thread.currentThread())));
+    }
+
+    private static class Recorder implements FutureCallback<Integer> {
+        private final List<Integer> results;
+        private final CountDownLatch latch;
+        private final List<Thread> threads;
+
+        Recorder(List<Integer> results, CountDownLatch latch, List<Thread> threads) {
+            this.results = results;
+            this.latch = latch;
+            this.threads = threads;
+        }
+
+        @Override
+        public void onSuccess(Integer result) {
+            results.add(result);
+            threads.add(Thread.currentThread());
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable t) { }
+    }
+}
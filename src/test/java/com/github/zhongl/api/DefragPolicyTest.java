@@ -15,6 +15,7 @@
 
 package com.github.zhongl.api;
 
+import com.github.zhongl.io.MemoryBudget;
 import org.junit.Test;
 
 import static org.hamcrest.Matchers.is;
@@ -28,4 +29,48 @@ public class DefragPolicyTest {
         assertThat(defragPolicy.evaluate(10, 0), is(false));
         assertThat(defragPolicy.evaluate(2, 0), is(true));
     }
+
+    @Test
+    public void estimateByMemoryBudget() throws Exception {
+        DefragPolicy defragPolicy = new DefragPolicy(new MemoryBudget(5 * 1000L));
+        defragPolicy.observeIndices(32 * 100L, 100);
+        assertThat(defragPolicy.estimateDefragBytes(100, 10), is((40L + 32) * 110));
+
+        defragPolicy.setAvailableFreeMemoryRatio(9);
+        assertThat(defragPolicy.evaluate(500, 0), is(false));
+        assertThat(defragPolicy.evaluate(100, 0), is(false)); // delta ratio is fine, but 100 * 72 > 4500
+
+        defragPolicy = new DefragPolicy(new MemoryBudget(100 * 1000L));
+        defragPolicy.observeIndices(32 * 100L, 100);
+        assertThat(defragPolicy.evaluate(500, 0), is(false));
+        assertThat(defragPolicy.evaluate(100, 0), is(true));
+    }
+
+    @Test
+    public void evaluateSpace() throws Exception {
+        DefragPolicy defragPolicy = new DefragPolicy();
+        defragPolicy.setMinReclaimableBytes(0L);
+        assertThat(defragPolicy.evaluateSpace(60, 100), is(false));
+        assertThat(defragPolicy.evaluateSpace(50, 100), is(true));
+
+        defragPolicy.setMinReclaimableBytes(100L);
+        assertThat(defragPolicy.evaluateSpace(50, 100), is(false));
+    }
+
+    @Test
+    public void backoffOnSlowReads() throws Exception {
+        DefragPolicy defragPolicy = new DefragPolicy();
+        defragPolicy.setCompactBytesPerSecond(1024L * 1024);
+        defragPolicy.setReadLatencyThresholdMicros(1000L);
+
+        defragPolicy.readDuringCompaction(1000L * 1000 * 1000);
+        assertThat(defragPolicy.getEffectiveCompactBytesPerSecond(), is(1024L * 1024)); // not enabled
+
+        defragPolicy.setAutoBackoff(true);
+        for (int i = 0; i < 20; i++) defragPolicy.readDuringCompaction(1000L * 1000 * 1000);
+        assertThat(defragPolicy.getEffectiveCompactBytesPerSecond(), is(512L * 1024));
+
+        defragPolicy.setAutoBackoff(false);
+        assertThat(defragPolicy.getEffectiveCompactBytesPerSecond(), is(1024L * 1024));
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Framing;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.util.Entry;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class EntryCodecTest {
+
+    private final EntryCodec<String> codec = new EntryCodec<String>(new LongKeyCodec(), new StringCodec());
+
+    @Test
+    public void lengthOfFramedEntry() throws Exception {
+        ByteBuffer encoded = codec.encode(new Entry<Key, String>(new LongKey(1L), "value"));
+        assertThat(codec.lengthOf(encoded), is(encoded.remaining()));
+        assertThat(codec.lengthOf((ByteBuffer) encoded.duplicate().limit(10)), is(Framing.UNKNOWN));
+    }
+
+    @Test
+    public void corruptLength() throws Exception {
+        assertThat(codec.lengthOf(header(-1)), is(Framing.CORRUPT));
+        assertThat(codec.lengthOf(header(Integer.MAX_VALUE - 4)), is(Framing.CORRUPT)); // overflow
+    }
+
+    private static ByteBuffer header(int valueLength) {
+        return (ByteBuffer) ByteBuffer.allocate(12).putLong(1L).putInt(valueLength).flip();
+    }
+}
@@ -16,7 +16,9 @@
 
 package com.github.zhongl.api;
 
+import com.github.zhongl.codec.Codec;
 import com.github.zhongl.index.Key;
+import com.github.zhongl.io.Arena;
 import com.github.zhongl.util.Entry;
 import com.github.zhongl.util.FutureCallbacks;
 import com.github.zhongl.util.Md5;
@@ -26,6 +28,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -198,6 +201,56 @@ public class EphemeronsTest {
         assertThat(mergeAfter.tryAcquire(20L, TimeUnit.MILLISECONDS), is(true));
     }
 
+    @Test
+    public void offHeapValues() throws Exception {
+        final Codec<Integer> codec = new Codec<Integer>() {
+            @Override
+            public Integer decode(ByteBuffer byteBuffer) { return byteBuffer.getInt(); }
+
+            @Override
+            public ByteBuffer encode(Integer value) { return (ByteBuffer) ByteBuffer.allocate(4).putInt(value).flip(); }
+        };
+        final EntryCodec<Integer> entryCodec = new EntryCodec<Integer>(new Md5KeyCodec(), codec);
+        final Arena arena = new Arena(64);
+        final List<Integer> flushed = new ArrayList<Integer>();
+
+        Ephemerons<Integer> offHeap = new Ephemerons<Integer>(new CallbackDispatcher(0), arena, codec) {
+            @Override
+            protected void requestFlush(
+                    Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates,
+                    Collection<WriteOperation<Key>> removes,
+                    FutureCallback<Void> futureCallback) {
+                for (WriteOperation<Entry<Key, Integer>> operation : addOrUpdates) {
+                    Entry<Key, Integer> entry = entryCodec.decode(entryCodec.encode(operation.attachement()));
+                    flushed.add(operation.attachement().value()); // decoded, rather than the slice
+                    store.appendings.put(entry.key(), entry.value());
+                    operation.onSuccess(Nils.VOID);
+                }
+                futureCallback.onSuccess(Nils.VOID);
+            }
+
+            @Override
+            protected Integer getMiss(Key key) { return store.get(key); }
+        };
+        offHeap.throughout(100);
+
+        for (int i = 0; i < 50; i++) offHeap.add(key(i), i, ignore);
+        offHeap.add(key(0), -1, ignore);
+        assertThat(offHeap.get(key(0)), is(-1));
+        assertThat(offHeap.get(key(49)), is(49));
+        assertThat(offHeap.getOffHeapBytes() > 0L, is(true));
+
+        offHeap.flush();
+
+        assertThat(offHeap.getSize(), is(0));
+        assertThat(flushed.size(), is(50));
+        for (int i = 1; i < 50; i++) assertThat(offHeap.get(key(i)), is(i));
+        assertThat(offHeap.get(key(0)), is(-1));
+
+        offHeap.clear();
+        assertThat(arena.directBytes(), is(0L)); // all slices have been freed
+    }
+
     private Key key(int i) {return new Md5Key(Md5.md5((i + "").getBytes()));}
 
     class Store {
@@ -16,11 +16,17 @@
 
 package com.github.zhongl.api;
 
+import com.github.zhongl.index.Key;
 import com.github.zhongl.util.CallbackFuture;
+import com.github.zhongl.util.Entry;
 import com.github.zhongl.util.FileTestContext;
 import com.github.zhongl.util.FutureCallbacks;
 import com.github.zhongl.util.Md5;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.After;
 import org.junit.Test;
 import org.softee.management.helper.ObjectNameBuilder;
@@ -30,10 +36,14 @@ import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.io.File;
 import java.lang.management.ManagementFactory;
-import java.util.Iterator;
+import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.core.Is.is;
@@ -61,6 +71,26 @@ public class IPageTest extends FileTestContext {
         assertThat(iPage.get(key), is(value));
     }
 
+    @Test
+    public void addWithHugeTtl() throws Exception {
+        dir = testDir("addWithHugeTtl");
+        iPage = stringIPage(dir, 10, 1, Long.MAX_VALUE);
+
+        CallbackFuture<Void> future = new CallbackFuture<Void>();
+        iPage.add("key", "value", Long.MAX_VALUE, TimeUnit.DAYS, future);
+        future.get();
+
+        assertThat(iPage.get("key"), is("value"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectNegativeTtl() throws Exception {
+        dir = testDir("rejectNegativeTtl");
+        iPage = stringIPage(dir, 10, 1, Long.MAX_VALUE);
+
+        iPage.add("key", "value", -1L, TimeUnit.SECONDS, FutureCallbacks.<Void>ignore());
+    }
+
     @Test
     public void flushByCount() throws Exception {
         dir = testDir("flushByCount");
@@ -236,6 +266,229 @@ public class IPageTest extends FileTestContext {
 
     }
 
+    @Test
+    public void addAndRemoveAsync() throws Exception {
+        dir = testDir("addAndRemoveAsync");
+        iPage = stringIPage(dir, 1, 1000, Long.MAX_VALUE);
+
+        ListenableFuture<Void> added = iPage.addAsync("key", "value");
+        try {
+            iPage.addAsync("other", "value").get(); // no permit while the first one is pending
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof RejectedExecutionException, is(true));
+        }
+
+        added.get(); // flushed by the rejected one
+        assertThat(iPage.getAsync("key").get(), is("value"));
+
+        ListenableFuture<Void> removed = iPage.removeAsync("key");
+        iPage.addAsync("other", "value"); // trigger flushing
+        removed.get();
+        assertThat(iPage.getAsync("key").get(), is(nullValue()));
+    }
+
+    @Test
+    public void getAsyncOnCallbackExecutor() throws Exception {
+        dir = testDir("getAsyncOnCallbackExecutor");
+        final List<Runnable> tasks = Collections.synchronizedList(new ArrayList<Runnable>());
+        iPage = new IPage<String, String>(dir, new StringCodec(), 10, 1000L, 1, new Executor() {
+            @Override
+            public void execute(Runnable command) { tasks.add(command); }
+        }) {
+            @Override
+            protected Md5Key transform(String key) { return new Md5Key(Md5.md5(key.getBytes())); }
+        };
+        iPage.start();
+
+        ListenableFuture<String> future = iPage.getAsync("key");
+        assertThat(future.isDone(), is(false));
+        assertThat(tasks.size(), is(1));
+
+        tasks.get(0).run();
+        assertThat(future.get(), is(nullValue()));
+    }
+
+    @Test
+    public void subscribeOnDemand() throws Exception {
+        dir = testDir("subscribeOnDemand");
+        iPage = stringIPage(dir, 10, 1000, 10L);
+
+        for (int i = 0; i < 5; i++) iPage.addAsync(i + "", i + "").get();
+
+        final List<String> values = new ArrayList<String>();
+        final Subscription[] subscriptions = new Subscription[1];
+        final boolean[] completed = new boolean[1];
+        iPage.subscribe(new Subscriber<String>() {
+            @Override
+            public void onSubscribe(Subscription subscription) { subscriptions[0] = subscription; }
+
+            @Override
+            public void onNext(String value) { values.add(value); }
+
+            @Override
+            public void onError(Throwable t) { fail(); }
+
+            @Override
+            public void onComplete() { completed[0] = true; }
+        });
+
+        assertThat(values.isEmpty(), is(true));
+        subscriptions[0].request(2);
+        assertThat(values, is(Arrays.asList("0", "1")));
+        subscriptions[0].request(10);
+        assertThat(values, is(Arrays.asList("0", "1", "2", "3", "4")));
+        assertThat(completed[0], is(true));
+    }
+
+    @Test
+    public void scanOrderedKeys() throws Exception {
+        dir = testDir("scanOrderedKeys");
+        iPage = new IPage<String, String>(dir, new BytesKeyCodec(), new StringCodec(), 100, 10L, 1000) {
+            @Override
+            protected Key transform(String key) { return new BytesKey(key.getBytes()); }
+        };
+        iPage.start();
+
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        for (String topic : new String[]{"b", "a", "c"}) {
+            for (int i = 9; i >= 0; i--) futures.add(iPage.addAsync(topic + "/" + i, topic + i));
+        }
+        Futures.allAsList(futures).get();
+        iPage.removeAsync("b/5").get();
+
+        assertThat(Lists.newArrayList(iPage.scan("b/", "b/~")),
+                   is(Arrays.asList("b0", "b1", "b2", "b3", "b4", "b6", "b7", "b8", "b9")));
+        assertThat(Lists.newArrayList(iPage.scan("c/8", null)), is(Arrays.asList("c8", "c9")));
+        assertThat(iPage.get("a/3"), is("a3"));
+    }
+
+    @Test
+    public void scanSequenceKeys() throws Exception {
+        dir = testDir("scanSequenceKeys");
+        iPage = longIPage(dir);
+
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        for (long i = 9; i >= 0; i--) futures.add(iPage.addAsync(String.valueOf(i), "v" + i));
+        futures.add(iPage.addAsync(String.valueOf(Long.MAX_VALUE), "max"));
+        Futures.allAsList(futures).get();
+        iPage.removeAsync("5").get();
+
+        assertThat(Lists.newArrayList(iPage.scan("3", "8")), is(Arrays.asList("v3", "v4", "v6", "v7")));
+        assertThat(Lists.newArrayList(iPage.scan("9", null)), is(Arrays.asList("v9", "max")));
+        iPage.stop();
+
+        iPage = longIPage(dir);
+        assertThat(iPage.get("7"), is("v7"));
+        iPage.stop();
+
+        assertThat(new File(dir, "HEAD").delete(), is(true)); // rebuild indices by recovery
+        iPage = longIPage(dir);
+        assertThat(iPage.get("7"), is("v7"));
+        assertThat(iPage.get("5"), is(nullValue()));
+        assertThat(Lists.newArrayList(iPage.scan("9", null)), is(Arrays.asList("v9", "max")));
+    }
+
+    @Test
+    public void foreachInParallel() throws Exception {
+        dir = testDir("foreachInParallel");
+        iPage = stringIPage(dir, 100, 10, 10L);
+
+        for (int i = 0; i < 100; i++) iPage.addAsync(i + "", i + "").get();
+        for (int i = 0; i < 10; i++) iPage.addAsync(i + "", "updated " + i).get();
+        for (int i = 90; i < 100; i++) iPage.removeAsync(i + "").get();
+
+        final Set<String> values = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        iPage.foreach(new Function<String, Void>() {
+            @Override
+            public Void apply(String value) {
+                assertThat(values.add(value), is(true));
+                return null;
+            }
+        }, 4);
+
+        Set<String> expect = new HashSet<String>();
+        for (int i = 0; i < 10; i++) expect.add("updated " + i);
+        for (int i = 10; i < 90; i++) expect.add(i + "");
+        assertThat(values, is(expect));
+    }
+
+    @Test
+    public void checkpoint() throws Exception {
+        dir = testDir("checkpoint");
+        iPage = stringIPage(dir, 100, 10, 10L);
+
+        for (int i = 0; i < 100; i++) iPage.addAsync(i + "", i + "").get();
+        for (int i = 90; i < 100; i++) iPage.removeAsync(i + "").get();
+
+        File target = testDir("checkpoint.target");
+        iPage.checkpoint(target);
+
+        for (int i = 0; i < 10; i++) iPage.addAsync(i + "", "updated " + i).get();
+        assertThat(iPage.get("0"), is("updated 0"));
+
+        Map<String, Long> files = filesIn(target);
+        IPage<String, String> copy = new IPage<String, String>(target, new Md5KeyCodec(), new StringCodec(), true) {
+            @Override
+            protected Md5Key transform(String key) { return new Md5Key(Md5.md5(key.getBytes())); }
+        };
+        copy.start();
+        try {
+            for (int i = 0; i < 90; i++) assertThat(copy.get(i + ""), is(i + ""));
+            for (int i = 90; i < 100; i++) assertThat(copy.get(i + ""), is(nullValue()));
+            try {
+                copy.addAsync("0", "changed");
+                fail();
+            } catch (IllegalStateException expected) { }
+            Thread.sleep(Actor.TIMEOUT * 2); // heartbeats
+        } finally {
+            copy.stop();
+        }
+        assertThat(filesIn(target), is(files));
+    }
+
+    /** @return lengths of files by their relative paths. */
+    private static Map<String, Long> filesIn(File dir) {
+        Map<String, Long> files = new TreeMap<String, Long>();
+        File[] children = dir.listFiles();
+        if (children == null) return files;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                for (Map.Entry<String, Long> entry : filesIn(child).entrySet())
+                    files.put(child.getName() + "/" + entry.getKey(), entry.getValue());
+            } else {
+                files.put(child.getName(), child.length());
+            }
+        }
+        return files;
+    }
+
+    @Test
+    public void keysAndEntriesInOrder() throws Exception {
+        dir = testDir("keysAndEntriesInOrder");
+        iPage = new IPage<String, String>(dir, new BytesKeyCodec(), new StringCodec(), 100, 10L, 5) {
+            @Override
+            protected Key transform(String key) { return new BytesKey(key.getBytes()); }
+        };
+        iPage.start();
+
+        for (int i = 9; i >= 0; i--) iPage.addAsync("k" + i, "v" + i).get();
+        iPage.addAsync("k3", "v3'").get(); // move to a newer page
+        iPage.removeAsync("k5").get();
+
+        List<String> keys = new ArrayList<String>();
+        for (Iterator<Key> iterator = iPage.keys(); iterator.hasNext(); ) {
+            keys.add(new String(((BytesKey) iterator.next()).toBytes()));
+        }
+        assertThat(keys, is(Arrays.asList("k0", "k1", "k2", "k3", "k4", "k6", "k7", "k8", "k9")));
+
+        List<String> values = new ArrayList<String>();
+        for (Iterator<Entry<Key, String>> iterator = iPage.entries(); iterator.hasNext(); ) {
+            values.add(iterator.next().value());
+        }
+        assertThat(values, is(Arrays.asList("v0", "v1", "v2", "v3'", "v4", "v6", "v7", "v8", "v9")));
+    }
+
     @Override
     @After
     public void tearDown() throws Exception {
@@ -243,6 +496,15 @@ public class IPageTest extends FileTestContext {
         super.tearDown();
     }
 
+    private IPage<String, String> longIPage(File dir) throws Exception {
+        IPage<String, String> longIPage = new IPage<String, String>(dir, new LongKeyCodec(), new StringCodec(), 100, 10L, 1000) {
+            @Override
+            protected Key transform(String key) { return new LongKey(Long.parseLong(key)); }
+        };
+        longIPage.start();
+        return longIPage;
+    }
+
     private IPage<String, String> stringIPage(File dir, int throughout, int flushCount, long flushMillis) throws Exception {
         IPage<String, String> stringIPage = new IPage<String, String>(dir, new StringCodec(), throughout, flushMillis, flushCount) {
 
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.FileTestContext;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class IQueueTest extends FileTestContext {
+
+    @Test
+    public void consumeInOrder() throws Exception {
+        dir = testDir("consumeInOrder");
+
+        IQueue<String> queue = new IQueue<String>(dir, new StringCodec(), 2);
+        queue.offer("1");
+        queue.offer("2");
+        queue.offer("3");
+
+        IQueue<String>.Consumer consumer = queue.consumer("c");
+        assertThat(consumer.poll(), is("1"));
+        assertThat(consumer.poll(), is("2"));
+        assertThat(consumer.poll(), is(nullValue())); // 3 is pending
+
+        queue.flush();
+        assertThat(consumer.poll(), is("3"));
+        assertThat(consumer.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void resumeFromAcknowledgedCursor() throws Exception {
+        dir = testDir("resumeFromAcknowledgedCursor");
+
+        IQueue<String> queue = new IQueue<String>(dir, new StringCodec(), 1);
+        queue.offer("1");
+        queue.offer("2");
+        queue.offer("3");
+
+        IQueue<String>.Consumer consumer = queue.consumer("c");
+        assertThat(consumer.poll(), is("1"));
+        consumer.ack();
+        assertThat(consumer.poll(), is("2")); // not acknowledged
+
+        IQueue<String> reopened = new IQueue<String>(dir, new StringCodec(), 1);
+        IQueue<String>.Consumer resumed = reopened.consumer("c");
+        assertThat(resumed.poll(), is("2"));
+        assertThat(resumed.poll(), is("3"));
+        assertThat(reopened.consumer("new").poll(), is("2")); // head page of 1 has been reclaimed
+    }
+
+    @Test
+    public void reclaimPagesPassedByAllConsumers() throws Exception {
+        dir = testDir("reclaimPagesPassedByAllConsumers");
+
+        IQueue<String> queue = new IQueue<String>(dir, new StringCodec(), 1);
+        IQueue<String>.Consumer a = queue.consumer("a");
+        IQueue<String>.Consumer b = queue.consumer("b");
+
+        queue.offer("1");
+        queue.offer("2");
+        queue.offer("3");
+        long occupied = queue.diskOccupiedBytes();
+
+        a.poll();
+        a.poll();
+        a.ack();
+        assertThat(queue.diskOccupiedBytes(), is(occupied));
+
+        b.poll();
+        b.ack();
+        assertThat(queue.diskOccupiedBytes(), is(occupied * 2 / 3));
+
+        b.poll();
+        b.poll();
+        b.ack();
+        a.poll();
+        a.ack();
+        assertThat(queue.diskOccupiedBytes(), is(occupied / 3)); // tail page is kept
+        assertThat(a.lag(), is(0L));
+
+        for (int i = 0; i < 50 && queue.pendingReclaimBytes() > 0; i++) Thread.sleep(100L);
+        assertThat(new File(dir, "pages").list().length, is(2)); // tail page and manifest
+    }
+}
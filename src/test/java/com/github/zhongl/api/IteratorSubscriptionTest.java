@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.CloseableIterator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class IteratorSubscriptionTest {
+
+    @Test
+    public void closeOnComplete() throws Exception {
+        Recorder recorder = new Recorder();
+        ClosingIterator iterator = new ClosingIterator(1, 2);
+        new IteratorSubscription<Integer>(iterator, recorder).request(3);
+
+        assertThat(recorder.values, is(Arrays.asList(1, 2)));
+        assertThat(recorder.completed, is(true));
+        assertThat(iterator.closed, is(1));
+    }
+
+    @Test
+    public void closeOnCancel() throws Exception {
+        Recorder recorder = new Recorder();
+        ClosingIterator iterator = new ClosingIterator(1, 2, 3);
+        IteratorSubscription<Integer> subscription = new IteratorSubscription<Integer>(iterator, recorder);
+        subscription.request(1);
+        subscription.cancel();
+        subscription.request(1);
+
+        assertThat(recorder.values, is(Arrays.asList(1)));
+        assertThat(recorder.completed, is(false));
+        assertThat(iterator.closed, is(1));
+    }
+
+    @Test
+    public void closeOnError() throws Exception {
+        Recorder recorder = new Recorder();
+        ClosingIterator iterator = new ClosingIterator(1, 2) {
+            @Override
+            public Integer next() { throw new IllegalStateException("broken"); }
+        };
+        new IteratorSubscription<Integer>(iterator, recorder).request(1);
+
+        assertThat(recorder.error instanceof IllegalStateException, is(true));
+        assertThat(iterator.closed, is(1));
+
+        ClosingIterator badRequested = new ClosingIterator(1);
+        new IteratorSubscription<Integer>(badRequested, recorder).request(0);
+        assertThat(recorder.error instanceof IllegalArgumentException, is(true));
+        assertThat(badRequested.closed, is(1));
+    }
+
+    private static class ClosingIterator implements CloseableIterator<Integer> {
+        private final Iterator<Integer> delegate;
+        int closed;
+
+        ClosingIterator(Integer... values) { delegate = Arrays.asList(values).iterator(); }
+
+        @Override
+        public void close() { closed++; }
+
+        @Override
+        public boolean hasNext() { return delegate.hasNext(); }
+
+        @Override
+        public Integer next() { return delegate.next(); }
+
+        @Override
+        public void remove() { throw new UnsupportedOperationException(); }
+    }
+
+    private static class Recorder implements Subscriber<Integer> {
+        final List<Integer> values = new ArrayList<Integer>();
+        boolean completed;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) { }
+
+        @Override
+        public void onNext(Integer value) { values.add(value); }
+
+        @Override
+        public void onError(Throwable t) { error = t; }
+
+        @Override
+        public void onComplete() { completed = true; }
+    }
+}
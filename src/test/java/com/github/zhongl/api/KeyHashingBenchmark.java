@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.Benchmarks;
+import org.junit.Test;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class KeyHashingBenchmark {
+    private static final int TIMES = 1000000;
+
+    @Test
+    public void hash() throws Exception {
+        final byte[][] keys = new byte[1024][];
+        for (int i = 0; i < keys.length; i++) keys[i] = ("user:" + i * 7919).getBytes();
+
+        for (final KeyHashing hashing : KeyHashing.values()) {
+            Benchmarks.benchmark(hashing.name(), new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < TIMES; i++) hashing.hash(keys[i & 1023]);
+                }
+            }, TIMES);
+        }
+    }
+}
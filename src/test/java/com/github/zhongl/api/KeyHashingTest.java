@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class KeyHashingTest {
+
+    @Test
+    public void sameAsReferenceMurmur3() throws Exception {
+        Random random = new Random(7L);
+        for (int length = 0; length < 64; length++) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+
+            ByteBuffer expect = ByteBuffer.wrap(Hashing.murmur3_128().hashBytes(bytes).asBytes())
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+            long most = expect.getLong();
+            assertThat(KeyHashing.MURMUR3_128.hash(bytes), is(new Md5Key(most, expect.getLong())));
+        }
+    }
+
+    @Test
+    public void distributeUniformly() throws Exception {
+        int buckets = 16;
+        int times = 160000;
+        for (KeyHashing hashing : KeyHashing.values()) {
+            int[] counts = new int[buckets];
+            for (int i = 0; i < times; i++) {
+                byte[] bytes = ("key" + i).getBytes();
+                counts[(int) (ByteBuffer.wrap(hashing.hash(bytes).toBytes()).getLong() >>> 60)]++;
+            }
+            for (int count : counts) assertThat(Math.abs(count - times / buckets), lessThan(times / buckets / 20));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.Index;
+import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Range;
+import com.github.zhongl.util.Md5;
+import com.google.common.base.Predicate;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class LivenessTest {
+    private final RangeIndexCodec factory = new RangeIndexCodec(new Md5KeyCodec());
+
+    @Test
+    public void mergeWalk() throws Exception {
+        Liveness<String> liveness = new Liveness<String>(Arrays.asList(
+                index("a", 8, 12),
+                index("b", 0, 4),
+                index("c", 20, 24)
+        ).iterator(), 3, null);
+
+        assertThat(liveness.size(), is(3));
+
+        assertThat(liveness.apply(element(0, 4)), is(true));
+        assertThat(liveness.apply(element(4, 8)), is(false));
+        assertThat(liveness.apply(element(8, 12)), is(true));
+        assertThat(liveness.apply(element(12, 20)), is(false));
+        assertThat(liveness.apply(element(20, 24)), is(true));
+
+        // scan an elder page again
+        assertThat(liveness.apply(element(4, 8)), is(false));
+        assertThat(liveness.apply(element(8, 12)), is(true));
+    }
+
+    @Test
+    public void acceptRanges() throws Exception {
+        Liveness<String> liveness = new Liveness<String>(Arrays.asList(
+                index("a", 0, 4),
+                index("b", 16, 20)
+        ).iterator(), 2, new Predicate<Range>() {
+            @Override
+            public boolean apply(Range range) { return range.from() >= 16; }
+        });
+
+        assertThat(liveness.size(), is(1));
+        assertThat(liveness.apply(element(0, 4)), is(false));
+        assertThat(liveness.apply(element(16, 20)), is(true));
+    }
+
+    @Test
+    public void slice() throws Exception {
+        Liveness<String> liveness = new Liveness<String>(Arrays.asList(
+                index("a", 0, 4),
+                index("b", 8, 12),
+                index("c", 16, 20),
+                index("d", 24, 28)
+        ).iterator(), 4, null);
+
+        Liveness<String> slice = liveness.slice(4, 20);
+        assertThat(slice.size(), is(2));
+        assertThat(slice.offset(0), is(8L));
+        assertThat(slice.offset(1), is(16L));
+        assertThat(slice.apply(element(4, 8)), is(false));
+        assertThat(slice.apply(element(8, 12)), is(true));
+        assertThat(slice.apply(element(16, 20)), is(true));
+        assertThat(slice.apply(element(24, 28)), is(false));
+
+        assertThat(liveness.slice(28, 40).size(), is(0));
+    }
+
+    private Index index(String key, long from, long to) {
+        return factory.index(new Md5Key(Md5.md5(key.getBytes())), new Range(from, to));
+    }
+
+    private static Element<String> element(long from, long to) {
+        return new Element<String>("", new Range(from, to));
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.index.ColumnCodec;
+import com.github.zhongl.index.Difference;
+import com.github.zhongl.index.Index;
+import com.github.zhongl.index.Indices;
+import com.github.zhongl.page.Range;
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class LongIndexCodecTest extends FileTestContext {
+
+    private LongIndexCodec codec;
+    private Indices indices;
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        dir = testDir("longIndices");
+        codec = new LongIndexCodec();
+        indices = new Indices(new File(dir, "0.i"), codec);
+    }
+
+    @Test
+    public void mergeAndGet() throws Exception {
+        int size = 1000;
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (long i = size - 1; i >= 0; i--) difference.add(index(i * 2));
+        indices.merge(difference);
+
+        assertThat(indices.size(), is(size));
+        assertThat(indices.diskOccupiedBytes(), is(size * 16L + 8)); // the half of Md5Key ones, plus the size footer
+        assertThat(new RangeIndexCodec(new Md5KeyCodec()).length(), is(32));
+
+        for (long i = 0; i < size; i++) {
+            assertThat(rangeOf(indices.get(new LongKey(i * 2))), is(range(i * 2)));
+            assertThat(indices.get(new LongKey(i * 2 + 1)), is(nullValue()));
+        }
+        assertThat(indices.get(new LongKey(-1L)), is(nullValue()));
+    }
+
+    @Test
+    public void mergeRemovedAndSuperseded() throws Exception {
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (long i = 0; i < 10; i++) difference.add(index(i));
+        indices.merge(difference);
+
+        difference = new Difference(new TreeSet<Index>());
+        difference.add(codec.removedIndex(new LongKey(3L)));
+        difference.add(codec.index(new LongKey(5L), new Range(100L, 200L)));
+        difference.add(index(42L));
+
+        final List<Index> superseded = new ArrayList<Index>();
+        indices.merge(difference, new Function<Index, Void>() {
+            @Override
+            public Void apply(Index index) {
+                superseded.add(index);
+                return null;
+            }
+        });
+
+        assertThat(superseded.size(), is(2));
+        assertThat(indices.size(), is(10));
+        assertThat(indices.get(new LongKey(3L)), is(nullValue()));
+        assertThat(rangeOf(indices.get(new LongKey(5L))), is(new Range(100L, 200L)));
+        assertThat(rangeOf(indices.get(new LongKey(42L))), is(range(42L)));
+    }
+
+    @Test
+    public void scanDuringMerging() throws Exception {
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (long i = 0; i < 100; i++) difference.add(index(i * 10));
+        indices.merge(difference);
+
+        Iterator<Index> iterator = indices.scan(new LongKey(95L), new LongKey(500L));
+        long expect = 100L;
+        while (iterator.hasNext()) {
+            Index index = iterator.next();
+            if (expect == 200L) { // merged during scanning
+                difference = new Difference(new TreeSet<Index>());
+                difference.add(index(205L));
+                indices.merge(difference);
+            }
+            assertThat(index.key(), is((Object) new LongKey(expect)));
+            assertThat(rangeOf(index), is(range(expect)));
+            expect += expect == 200L ? 5L : (expect == 205L ? 5L : 10L);
+        }
+        assertThat(expect, is(500L));
+
+        assertThat(indices.scan(new LongKey(1000L), new LongKey(2000L)).hasNext(), is(false));
+    }
+
+    @Test
+    public void iterateAndMergeBoundaryKeys() throws Exception {
+        Difference difference = new Difference(new TreeSet<Index>());
+        difference.add(codec.index(new LongKey(Long.MIN_VALUE), new Range(0L, 64L)));
+        difference.add(codec.index(new LongKey(0L), new Range(64L, 128L)));
+        difference.add(codec.index(new LongKey(Long.MAX_VALUE), new Range(128L, 192L)));
+        indices.merge(difference);
+
+        difference = new Difference(new TreeSet<Index>());
+        difference.add(codec.index(new LongKey(1L), new Range(192L, 256L)));
+        indices.merge(difference); // merging walks the full iterator
+
+        List<Long> keys = new ArrayList<Long>();
+        for (Iterator<Index> iterator = indices.iterator(); iterator.hasNext(); ) {
+            keys.add(((LongKey) iterator.next().key()).value());
+        }
+        assertThat(keys, is(Arrays.asList(Long.MIN_VALUE, 0L, 1L, Long.MAX_VALUE)));
+        assertThat(rangeOf(indices.get(new LongKey(Long.MAX_VALUE))), is(new Range(128L, 192L)));
+        assertThat(indices.scan(new LongKey(1L), null).hasNext(), is(true));
+
+        ArrayList<Index> streamed = Lists.newArrayList(Indices.stream(new File(dir, indices.fileName()), codec));
+        assertThat(streamed, is(Lists.newArrayList(indices.iterator())));
+        assertThat(rangeOf(streamed.get(3)), is(new Range(128L, 192L)));
+    }
+
+    @Test
+    public void overflowRangeOutOfPackingBits() throws Exception {
+        Range huge = new Range(0L, 1L << LongIndexCodec.LENGTH_BITS);
+        Range far = new Range(1L << LongIndexCodec.OFFSET_BITS, (1L << LongIndexCodec.OFFSET_BITS) + 64);
+        assertThat(LongIndexCodec.pack(huge), is(ColumnCodec.OVERFLOW));
+        assertThat(LongIndexCodec.pack(far), is(ColumnCodec.OVERFLOW));
+
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (long i = 0; i < 10; i++) difference.add(index(i));
+        difference.add(codec.index(new LongKey(3L), huge));
+        difference.add(codec.index(new LongKey(7L), far));
+        indices.merge(difference);
+
+        assertThat(indices.size(), is(10));
+        assertThat(indices.diskOccupiedBytes(), is(10 * 16L + 2 * codec.length() + 8));
+        assertThat(rangeOf(indices.get(new LongKey(3L))), is(huge));
+        assertThat(rangeOf(indices.get(new LongKey(7L))), is(far));
+        assertThat(rangeOf(indices.get(new LongKey(8L))), is(range(8L)));
+
+        difference = new Difference(new TreeSet<Index>());
+        difference.add(index(11L));
+        indices.merge(difference); // merging walks the overflowed ones
+
+        List<Range> ranges = new ArrayList<Range>();
+        for (Iterator<Index> iterator = indices.iterator(); iterator.hasNext(); ) ranges.add(rangeOf(iterator.next()));
+        assertThat(ranges.get(3), is(huge));
+        assertThat(ranges.get(7), is(far));
+        assertThat(ranges.size(), is(11));
+
+        File file = new File(dir, indices.fileName());
+        assertThat(Lists.newArrayList(Indices.stream(file, codec)), is(Lists.newArrayList(indices.iterator())));
+        assertThat(rangeOf(new Indices(file, codec).get(new LongKey(7L))), is(far));
+    }
+
+    @Test
+    public void rangeScanByLongs() throws Exception {
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (long i = 0; i < 100; i++) difference.add(index(i * 10));
+        indices.merge(difference);
+
+        List<Long> keys = new ArrayList<Long>();
+        for (Iterator<Index> iterator = indices.rangeScan(95L, 130L); iterator.hasNext(); ) {
+            keys.add(((LongKey) iterator.next().key()).value());
+        }
+        assertThat(keys, is(Arrays.asList(100L, 110L, 120L)));
+        assertThat(indices.rangeScan(1000L, 2000L).hasNext(), is(false));
+    }
+
+    private Index index(long key) { return codec.index(new LongKey(key), range(key)); }
+
+    private static Range range(long key) { return new Range(key * 64, key * 64 + 64); }
+
+    private static Range rangeOf(Index index) { return index.get(Functions.<Range>identity()); }
+}
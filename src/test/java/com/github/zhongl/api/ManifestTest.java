@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ManifestTest extends FileTestContext {
+
+    @Test
+    public void reload() throws Exception {
+        dir = testDir("reload");
+        File headFile = new File(dir, "HEAD");
+
+        Manifest manifest = new Manifest(dir, headFile, "null.i");
+        assertThat(manifest.update(ImmutableMap.of("1.p", 0L), "2.i").contains("null.i"), is(true));
+        assertThat(manifest.update(ImmutableMap.of("1.p", 0L, "3.p", 10L), "4.i").contains("2.i"), is(true));
+        assertThat(manifest.update(ImmutableMap.of("5.p", 0L), "6.i").containsAll(Arrays.asList("1.p", "3.p", "4.i")), is(true));
+        manifest.update(ImmutableMap.of("5.p", 0L, "7.p", 20L), "8.i");
+
+        Manifest reloaded = new Manifest(dir, headFile, null);
+        assertThat(reloaded.indices(), is("8.i"));
+        assertThat(reloaded.pages(), is((Object) ImmutableMap.of("5.p", 0L, "7.p", 20L)));
+    }
+
+    @Test
+    public void reloadLiveBytes() throws Exception {
+        dir = testDir("reloadLiveBytes");
+        File headFile = new File(dir, "HEAD");
+
+        Manifest manifest = new Manifest(dir, headFile, "null.i");
+        manifest.update(ImmutableMap.of("1.p", 0L, "3.p", 10L), "2.i", ImmutableMap.of("1.p", 8L, "3.p", 10L));
+        manifest.update(ImmutableMap.of("3.p", 10L), "4.i", ImmutableMap.of("3.p", 6L));
+
+        Manifest reloaded = new Manifest(dir, headFile, null);
+        assertThat(reloaded.liveBytes(), is((Object) ImmutableMap.of("3.p", 6L)));
+    }
+
+    @Test
+    public void reloadExpiries() throws Exception {
+        dir = testDir("reloadExpiries");
+        File headFile = new File(dir, "HEAD");
+
+        Manifest manifest = new Manifest(dir, headFile, "null.i");
+        Map<String, Long> none = Collections.emptyMap();
+        manifest.update(ImmutableMap.of("1.p", 0L, "3.p", 10L), "2.i", none, ImmutableMap.of("1.p", 60000L, "3.p", 120000L));
+        manifest.update(ImmutableMap.of("3.p", 10L), "2.i", none, ImmutableMap.of("3.p", 120000L));
+
+        Manifest reloaded = new Manifest(dir, headFile, null);
+        assertThat(reloaded.expiries(), is((Object) ImmutableMap.of("3.p", 120000L)));
+    }
+
+    @Test
+    public void reloadSequence() throws Exception {
+        dir = testDir("reloadSequence");
+        File headFile = new File(dir, "HEAD");
+
+        Manifest manifest = new Manifest(dir, headFile, "null.i");
+        manifest.reserve(1024L);
+        manifest.reserve(512L);
+        manifest.update(ImmutableMap.of("1.p", 0L), "2.i");
+
+        assertThat(manifest.sequence(), is(1024L));
+        assertThat(new Manifest(dir, headFile, null).sequence(), is(1024L));
+    }
+
+    @Test
+    public void compactNamedBySequence() throws Exception {
+        dir = testDir("compactNamedBySequence");
+        File headFile = new File(dir, "HEAD");
+
+        Manifest manifest = new Manifest(dir, headFile, "null.i");
+        assertThat(manifest.fileName(), is("1.m"));
+        manifest.reserve(1024L);
+
+        for (int i = 0; i < 100000 && manifest.fileName().equals("1.m"); i++) {
+            manifest.update(ImmutableMap.of(i + ".p", 0L), "null.i");
+        }
+
+        assertThat(manifest.fileName(), is("1025.m"));
+        assertThat(Files.readFirstLine(headFile, Charset.defaultCharset()), is("1025.m"));
+        assertThat(new File(dir, "HEAD.tmp").exists(), is(false));
+        assertThat(new Manifest(dir, headFile, null).sequence(), is(1025L));
+    }
+
+    @Test
+    public void truncateTornTail() throws Exception {
+        dir = testDir("truncateTornTail");
+        File headFile = new File(dir, "HEAD");
+
+        Manifest manifest = new Manifest(dir, headFile, "null.i");
+        manifest.update(ImmutableMap.of("1.p", 0L), "2.i");
+
+        File file = new File(dir, manifest.fileName());
+        long length = file.length();
+        FileOutputStream stream = new FileOutputStream(file, true);
+        stream.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+        stream.close();
+
+        Manifest reloaded = new Manifest(dir, headFile, null);
+        assertThat(reloaded.indices(), is("2.i"));
+        assertThat(reloaded.pages(), is((Object) ImmutableMap.of("1.p", 0L)));
+        assertThat(file.length(), is(length));
+    }
+
+    @Test
+    public void loadReadOnly() throws Exception {
+        dir = testDir("loadReadOnly");
+        File headFile = new File(dir, "HEAD");
+
+        Manifest manifest = new Manifest(dir, headFile, "null.i");
+        manifest.update(ImmutableMap.of("1.p", 0L), "2.i");
+
+        File file = new File(dir, manifest.fileName());
+        FileOutputStream stream = new FileOutputStream(file, true);
+        stream.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+        stream.close();
+        long length = file.length();
+
+        Manifest readOnly = Manifest.readOnly(dir, headFile);
+        assertThat(readOnly.indices(), is("2.i"));
+        assertThat(readOnly.pages(), is((Object) ImmutableMap.of("1.p", 0L)));
+        assertThat(file.length(), is(length));
+
+        try {
+            readOnly.update(ImmutableMap.of("3.p", 0L), "2.i");
+            fail();
+        } catch (IllegalStateException e) { }
+    }
+
+    @Test
+    public void migrateLegacySnapshot() throws Exception {
+        dir = testDir("migrateLegacySnapshot");
+        File headFile = new File(dir, "HEAD");
+        Files.write("P\t1.p\t0\nP\t3.p\t10\nI\t2.i\n".getBytes(), new File(dir, "9.s"));
+        Files.write("9.s".getBytes(), headFile);
+
+        Manifest manifest = new Manifest(dir, headFile, null);
+
+        assertThat(Files.readFirstLine(headFile, Charset.defaultCharset()), is(manifest.fileName()));
+        assertThat(manifest.indices(), is("2.i"));
+        assertThat(manifest.pages(), is((Object) ImmutableMap.of("1.p", 0L, "3.p", 10L)));
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class Md5KeyTest {
+
+    @Test
+    public void compareAsUnsignedBytes() throws Exception {
+        Random random = new Random(7L);
+        Md5KeyCodec codec = new Md5KeyCodec();
+        for (int i = 0; i < 10000; i++) {
+            byte[] a = bytes(random);
+            byte[] b = bytes(random);
+            if (i % 3 == 0) System.arraycopy(a, 0, b, 0, 8); // same most significant long
+
+            Md5Key x = new Md5Key(a);
+            Md5Key y = new Md5Key(b);
+            assertThat(Integer.signum(x.compareTo(y)), is(new BigInteger(1, a).compareTo(new BigInteger(1, b))));
+            assertThat(x.toBytes(), is(a));
+            assertThat(codec.decode(codec.encode(x)), is(x));
+            assertThat(codec.decode(codec.encode(x)).hashCode(), is(x.hashCode()));
+        }
+    }
+
+    private static byte[] bytes(Random random) {
+        byte[] bytes = new byte[Md5Key.BYTE_LENGTH];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
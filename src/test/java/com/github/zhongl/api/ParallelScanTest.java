@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.index.Index;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.page.Binder;
+import com.github.zhongl.page.Element;
+import com.github.zhongl.page.Page;
+import com.github.zhongl.page.Sequence;
+import com.github.zhongl.util.Entry;
+import com.github.zhongl.util.FileTestContext;
+import com.github.zhongl.util.Md5;
+import com.google.common.base.Function;
+import com.google.common.primitives.Ints;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ParallelScanTest extends FileTestContext {
+
+    private final RangeIndexCodec indexCodec = new RangeIndexCodec(new Md5KeyCodec());
+    private final Codec<Entry<Key, Integer>> entryCodec = new EntryCodec<Integer>(new Md5KeyCodec(), new Codec<Integer>() {
+        @Override
+        public Integer decode(ByteBuffer byteBuffer) { return byteBuffer.getInt(); }
+
+        @Override
+        public ByteBuffer encode(Integer value) { return (ByteBuffer) ByteBuffer.allocate(4).putInt(value).flip(); }
+    });
+
+    @Test
+    public void visitLiveValuesOfSplits() throws Exception {
+        dir = testDir("visitLiveValuesOfSplits");
+
+        Binder<Entry<Key, Integer>> binder = new Binder<Entry<Key, Integer>>(
+                dir, new ArrayList<Page<Entry<Key, Integer>>>(), entryCodec, new Sequence(0L));
+        final List<Index> indices = new ArrayList<Index>();
+        Function<Element<Entry<Key, Integer>>, Void> collector = new Function<Element<Entry<Key, Integer>>, Void>() {
+            @Override
+            public Void apply(Element<Entry<Key, Integer>> element) {
+                if (element.value().value() % 3 != 0) indices.add(indexCodec.index(element.value().key(), element.range()));
+                return null;
+            }
+        };
+        for (int p = 0; p < 3; p++) {
+            List<Entry<Key, Integer>> entries = new ArrayList<Entry<Key, Integer>>();
+            for (int i = 0; i < 100; i++) entries.add(entry(p * 100 + i));
+            binder.append(entries, collector);
+        }
+
+        Liveness<Entry<Key, Integer>> liveness =
+                new Liveness<Entry<Key, Integer>>(indices.iterator(), indices.size(), null);
+        ParallelScan<Integer> scan = new ParallelScan<Integer>(binder.pages(), liveness, 256L, null);
+        assertThat(scan.splits(), is(greaterThan(3)));
+
+        final Queue<Integer> visited = new ConcurrentLinkedQueue<Integer>();
+        scan.run(new Function<Integer, Void>() {
+            @Override
+            public Void apply(Integer value) {
+                visited.add(value);
+                return null;
+            }
+        }, 4);
+
+        List<Integer> expect = new ArrayList<Integer>();
+        for (int i = 0; i < 300; i++) if (i % 3 != 0) expect.add(i);
+        List<Integer> actual = new ArrayList<Integer>(visited);
+        Collections.sort(actual);
+        assertThat(actual, is(expect));
+    }
+
+    private static Entry<Key, Integer> entry(int value) {
+        return new Entry<Key, Integer>(new Md5Key(Md5.md5(Ints.toByteArray(value))), value);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.codec.Codec;
+import com.github.zhongl.index.Key;
+import com.github.zhongl.util.Entry;
+import com.github.zhongl.util.FileTestContext;
+import com.github.zhongl.util.FutureCallbacks;
+import com.github.zhongl.util.IteratorAsserts;
+import com.github.zhongl.util.Md5;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.FutureCallback;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class RecoveryTest extends FileTestContext {
+
+    private final FutureCallback<Void> ignore = FutureCallbacks.ignore();
+    private final RangeIndexCodec indexCodec = new RangeIndexCodec(new Md5KeyCodec());
+    private final Codec<Entry<Key, Integer>> entryCodec = new EntryCodec<Integer>(new Md5KeyCodec(), new Codec<Integer>() {
+        @Override
+        public Integer decode(ByteBuffer byteBuffer) { return byteBuffer.getInt(); }
+
+        @Override
+        public ByteBuffer encode(Integer value) { return (ByteBuffer) ByteBuffer.allocate(4).putInt(value).flip(); }
+    });
+
+    @Test
+    public void rebuildAfterHeadLost() throws Exception {
+        dir = testDir("rebuildAfterHeadLost");
+
+        DefragPolicy defragPolicy = mock(DefragPolicy.class);
+        Storage<Integer> storage = new Storage<Integer>(new Snapshot<Integer>(dir, indexCodec, entryCodec), indexCodec, defragPolicy);
+
+        storage.merge(adds(entry(1, 1), entry(2, 2), entry(3, 3)), removes(), ignore);
+        storage.merge(adds(entry(2, 22)), removes(key(1)), ignore);
+
+        doReturn(true).when(defragPolicy).evaluate(anyInt(), anyInt());
+        storage.merge(adds(entry(4, 4)), removes(key(3)), ignore);
+
+        doReturn(false).when(defragPolicy).evaluate(anyInt(), anyInt());
+        storage.merge(adds(entry(1, 11)), removes(), ignore);
+
+        assertThat(new File(dir, "HEAD").delete(), is(true));
+
+        Recovery<Integer> recovery = new Recovery<Integer>(dir, indexCodec, indexCodec, entryCodec);
+        assertThat(recovery.isRequired(), is(true));
+        recovery.run();
+        assertThat(recovery.isRequired(), is(false));
+
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        assertThat(snapshot.get(key(1)), is(11));
+        assertThat(snapshot.get(key(2)), is(22));
+        assertThat(snapshot.get(key(3)), is(nullValue()));
+        assertThat(snapshot.get(key(4)), is(4));
+        assertThat(snapshot.aliveSize(), is(3));
+        IteratorAsserts.assertIteratorOf(new Storage<Integer>(snapshot, indexCodec, defragPolicy), 22, 4, 11);
+    }
+
+    @Test
+    public void notRequiredForNewDir() throws Exception {
+        dir = testDir("notRequiredForNewDir");
+        assertThat(new Recovery<Integer>(dir, indexCodec, indexCodec, entryCodec).isRequired(), is(false));
+    }
+
+    private static Collection<WriteOperation<Entry<Key, Integer>>> adds(Entry<Key, Integer>... entries) {
+        WriteOperation<Entry<Key, Integer>>[] operations = new WriteOperation[entries.length];
+        for (int i = 0; i < entries.length; i++)
+            operations[i] = new WriteOperation<Entry<Key, Integer>>(entries[i], FutureCallbacks.<Void>ignore());
+        return Arrays.asList(operations);
+    }
+
+    private static Collection<WriteOperation<Key>> removes(Key... keys) {
+        if (keys.length == 0) return Collections.emptySet();
+        WriteOperation<Key>[] operations = new WriteOperation[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            operations[i] = new WriteOperation<Key>(keys[i], FutureCallbacks.<Void>ignore());
+        return Arrays.asList(operations);
+    }
+
+    private static Entry<Key, Integer> entry(int key, int value) {
+        return new Entry<Key, Integer>(key(key), value);
+    }
+
+    private static Key key(int i) {
+        return new Md5Key(Md5.md5(Ints.toByteArray(i)));
+    }
+}
@@ -53,5 +53,17 @@ public class SnapshotTest extends FileTestContext {
 
         assertThat(new File(pagesDir, "null.s").exists(), is(false));
     }
-}
 
+    @Test
+    public void removedMarkNeverGoesBack() throws Exception {
+        dir = testDir("removedMarkNeverGoesBack");
+
+        IndexCodec indexCodec = mock(IndexCodec.class);
+        Codec<Entry<Key, Integer>> entryCodec = mock(Codec.class);
+
+        long mark = new Snapshot<Integer>(dir, indexCodec, entryCodec).removedMark();
+
+        // no file is named by the mark, so it could only be kept by the manifest.
+        assertThat(new Snapshot<Integer>(dir, indexCodec, entryCodec).removedMark() > mark, is(true));
+    }
+}
@@ -30,11 +30,14 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.*;
 
 /** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
@@ -105,6 +108,225 @@ public class StorageTest extends FileTestContext {
         IteratorAsserts.assertIteratorOf(storage, 2, 3);
     }
 
+    @Test
+    public void compactIncrementally() throws Exception {
+        dir = testDir("compactIncrementally");
+
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+
+        Collection<WriteOperation<Key>> removes = Collections.emptySet();
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(1), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(2), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(3), ignore)
+        ), removes, ignore);
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(4), ignore)
+        ), removes, ignore);
+
+        doReturn(true).when(defragPolicy).evaluate(anyInt(), anyInt());
+        doReturn(true).when(defragPolicy).isIncremental();
+        doReturn(Long.MAX_VALUE).when(defragPolicy).getCompactBudgetBytes();
+        doReturn(50).when(defragPolicy).getCompactGarbagePercent();
+
+        Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates = Collections.emptySet();
+        storage.merge(addOrUpdates, Arrays.asList(
+                new WriteOperation<Key>(key(1), ignore),
+                new WriteOperation<Key>(key(2), ignore)
+        ), ignore);
+
+        IteratorAsserts.assertIteratorOf(storage, 3, 4);
+
+        storage.merge(addOrUpdates, Arrays.asList(new WriteOperation<Key>(key(4), ignore)), ignore);
+
+        // page of 3 has been compacted, and page of 4 is all garbage now.
+        IteratorAsserts.assertIteratorOf(storage, 3);
+        assertThat(storage.get(key(3)), is(3));
+        assertThat(storage.get(key(4)), is(nullValue()));
+    }
+
+    @Test
+    public void countLiveBytes() throws Exception {
+        dir = testDir("countLiveBytes");
+
+        Storage<Integer> storage = new Storage<Integer>(new Snapshot<Integer>(dir, indexCodec, entryCodec), indexCodec, defragPolicy);
+
+        Collection<WriteOperation<Entry<Key, Integer>>> addOrUpdates = Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(1), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(2), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(3), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(4), ignore)
+        );
+        Collection<WriteOperation<Key>> removes = Collections.emptySet();
+        storage.merge(addOrUpdates, removes, ignore);
+
+        long pageBytes = storage.getPageBytes();
+        assertThat(storage.getLiveBytes(), is(pageBytes));
+        assertThat(storage.getReclaimableBytes(), is(0L));
+
+        storage.merge(Collections.<WriteOperation<Entry<Key, Integer>>>emptySet(), Arrays.asList(
+                new WriteOperation<Key>(key(1), ignore)
+        ), ignore);
+
+        assertThat(storage.getReclaimableBytes(), is(pageBytes / 4));
+        assertThat(storage.getPageGarbagePercents()[0].endsWith("\t25%"), is(true));
+
+        Storage<Integer> reopened = new Storage<Integer>(new Snapshot<Integer>(dir, indexCodec, entryCodec), indexCodec, defragPolicy);
+        assertThat(reopened.getLiveBytes(), is(pageBytes * 3 / 4));
+
+        doReturn(true).when(defragPolicy).evaluateSpace(anyLong(), anyLong());
+        doReturn(Long.MAX_VALUE).when(defragPolicy).getCompactBudgetBytes();
+        doReturn(20).when(defragPolicy).getCompactGarbagePercent();
+        reopened.merge(Collections.<WriteOperation<Entry<Key, Integer>>>emptySet(), removes, ignore);
+
+        assertThat(reopened.getLastBehavior(), is("COMPACT"));
+        assertThat(reopened.getReclaimableBytes(), is(0L));
+        IteratorAsserts.assertIteratorOf(reopened, 2, 3, 4);
+    }
+
+    @Test
+    public void compactConcurrently() throws Exception {
+        dir = testDir("compactConcurrently");
+
+        Storage<Integer> storage = new Storage<Integer>(new Snapshot<Integer>(dir, indexCodec, entryCodec), indexCodec, defragPolicy);
+
+        Collection<WriteOperation<Entry<Key, Integer>>> nothing = Collections.emptySet();
+        Collection<WriteOperation<Key>> removes = Collections.emptySet();
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(1), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(2), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(3), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(4), ignore)
+        ), removes, ignore);
+        storage.merge(nothing, Arrays.asList(
+                new WriteOperation<Key>(key(1), ignore),
+                new WriteOperation<Key>(key(2), ignore)
+        ), ignore);
+
+        doReturn(true).when(defragPolicy).evaluateSpace(anyLong(), anyLong());
+        doReturn(true).when(defragPolicy).isConcurrent();
+        doReturn(Long.MAX_VALUE).when(defragPolicy).getCompactBudgetBytes();
+        doReturn(50).when(defragPolicy).getCompactGarbagePercent();
+
+        storage.merge(nothing, removes, ignore);
+        assertThat(storage.getLastBehavior(), is("COMPACT"));
+
+        doReturn(false).when(defragPolicy).evaluateSpace(anyLong(), anyLong());
+
+        // intervening flushes
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(new Entry<Key, Integer>(key(3), 33), ignore)
+        ), Arrays.asList(new WriteOperation<Key>(key(4), ignore)), ignore);
+
+        while (storage.isCompacting()) storage.merge(nothing, removes, ignore);
+
+        assertThat(storage.get(key(3)), is(33));
+        assertThat(storage.get(key(4)), is(nullValue()));
+        IteratorAsserts.assertIteratorOf(storage, 33);
+        // moved 3 and 4 are garbage of the compacted page, only updated 3 is alive.
+        assertThat(storage.getLiveBytes() * 3, is(storage.getPageBytes()));
+    }
+
+    @Test
+    public void expireWholePage() throws Exception {
+        dir = testDir("expireWholePage");
+
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+
+        long expireAt = System.currentTimeMillis() + 200L;
+        Collection<WriteOperation<Key>> removes = Collections.emptySet();
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(1), ignore),
+                new WriteOperation<Entry<Key, Integer>>(new ExpiringEntry<Integer>(key(2), 2, expireAt), ignore),
+                new WriteOperation<Entry<Key, Integer>>(new ExpiringEntry<Integer>(key(3), 3, expireAt), ignore)
+        ), removes, ignore);
+
+        assertThat(storage.getPageGarbagePercents().length, is(2)); // bucketed by expiry
+        assertThat(storage.get(key(2)), is(2));
+        IteratorAsserts.assertIteratorOf(storage, 2, 3, 1);
+
+        Thread.sleep(expireAt - System.currentTimeMillis() + 10L);
+
+        assertThat(storage.get(key(2)), is(nullValue()));
+        IteratorAsserts.assertIteratorOf(storage, 1);
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(3), ignore)
+        ), removes, ignore);
+
+        assertThat(snapshot.aliveSize(), is(2));
+        assertThat(storage.getPageGarbagePercents().length, is(2));
+        assertThat(storage.get(key(3)), is(3));
+        IteratorAsserts.assertIteratorOf(storage, 1, 3);
+    }
+
+    @Test
+    public void expiredTailShouldNotReusePositions() throws Exception {
+        dir = testDir("expiredTailShouldNotReusePositions");
+
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+
+        long expireAt = System.currentTimeMillis() + 200L;
+        Collection<WriteOperation<Key>> removes = Collections.emptySet();
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(new ExpiringEntry<Integer>(key(2), 2, expireAt), ignore),
+                new WriteOperation<Entry<Key, Integer>>(new ExpiringEntry<Integer>(key(3), 3, expireAt), ignore)
+        ), removes, ignore);
+
+        Thread.sleep(expireAt - System.currentTimeMillis() + 10L);
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(4), ignore)
+        ), removes, ignore);
+
+        assertThat(storage.getLiveBytes(), is(storage.getPageBytes()));
+        assertThat(storage.get(key(2)), is(nullValue()));
+        assertThat(storage.get(key(4)), is(4));
+        IteratorAsserts.assertIteratorOf(storage, 4);
+    }
+
+    @Test
+    public void purgeExpiredWithoutReadingPages() throws Exception {
+        dir = testDir("purgeExpiredWithoutReadingPages");
+
+        final int[] decoded = {0};
+        Codec<Entry<Key, Integer>> countingCodec = new Codec<Entry<Key, Integer>>() {
+            @Override
+            public Entry<Key, Integer> decode(ByteBuffer byteBuffer) {
+                decoded[0]++;
+                return entryCodec.decode(byteBuffer);
+            }
+
+            @Override
+            public ByteBuffer encode(Entry<Key, Integer> value) { return entryCodec.encode(value); }
+        };
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, countingCodec);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+
+        long expireAt = System.currentTimeMillis() + 200L;
+        Collection<WriteOperation<Key>> removes = Collections.emptySet();
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(new ExpiringEntry<Integer>(key(2), 2, expireAt), ignore),
+                new WriteOperation<Entry<Key, Integer>>(new ExpiringEntry<Integer>(key(3), 3, expireAt), ignore)
+        ), removes, ignore);
+
+        Thread.sleep(expireAt - System.currentTimeMillis() + 10L);
+
+        int before = decoded[0];
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(4), ignore)
+        ), removes, ignore);
+
+        assertThat(decoded[0], is(before));
+        assertThat(snapshot.aliveSize(), is(1)); // keys of the expired page are purged from indices
+    }
+
     @Test
     public void issue36() throws Exception {
         // Fixed #36 : Appendings should not be removed during defragment.
@@ -229,26 +451,113 @@ public class StorageTest extends FileTestContext {
         String[] list;
         File pages = new File(dir, "pages");
 
+        awaitReclaimed(storage);
         list = pages.list();
         assertThat(list.length, is(3));
 
         doReturn(true).when(defragPolicy).evaluate(anyInt(), anyInt());
 
         long time = System.nanoTime();
+        long last = snapshot.removedMark(); // pages are numbered by the sequence
 
         storage.merge(addOrUpdates, removes, ignore);
 
+        awaitReclaimed(storage);
         list = pages.list();
         CharMatcher matcher = CharMatcher.anyOf(".i")
-                                         .or(CharMatcher.anyOf(".p"))
-                                         .or(CharMatcher.anyOf(".s"));
+                                         .or(CharMatcher.anyOf(".p"));
 
         assertThat(list.length, is(4));
 
         for (String name : list) {
+            if (name.endsWith(Manifest.SUFFIX)) continue; // manifest is appended but not recreated
             String created = matcher.removeFrom(name);
-            assertThat(Long.valueOf(created), greaterThan(time));
+            assertThat(Long.valueOf(created), greaterThan(name.endsWith(Snapshot.PAGE_SUFFIX) ? last : time));
+        }
+    }
+
+    @Test
+    public void readersPinRetiredFiles() throws Exception {
+        dir = testDir("readersPinRetiredFiles");
+
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(1), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(2), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(3), ignore)
+        ), Collections.<WriteOperation<Key>>emptySet(), ignore);
+        awaitReclaimed(storage);
+
+        Iterator<Integer> iterator = storage.iterator();
+        assertThat(iterator.next(), is(1));
+
+        doReturn(true).when(defragPolicy).evaluate(anyInt(), anyInt());
+        storage.merge(
+                Collections.<WriteOperation<Entry<Key, Integer>>>emptySet(),
+                Arrays.asList(new WriteOperation<Key>(key(2), ignore)),
+                ignore
+        ); // defrag retires the page and indices read by the iterator
+
+        assertThat(storage.get(key(2)), is(nullValue()));
+        assertThat(storage.getLiveVersions(), is(2));
+        assertThat(storage.getPendingReclaimFiles(), is(greaterThan(0)));
+
+        assertThat(iterator.next(), is(2)); // removed after iterating, but still alive in the version of iterator
+        assertThat(iterator.next(), is(3));
+        assertThat(iterator.hasNext(), is(false));
+        assertThat(storage.getLiveVersions(), is(1));
+
+        awaitReclaimed(storage);
+        assertThat(storage.getPendingReclaimFiles(), is(0));
+        IteratorAsserts.assertIteratorOf(storage, 1, 3);
+    }
+
+    @Test
+    public void closedOrAbandonedReadersUnpinFiles() throws Exception {
+        dir = testDir("closedOrAbandonedReadersUnpinFiles");
+
+        Snapshot<Integer> snapshot = new Snapshot<Integer>(dir, indexCodec, entryCodec);
+        Storage<Integer> storage = new Storage<Integer>(snapshot, indexCodec, defragPolicy);
+
+        storage.merge(Arrays.asList(
+                new WriteOperation<Entry<Key, Integer>>(entry(1), ignore),
+                new WriteOperation<Entry<Key, Integer>>(entry(2), ignore)
+        ), Collections.<WriteOperation<Key>>emptySet(), ignore);
+
+        CloseableIterator<Integer> closed = storage.iterator();
+        assertThat(closed.next(), is(1));
+        readOneAndAbandon(storage);
+
+        doReturn(true).when(defragPolicy).evaluate(anyInt(), anyInt());
+        storage.merge(
+                Collections.<WriteOperation<Entry<Key, Integer>>>emptySet(),
+                Arrays.asList(new WriteOperation<Key>(key(2), ignore)),
+                ignore
+        );
+        assertThat(storage.getLiveVersions(), is(2)); // both readers hold the elder version
+
+        closed.close();
+        closed.close();
+        assertThat(storage.getLiveVersions(), is(2)); // still held by the abandoned
+
+        for (int i = 0; i < 50 && storage.getLiveVersions() > 1; i++) {
+            System.gc();
+            Thread.sleep(100L);
         }
+        assertThat(storage.getLiveVersions(), is(1));
+
+        awaitReclaimed(storage);
+        assertThat(storage.getPendingReclaimFiles(), is(0));
+    }
+
+    private static void readOneAndAbandon(Storage<Integer> storage) {
+        assertThat(storage.scan(null, null).hasNext(), is(true));
+    }
+
+    private static void awaitReclaimed(Storage<?> storage) throws InterruptedException {
+        for (int i = 0; i < 50 && storage.getPendingReclaimFiles() > 0; i++) Thread.sleep(100L);
     }
 
     private static Entry<Key, Integer> entry(int i) {
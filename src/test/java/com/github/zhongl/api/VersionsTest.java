@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.api;
+
+import com.github.zhongl.util.CloseableIterator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class VersionsTest {
+
+    @Test
+    public void pinUntilReleased() throws Exception {
+        Versions<String> versions = new Versions<String>("v0", Arrays.asList("0.p", "0.i"));
+
+        Versions.Version<String> reading = versions.acquire();
+        assertThat(reading.state(), is("v0"));
+
+        versions.publish("v1", Arrays.asList("0.p", "1.p", "1.i"));
+        assertThat(versions.live(), is(2));
+        assertThat(versions.isReferring("0.i"), is(true));
+        assertThat(versions.acquire().state(), is("v1"));
+
+        reading.release();
+        assertThat(versions.live(), is(1));
+        assertThat(versions.isReferring("0.i"), is(false));
+        assertThat(versions.isReferring("0.p"), is(true));
+    }
+
+    @Test
+    public void releasedVersionCanNotBeAcquired() throws Exception {
+        Versions<String> versions = new Versions<String>("v0", Arrays.asList("0.i"));
+        versions.publish("v1", Arrays.asList("1.i"));
+        versions.publish("v2", Arrays.asList("2.i"));
+
+        assertThat(versions.live(), is(1));
+        assertThat(versions.acquire().state(), is("v2"));
+    }
+
+    @Test
+    public void closeHeldIteratorWithVersion() throws Exception {
+        Versions<String> versions = new Versions<String>("v0", Arrays.asList("0.i"));
+
+        CloseableIterator<?> closing = mock(CloseableIterator.class);
+        versions.hold(versions.acquire(), closing).close();
+        verify(closing).close();
+
+        CloseableIterator<?> abandoned = mock(CloseableIterator.class);
+        doReturn(true).when(abandoned).hasNext();
+        assertThat(versions.hold(versions.acquire(), abandoned).hasNext(), is(true));
+        versions.publish("v1", Arrays.asList("1.i"));
+
+        for (int i = 0; i < 50 && versions.live() > 1; i++) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        assertThat(versions.live(), is(1));
+        verify(abandoned).close();
+    }
+}
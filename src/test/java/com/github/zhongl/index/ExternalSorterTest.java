@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.index;
+
+import com.github.zhongl.util.FileTestContext;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ExternalSorterTest extends FileTestContext {
+
+    @Test
+    public void merge() throws Exception {
+        dir = testDir("merge");
+
+        TestIndexCodec codec = new TestIndexCodec();
+        ExternalSorter sorter = new ExternalSorter(dir, codec);
+
+        sorter.spill(1L, Arrays.<Index>asList(new TestIndex(1, false), new TestIndex(4, false)));
+        sorter.spill(0L, Arrays.<Index>asList(new TestIndex(2, false), new TestIndex(3, false), new TestIndex(4, false)));
+        sorter.spill(2L, Arrays.<Index>asList(new TestIndex(3, false), new TestIndex(5, false)));
+
+        Indices indices = new Indices(sorter.merge(), codec);
+
+        Iterator<Index> iterator = indices.iterator();
+        for (int i = 1; i <= 5; i++) assertThat(iterator.next(), is((Index) new TestIndex(i, false)));
+        assertThat(iterator.hasNext(), is(false));
+
+        assertThat(dir.list().length, is(1));
+    }
+
+    @Test
+    public void mergeInPasses() throws Exception {
+        dir = testDir("mergeInPasses");
+
+        TestIndexCodec codec = new TestIndexCodec();
+        ExternalSorter sorter = new ExternalSorter(dir, codec, 2);
+
+        for (int i = 0; i < 9; i++) {
+            sorter.spill(i, Arrays.<Index>asList(new TestIndex(i, false), new TestIndex(9, false)));
+        }
+        sorter.spill(9L, Arrays.<Index>asList(new TestIndex(0, true))); // removes the key of the eldest run
+        sorter.spill(10L, Arrays.<Index>asList(new TestIndex(1, true), new TestIndex(10, false)));
+
+        Indices indices = new Indices(sorter.merge(), codec);
+
+        Iterator<Index> iterator = indices.iterator();
+        for (int i = 2; i <= 10; i++) assertThat(iterator.next(), is((Index) new TestIndex(i, false)));
+        assertThat(iterator.hasNext(), is(false));
+
+        assertThat(dir.list().length, is(1));
+    }
+}
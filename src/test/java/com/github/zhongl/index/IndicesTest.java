@@ -1,6 +1,11 @@
 package com.github.zhongl.index;
 
+import com.github.zhongl.api.BytesKey;
+import com.github.zhongl.api.BytesKeyCodec;
+import com.github.zhongl.api.RangeIndexCodec;
+import com.github.zhongl.page.Range;
 import com.github.zhongl.util.FileTestContext;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import org.junit.Before;
 import org.junit.Test;
@@ -8,6 +13,7 @@ import org.junit.Test;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeSet;
 
 import static org.hamcrest.Matchers.is;
@@ -63,4 +69,40 @@ public class IndicesTest extends FileTestContext {
         assertThat((TestIndex) iterator.next(), is(new TestIndex(4, false)));
         assertThat(iterator.hasNext(), is(false));
     }
+
+    @Test
+    public void scanPrefixCompressedBlocks() throws Exception {
+        File blocksDir = testDir("blocks");
+        RangeIndexCodec codec = new RangeIndexCodec(new BytesKeyCodec());
+        Indices blocks = new Indices(new File(blocksDir, "0.i"), codec);
+
+        int size = 1000;
+        Difference difference = new Difference(new TreeSet<Index>());
+        for (int i = size - 1; i >= 0; i--) difference.add(codec.index(key(i), new Range(i, i + 1)));
+        blocks.merge(difference);
+
+        assertThat(blocks.size(), is(size));
+        assertThat(blocks.diskOccupiedBytes() < size * 24L, is(true)); // 29 bytes per entry without prefix compressed
+        for (int i = 0; i < size; i++) assertThat(blocks.get(key(i)), is(codec.index(key(i), new Range(i, i + 1))));
+        assertThat(blocks.get(new BytesKey("topic-".getBytes())), is(nullValue()));
+
+        List<Index> scanned = Lists.newArrayList(blocks.scan(key(250), key(750)));
+        assertThat(scanned.size(), is(500));
+        for (int i = 0; i < scanned.size(); i++) assertThat(scanned.get(i).key(), is((Key) key(250 + i)));
+
+        difference = new Difference(new TreeSet<Index>());
+        for (int i = 0; i < size; i += 2) difference.add(codec.removedIndex(key(i)));
+        blocks.merge(difference);
+
+        assertThat(blocks.size(), is(size / 2));
+        assertThat(blocks.get(key(2)), is(nullValue()));
+        List<Index> all = Lists.newArrayList(blocks.iterator());
+        assertThat(all.size(), is(size / 2));
+        assertThat(all.get(0).key(), is((Key) key(1)));
+        assertThat(Lists.newArrayList(Indices.stream(new File(blocksDir, blocks.fileName()), codec)), is(all));
+    }
+
+    private static BytesKey key(int i) {
+        return new BytesKey(String.format("topic-%05d", i).getBytes());
+    }
 }
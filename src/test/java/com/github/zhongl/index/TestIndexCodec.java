@@ -6,11 +6,15 @@ import java.nio.ByteBuffer;
 class TestIndexCodec implements IndexCodec {
     @Override
     public ByteBuffer encode(Index value) {
-        return (ByteBuffer) ByteBuffer.allocate(4).putInt(((TestKey) value.key()).value).flip();
+        int key = ((TestKey) value.key()).value;
+        return (ByteBuffer) ByteBuffer.allocate(4).putInt(value.isRemoved() ? ~key : key).flip(); // negative if removed
     }
 
     @Override
-    public Index decode(ByteBuffer byteBuffer) { return new TestIndex(byteBuffer.getInt(), false); }
+    public Index decode(ByteBuffer byteBuffer) {
+        int key = byteBuffer.getInt();
+        return key < 0 ? new TestIndex(~key, true) : new TestIndex(key, false);
+    }
 
     @Override
     public int length() { return 4; }
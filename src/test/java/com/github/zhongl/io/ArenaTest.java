@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ArenaTest {
+
+    @Test
+    public void allocateAndRecycle() throws Exception {
+        Arena arena = new Arena(16);
+
+        Arena.Slice a = arena.allocate(ByteBuffer.wrap("01234567".getBytes()));
+        Arena.Slice b = arena.allocate(ByteBuffer.wrap("89abcdef".getBytes()));
+        Arena.Slice c = arena.allocate(ByteBuffer.wrap("xyz".getBytes())); // the first slab is full
+        assertThat(arena.directBytes(), is(32L));
+
+        assertThat(string(a.read()), is("01234567"));
+        assertThat(string(b.read()), is("89abcdef"));
+        assertThat(c.length(), is(3));
+
+        a.free();
+        b.free(); // the first slab is pooled
+
+        Arena.Slice d = arena.allocate(ByteBuffer.wrap("0123456789abc".getBytes())); // reuse the pooled slab
+        assertThat(arena.directBytes(), is(32L));
+        assertThat(string(d.read()), is("0123456789abc"));
+        assertThat(string(c.read()), is("xyz"));
+
+        Arena.Slice e = arena.allocate(ByteBuffer.wrap("a value larger than slab".getBytes()));
+        assertThat(arena.directBytes(), is(32L + 24));
+        assertThat(string(e.read()), is("a value larger than slab"));
+        e.free();
+        assertThat(arena.directBytes(), is(32L));
+
+        c.free();
+        d.free();
+        arena.clear();
+        assertThat(arena.directBytes(), is(0L));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class DirectBufferPoolTest {
+
+    @Test
+    public void reuseBySizeClass() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(16 * 1024);
+
+        DirectBufferPool.Lease a = pool.acquire(5000);
+        assertThat(a.buffer().capacity(), is(8192));
+        a.buffer().putInt(1);
+        a.release();
+        a.release(); // ignored
+        assertThat(pool.getPooledBytes(), is(8192L));
+
+        DirectBufferPool.Lease b = pool.acquire(8192);
+        assertThat(b.buffer().position(), is(0)); // cleared
+        assertThat(b.buffer().limit(), is(8192));
+        assertThat(pool.getHits(), is(1L));
+        assertThat(pool.getMisses(), is(1L));
+        assertThat(pool.getLeased(), is(1));
+
+        DirectBufferPool.Lease c = pool.acquire(16 * 1024);
+        DirectBufferPool.Lease d = pool.acquire(100);
+        assertThat(d.buffer().capacity(), is(4096));
+        assertThat(pool.getAllocatedBytes(), is(8192L + 16384 + 4096));
+
+        b.release();
+        c.release(); // over the max pooled bytes, cleaned
+        d.release();
+        assertThat(pool.getPooledBytes(), is(8192L + 4096));
+        assertThat(pool.getAllocatedBytes(), is(8192L + 4096));
+        assertThat(pool.getLeased(), is(0));
+    }
+
+    @Test
+    public void takeBackLeaked() throws Exception {
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        pool.acquire(4096); // never released
+
+        for (int i = 0; i < 50 && pool.getLeaks() == 0; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+
+        assertThat(pool.getLeaks(), is(1L));
+        assertThat(pool.getLeased(), is(0));
+        assertThat(pool.getPooledBytes(), is(4096L));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.github.zhongl.io;
+
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class HardLinksTest extends FileTestContext {
+
+    @Test
+    public void linkOrCopy() throws Exception {
+        dir = testDir("linkOrCopy");
+        File existing = new File(dir, "1.p");
+        File link = new File(dir, "2.p");
+        Files.write("content".getBytes(), existing);
+
+        assertThat(HardLinks.isShared(existing), is(false));
+        assertThat(HardLinks.linkOrCopy(existing, link), is(HardLinks.isSupported()));
+        assertThat(Files.toByteArray(link), is("content".getBytes()));
+        assertThat(HardLinks.isShared(existing), is(HardLinks.isSupported()));
+
+        existing.delete();
+        assertThat(Files.toByteArray(link), is("content".getBytes()));
+        assertThat(HardLinks.isShared(link), is(false));
+    }
+
+    @Test
+    public void copy() throws Exception {
+        dir = testDir("copy");
+        File source = new File(dir, "1.p");
+        File target = new File(dir, "2.p");
+        Files.write(new byte[4096], source);
+
+        HardLinks.copy(source, target);
+        Files.write("changed".getBytes(), target);
+
+        assertThat(source.length(), is(4096L));
+        assertThat(HardLinks.isShared(source), is(false));
+    }
+}
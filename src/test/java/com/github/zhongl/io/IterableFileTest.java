@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.github.zhongl.codec.Framing;
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class IterableFileTest extends FileTestContext {
+
+    private static final Framing FRAMING = new Framing() {
+        @Override
+        public int lengthOf(ByteBuffer buffer) {
+            if (buffer.remaining() < 4) return UNKNOWN;
+            int length = buffer.getInt(buffer.position());
+            return length < 0 ? CORRUPT : 4 + length;
+        }
+    };
+
+    private static final Function<ByteBuffer, Integer> LENGTH = new Function<ByteBuffer, Integer>() {
+        @Override
+        public Integer apply(ByteBuffer byteBuffer) {
+            int length = byteBuffer.getInt();
+            byteBuffer.position(byteBuffer.position() + length); // BufferUnderflow is not thrown by position
+            if (byteBuffer.position() > byteBuffer.limit()) throw new IllegalArgumentException();
+            return length;
+        }
+    };
+
+    @Test
+    public void framedAcrossBuffers() throws Exception {
+        dir = testDir("framedAcrossBuffers");
+        file = new File(dir, "0.p");
+
+        Random random = new Random(7L);
+        List<Integer> lengths = new ArrayList<Integer>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < 2000; i++) {
+            int length = i == 1000 ? IterableFile.BUFFER_SIZE * 3 / 2 : random.nextInt(4096); // one larger than buffer
+            lengths.add(length);
+            bytes.write(ByteBuffer.allocate(4).putInt(length).array());
+            bytes.write(new byte[length]);
+        }
+        bytes.write(new byte[]{0, 0, 1}); // incomplete tail
+        Files.write(bytes.toByteArray(), file);
+
+        assertThat(Lists.newArrayList(new IterableFile(file).toIterator(LENGTH, FRAMING, false)), is(lengths));
+        assertThat(Lists.newArrayList(new IterableFile(file).toIterator(LENGTH, FRAMING, true)), is(lengths));
+    }
+
+    @Test
+    public void badLengthEndsScanning() throws Exception {
+        dir = testDir("badLengthEndsScanning");
+
+        assertScanning(24, -8, 1);                         // corrupt in the middle
+        assertScanning(24, Integer.MAX_VALUE - 4, 0);      // huge, a torn tail
+        assertScanning(24, 4096, 0);                       // beyond the rest of file, a torn tail
+        assertScanning(IterableFile.BUFFER_SIZE * 2, Integer.MAX_VALUE - 4, 1); // beyond the loaded, not sure a tail
+    }
+
+    private void assertScanning(int fileSize, int bad, int warnings) throws Exception {
+        file = new File(dir, fileSize + "_" + bad + ".p");
+        ByteBuffer bytes = ByteBuffer.allocate(fileSize);
+        bytes.putInt(4).putInt(0).putInt(bad).putInt(0).putInt(4).putInt(0);
+        Files.write(bytes.array(), file);
+
+        final List<LogRecord> records = new ArrayList<LogRecord>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) { records.add(record); }
+
+            @Override
+            public void flush() { }
+
+            @Override
+            public void close() { }
+        };
+        Logger logger = Logger.getLogger(IterableFile.class.getName());
+        logger.addHandler(handler);
+        try {
+            Iterator<Integer> iterator = new IterableFile(file).toIterator(LENGTH, FRAMING, false);
+            assertThat(Lists.newArrayList(iterator), is(Arrays.asList(4)));
+        } finally {
+            logger.removeHandler(handler);
+        }
+        assertThat(records.size(), is(warnings));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class MemoryBudgetTest {
+
+    @Test
+    public void reserveAndRelease() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100L);
+
+        assertThat(budget.tryReserve(60L), is(true));
+        assertThat(budget.tryReserve(60L), is(false));
+        assertThat(budget.getRefused(), is(1L));
+        assertThat(budget.getAvailableBytes(), is(40L));
+
+        budget.reserve(60L); // forced
+        assertThat(budget.getPressurePercent(), is(120));
+        assertThat(budget.isExhausted(), is(true));
+
+        budget.release(60L);
+        assertThat(budget.isExhausted(), is(false));
+        assertThat(budget.getReservedBytes(), is(60L));
+    }
+
+    @Test
+    public void shrinkIdleBuffersUnderPressure() throws Exception {
+        MemoryBudget budget = new MemoryBudget(16 * 1024);
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024, budget);
+
+        pool.acquire(8 * 1024).release();
+        pool.acquire(4 * 1024).release();
+        assertThat(budget.getReservedBytes(), is(12L * 1024));
+        assertThat(pool.getPooledBytes(), is(12L * 1024));
+
+        assertThat(budget.tryReserve(8 * 1024), is(true)); // the idle 8K buffer is cleaned
+        assertThat(budget.getShrunkBytes(), is(8L * 1024));
+        assertThat(pool.getPooledBytes(), is(4L * 1024));
+        assertThat(budget.getReservedBytes(), is(12L * 1024));
+    }
+
+    @Test
+    public void awaitAvailable() throws Exception {
+        final MemoryBudget budget = new MemoryBudget(10L);
+        budget.reserve(10L);
+        assertThat(budget.awaitAvailable(10L, TimeUnit.MILLISECONDS), is(false));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException ignored) { }
+                budget.release(5L);
+            }
+        }).start();
+
+        assertThat(budget.awaitAvailable(5L, TimeUnit.SECONDS), is(true));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.github.zhongl.util.FileTestContext;
+import com.google.common.base.Predicate;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class ReclaimerTest extends FileTestContext {
+
+    @Test
+    public void deleteAfterReleased() throws Exception {
+        dir = testDir("deleteAfterReleased");
+        File file = new File(dir, "1.p");
+        Files.write(new byte[4096], file);
+
+        final AtomicBoolean inUse = new AtomicBoolean(true);
+        Reclaimer reclaimer = new Reclaimer();
+        reclaimer.retire(file, new Predicate<File>() {
+            @Override
+            public boolean apply(File input) { return inUse.get(); }
+        });
+
+        Thread.sleep(Reclaimer.RETRY_MILLIS * 3);
+        assertThat(file.exists(), is(true));
+        assertThat(reclaimer.pendingBytes(), is(4096L));
+
+        inUse.set(false);
+        for (int i = 0; i < 30 && reclaimer.pendingBytes() > 0; i++) Thread.sleep(Reclaimer.RETRY_MILLIS);
+
+        assertThat(file.exists(), is(false));
+        assertThat(reclaimer.pendingBytes(), is(0L));
+    }
+}
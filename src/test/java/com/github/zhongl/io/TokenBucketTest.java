@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.io;
+
+import com.google.common.base.Stopwatch;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class TokenBucketTest {
+
+    @Test
+    public void limitRate() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(1024 * 1024);
+        Thread.sleep(100L); // refill a little
+
+        Stopwatch stopwatch = new Stopwatch().start();
+        tokenBucket.acquire(1024 * 1024);
+        tokenBucket.acquire(512 * 1024);
+        assertThat(stopwatch.stop().elapsedMillis(), greaterThanOrEqualTo(300L));
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        TokenBucket tokenBucket = new TokenBucket(0L);
+
+        Stopwatch stopwatch = new Stopwatch().start();
+        for (int i = 0; i < 1000; i++) tokenBucket.acquire(Long.MAX_VALUE / 1000);
+        assertThat(stopwatch.stop().elapsedMillis(), lessThan(100L));
+    }
+}
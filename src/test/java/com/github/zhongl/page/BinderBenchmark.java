@@ -65,7 +65,7 @@ public class BinderBenchmark extends FileTestContext {
     @Test
     public void iterate() throws Exception {
         dir = testDir("iterate");
-        final Binder<byte[]> binder = new Binder<byte[]>(dir, empty, codec);
+        final Binder<byte[]> binder = new Binder<byte[]>(dir, empty, codec, new Sequence(0L));
 
         final int times = 1000000;
         Benchmarks.benchmark("append", new Runnable() {
@@ -90,7 +90,7 @@ public class BinderBenchmark extends FileTestContext {
     @Test
     public void defrag() throws Exception {
         dir = testDir("defrag");
-        final Binder<byte[]> binder = new Binder<byte[]>(dir, empty, codec);
+        final Binder<byte[]> binder = new Binder<byte[]>(dir, empty, codec, new Sequence(0L));
 
         final int times = 1000000;
         binder.append(list(times), collector);
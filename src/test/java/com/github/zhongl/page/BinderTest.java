@@ -24,6 +24,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import javax.annotation.Nullable;
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -56,7 +57,7 @@ public class BinderTest extends FileTestContext {
             public ByteBuffer encode(Integer integer) {
                 return (ByteBuffer) ByteBuffer.allocate(4).putInt(integer).flip();
             }
-        });
+        }, new Sequence(0L));
     }
 
     @Test
@@ -126,6 +127,58 @@ public class BinderTest extends FileTestContext {
                 element(6, range(4, 8)));
     }
 
+    @Test
+    public void rewriteAndInstall() throws Exception {
+        Function<Element<Integer>, Void> ignore = new Function<Element<Integer>, Void>() {
+            @Override
+            public Void apply(Element<Integer> element) { return null; }
+        };
+
+        binder = binder.append(Arrays.asList(1, 2, 3), ignore);
+        binder = binder.append(Arrays.asList(4, 5, 6), ignore);
+
+        final List<Element<Integer>> collector = new ArrayList<Element<Integer>>();
+        List<Page<Integer>> victims = Collections.singletonList(binder.pageOf(range(0, 4)));
+
+        File file = binder.rewrite(
+                victims,
+                new File(dir, "compacted.p"),
+                new Predicate<Element<Integer>>() {
+                    @Override
+                    public boolean apply(Element<Integer> element) {
+                        return element.value() > 1;
+                    }
+                },
+                new Function<Element<Integer>, Void>() {
+                    @Override
+                    public Void apply(Element<Integer> element) {
+                        collector.add(element);
+                        return null;
+                    }
+                },
+                null
+        );
+
+        assertThat(collector, is(Arrays.asList(
+                element(2, range(0, 4)),
+                element(3, range(4, 8))
+        )));
+
+        binder = binder.append(Arrays.asList(7), ignore); // appended during rewriting
+
+        assertThat(binder.install(victims, file).number().value(), is(28L));
+
+        assertIteratorOf(binder,
+                element(4, range(12, 16)),
+                element(5, range(16, 20)),
+                element(6, range(20, 24)),
+                element(7, range(24, 28)),
+                element(2, range(28, 32)),
+                element(3, range(32, 36))
+        );
+
+        assertThat(binder.get(range(32, 36)), is(3));
+    }
 
     static <T> Element<T> element(T value, Range range) {
         return new Element(value, range);
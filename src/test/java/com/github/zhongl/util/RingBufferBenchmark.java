@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Compare the task queue of {@link com.github.zhongl.api.Actor} before (linked blocking queue with future tasks) and
+ * after (ring buffer with plain runnables).
+ *
+ * @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a>
+ */
+public class RingBufferBenchmark {
+    private static final int PRODUCERS = 4;
+    private static final int TIMES = 1000000;
+
+    private static final Runnable TASK = new Runnable() {
+        @Override
+        public void run() { }
+    };
+
+    @Test
+    public void linkedBlockingQueue() throws Exception {
+        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+        Benchmarks.benchmark("linked blocking queue", new Runnable() {
+            @Override
+            public void run() {
+                produce(new Producer() {
+                    @Override
+                    public void produce() { queue.offer(new FutureTask<Void>(TASK, null)); }
+                });
+                try {
+                    for (int i = 0; i < PRODUCERS * TIMES; i++) queue.take().run();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }, PRODUCERS * TIMES);
+    }
+
+    @Test
+    public void ringBuffer() throws Exception {
+        for (RingBuffer.WaitStrategy strategy : RingBuffer.WaitStrategy.values()) {
+            final RingBuffer<Runnable> buffer = new RingBuffer<Runnable>(1 << 14, strategy);
+            Benchmarks.benchmark("ring buffer " + strategy, new Runnable() {
+                @Override
+                public void run() {
+                    produce(new Producer() {
+                        @Override
+                        public void produce() throws InterruptedException { buffer.put(TASK); }
+                    });
+                    List<Runnable> batch = new ArrayList<Runnable>(256);
+                    try {
+                        for (int i = 0; i < PRODUCERS * TIMES; ) {
+                            i += buffer.drainTo(batch, 256, 1L, TimeUnit.SECONDS);
+                            for (Runnable runnable : batch) runnable.run();
+                            batch.clear();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }, PRODUCERS * TIMES);
+        }
+    }
+
+    private static void produce(final Producer producer) {
+        for (int p = 0; p < PRODUCERS; p++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < TIMES; i++) producer.produce();
+                    } catch (InterruptedException ignored) { }
+                }
+            }.start();
+        }
+    }
+
+    private interface Producer {
+        void produce() throws InterruptedException;
+    }
+}
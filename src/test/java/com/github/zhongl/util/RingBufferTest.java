@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 zhongl
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.github.zhongl.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+/** @author <a href="mailto:zhong.lunfu@gmail.com">zhongl<a> */
+public class RingBufferTest {
+
+    @Test
+    public void drainInOrder() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(4, RingBuffer.WaitStrategy.SPIN);
+        for (int i = 0; i < 4; i++) assertThat(buffer.offer(i), is(true));
+        assertThat(buffer.offer(4), is(false)); // full
+        assertThat(buffer.size(), is(4));
+
+        List<Integer> batch = new ArrayList<Integer>();
+        assertThat(buffer.drainTo(batch, 3), is(3));
+        assertThat(batch, is(Arrays.asList(0, 1, 2)));
+
+        assertThat(buffer.offer(4), is(true)); // wrap around
+        batch.clear();
+        assertThat(buffer.drainTo(batch, 8), is(2));
+        assertThat(batch, is(Arrays.asList(3, 4)));
+        assertThat(buffer.size(), is(0));
+    }
+
+    @Test
+    public void timeoutOnEmpty() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(4, RingBuffer.WaitStrategy.PARK);
+        long begin = System.nanoTime();
+        assertThat(buffer.drainTo(new ArrayList<Integer>(), 1, 10L, TimeUnit.MILLISECONDS), is(0));
+        assertThat(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(10L), is(true));
+    }
+
+    @Test
+    public void wakeUpParkedConsumer() throws Exception {
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(4, RingBuffer.WaitStrategy.PARK);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                    buffer.put(1);
+                } catch (InterruptedException ignored) { }
+            }
+        }.start();
+
+        long begin = System.nanoTime();
+        List<Integer> batch = new ArrayList<Integer>();
+        assertThat(buffer.drainTo(batch, 1, 10L, TimeUnit.SECONDS), is(1));
+        assertThat(System.nanoTime() - begin, lessThan(TimeUnit.SECONDS.toNanos(5L)));
+        assertThat(batch.get(0), is(1));
+    }
+
+    @Test
+    public void multipleProducers() throws Exception {
+        for (RingBuffer.WaitStrategy strategy : RingBuffer.WaitStrategy.values()) {
+            final RingBuffer<Integer> buffer = new RingBuffer<Integer>(16, strategy);
+            final int producers = 4;
+            final int times = 2000;
+            final CountDownLatch latch = new CountDownLatch(producers);
+
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < times; i++) buffer.put(producer * times + i);
+                        } catch (InterruptedException ignored) {
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                }.start();
+            }
+
+            int[] last = new int[producers];
+            Arrays.fill(last, -1);
+            List<Integer> batch = new ArrayList<Integer>();
+            int received = 0;
+            while (received < producers * times) {
+                buffer.drainTo(batch, 8, 1L, TimeUnit.SECONDS);
+                for (Integer value : batch) {
+                    int producer = value / times;
+                    assertThat(value % times, is(last[producer] + 1)); // FIFO per producer
+                    last[producer] = value % times;
+                }
+                received += batch.size();
+                batch.clear();
+            }
+
+            assertThat(latch.await(1L, TimeUnit.SECONDS), is(true));
+            assertThat(buffer.size(), is(0));
+        }
+    }
+}